@@ -0,0 +1,216 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy;
+
+import org.python.core.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An in-memory hash aggregation buffer for map outputs.
+ * Values are folded into primitive accumulators per key, and the buffer is flushed
+ * to a TaskWrapper when its estimated size reaches a threshold.
+ */
+public class AggregateBuffer {
+    public static final String BUFFERSIZE_KEY = "happy.aggregate.buffer.mb";
+    public static final int DEFAULT_BUFFERSIZE = 16;
+
+    private static final int OP_SUM = 0;
+    private static final int OP_COUNT = 1;
+    private static final int OP_MIN = 2;
+    private static final int OP_MAX = 3;
+    private static final int OP_CONCAT = 4;
+
+    // rough per-entry cost of the map entry, key and accumulator objects:
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final Map<PyObject, Accumulator> accumulators = new HashMap<PyObject, Accumulator>();
+    private final long maxBytes;
+    private long bytes = 0;
+
+    public AggregateBuffer(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Folds a value into the accumulator for a key.
+     *
+     * @param key
+     * @param value
+     * @param op one of sum, count, min, max or concat.
+     * @return true if the buffer is full and should be flushed.
+     */
+    public boolean aggregate(PyObject key, PyObject value, String op) {
+        int opCode = getOp(op);
+        Accumulator accumulator = accumulators.get(key);
+        if(accumulator == null)
+        {
+            accumulator = new Accumulator(opCode);
+            accumulators.put(key, accumulator);
+            bytes += ENTRY_OVERHEAD + estimateSize(key);
+        }
+        else if(accumulator.op != opCode)
+        {
+            throw new IllegalArgumentException("Key " + key + " is already aggregated with a different op than " + op);
+        }
+        bytes += accumulator.add(value);
+        return bytes >= maxBytes;
+    }
+
+    /**
+     * Collects all of the aggregated values and empties the buffer.
+     *
+     * @param taskWrapper
+     * @throws IOException
+     */
+    public void flush(TaskWrapper taskWrapper) throws IOException {
+        for(Map.Entry<PyObject, Accumulator> entry: accumulators.entrySet())
+        {
+            taskWrapper.collect(entry.getKey(), entry.getValue().getValue());
+        }
+        accumulators.clear();
+        bytes = 0;
+    }
+
+    public int size() {
+        return accumulators.size();
+    }
+
+    private static int getOp(String op) {
+        if("sum".equals(op)) return OP_SUM;
+        else if("count".equals(op)) return OP_COUNT;
+        else if("min".equals(op)) return OP_MIN;
+        else if("max".equals(op)) return OP_MAX;
+        else if("concat".equals(op)) return OP_CONCAT;
+        else throw new IllegalArgumentException("Unknown aggregate op " + op);
+    }
+
+    private static int estimateSize(PyObject o) {
+        if(o instanceof PyBaseString) return ((PyBaseString)o).__len__() * 2;
+        else return 16;
+    }
+
+    /////////////////////////////////////////////////////
+
+    /**
+     * A primitive accumulator for a single key.  Integers are accumulated as longs until a float is seen,
+     * or as BigIntegers once they no longer fit in a long, like Python ints are promoted to longs.
+     */
+    private static class Accumulator
+    {
+        private final int op;
+        private boolean empty = true;
+        private boolean isDouble = false;
+        private long longValue;
+        private BigInteger bigValue;
+        private double doubleValue;
+        private StringBuilder text;
+
+        private Accumulator(int op) {
+            this.op = op;
+            if(op == OP_CONCAT) text = new StringBuilder();
+        }
+
+        /**
+         * Adds a value and returns an estimate of the bytes added to the buffer.
+         */
+        private int add(PyObject value) {
+            switch(op)
+            {
+                case OP_COUNT:
+                    longValue++;
+                    return 0;
+                case OP_CONCAT:
+                    String s = value.toString();
+                    text.append(s);
+                    return s.length() * 2;
+            }
+
+            boolean valueIsDouble = value instanceof PyFloat;
+            if(!valueIsDouble && !(value instanceof PyInteger) && !(value instanceof PyLong))
+            {
+                throw new IllegalArgumentException("Cannot aggregate non-numeric value " + value);
+            }
+            if(valueIsDouble && !isDouble)
+            {
+                doubleValue = bigValue != null ? bigValue.doubleValue() : longValue;
+                isDouble = true;
+            }
+            if(isDouble)
+            {
+                double d = value.asDouble();
+                if(empty) doubleValue = d;
+                else if(op == OP_SUM) doubleValue += d;
+                else if(op == OP_MIN) doubleValue = Math.min(doubleValue, d);
+                else doubleValue = Math.max(doubleValue, d);
+            }
+            else if(bigValue != null || (value instanceof PyLong && ((PyLong) value).getValue().bitLength() >= 64))
+            {
+                addBig(value instanceof PyLong ? ((PyLong) value).getValue() : BigInteger.valueOf(value.asLong(0)));
+            }
+            else
+            {
+                long l = value.asLong(0);
+                if(empty) longValue = l;
+                else if(op == OP_SUM)
+                {
+                    long sum = longValue + l;
+                    // the sum overflowed if its sign differs from both of the values added:
+                    if(((longValue ^ sum) & (l ^ sum)) < 0) addBig(BigInteger.valueOf(l));
+                    else longValue = sum;
+                }
+                else if(op == OP_MIN) longValue = Math.min(longValue, l);
+                else longValue = Math.max(longValue, l);
+            }
+            empty = false;
+            return 0;
+        }
+
+        private void addBig(BigInteger b) {
+            BigInteger current = bigValue != null ? bigValue : BigInteger.valueOf(longValue);
+            if(empty) bigValue = b;
+            else if(op == OP_SUM) bigValue = current.add(b);
+            else if(op == OP_MIN) bigValue = current.min(b);
+            else bigValue = current.max(b);
+        }
+
+        private PyObject getValue() {
+            if(op == OP_CONCAT) return new PyUnicode(text.toString());
+            else if(isDouble) return new PyFloat(doubleValue);
+            else if(bigValue != null) return new PyLong(bigValue);
+            else if(longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE) return new PyInteger((int) longValue);
+            else return new PyLong(longValue);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy;
+
+import com.freebase.happy.bjson.BJSON;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.python.core.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A value, such as a large lookup table, that is shipped to tasks as its own file instead of being
+ * serialized with the job object.  Only the file name is serialized with the job.
+ *
+ * The value is written once in BJSON, to a file named by the hash of its content.  Tasks memory-map and
+ * decode it the first time it is used, and tasks of the same job sharing a JVM share the decoded value, so
+ * it must be treated as read-only.  Values are dropped when a task of another job starts in the JVM.  Item lookups, len(), "in", iteration and attributes such as get() go to the value,
+ * so a broadcast table can be used like the table itself; the value itself is broadcast.value.
+ */
+public class Broadcast extends PyObject {
+    private static final Log log = LogFactory.getLog(Broadcast.class);
+
+    // decoded values by file name, shared by every task of the current job in this JVM:
+    private static final Map<String, PyObject> values = new HashMap<String, PyObject>();
+    private static String valuesJob;
+    // broadcasts serialized by the current thread, so their files can be shipped with the job:
+    private static final ThreadLocal<Collection<Broadcast>> serialized = new ThreadLocal<Collection<Broadcast>>();
+
+    private final String name;
+    private final String localPath;
+    private transient volatile PyObject value;
+
+    private Broadcast(String name, String localPath, PyObject value) {
+        this.name = name;
+        this.localPath = localPath;
+        this.value = value;
+    }
+
+    /**
+     * Writes a value to a broadcast file in the local temp directory.
+     *
+     * @param value a JSON-like value.
+     * @return the broadcast, which holds on to the value on the client.
+     * @throws IOException
+     */
+    public static Broadcast create(PyObject value) throws IOException {
+        BJSON bjson = new BJSON();
+        bjson.setObject(value);
+        DataOutputBuffer buffer = new DataOutputBuffer();
+        bjson.write(buffer);
+
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+        digest.update(buffer.getData(), 0, buffer.getLength());
+        StringBuilder name = new StringBuilder("happy-broadcast-");
+        for(byte b: digest.digest())
+        {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16));
+            name.append(Character.forDigit(b & 0xF, 16));
+        }
+        name.append(".bjson");
+
+        // the same value is only written once:
+        File file = new File(System.getProperty("java.io.tmpdir"), name.toString());
+        if(!file.isFile() || file.length() != buffer.getLength())
+        {
+            File tempFile = File.createTempFile("happy-broadcast-", ".tmp", file.getParentFile());
+            OutputStream out = new FileOutputStream(tempFile);
+            try
+            {
+                out.write(buffer.getData(), 0, buffer.getLength());
+            }
+            finally
+            {
+                out.close();
+            }
+            if(!tempFile.renameTo(file))
+            {
+                tempFile.delete();
+                if(!file.isFile()) throw new IOException("Can't write broadcast file " + file);
+            }
+        }
+        file.deleteOnExit();
+        log.info("Broadcast value written to " + file + ", size: " + buffer.getLength());
+        return new Broadcast(name.toString(), file.getAbsolutePath(), value);
+    }
+
+    /**
+     * Drops the values loaded for other jobs, so reused JVMs don't keep a lookup table for every job they ran.
+     * Job objects of earlier jobs are dropped with their interpreters, along with the values they hold.
+     *
+     * @param jobId the id of the job whose task is starting.
+     */
+    public static void setJob(String jobId) {
+        synchronized(values)
+        {
+            if(jobId == null ? valuesJob == null : jobId.equals(valuesJob)) return;
+            if(!values.isEmpty()) log.info("Dropping " + values.size() + " broadcast values of job " + valuesJob);
+            values.clear();
+            valuesJob = jobId;
+        }
+    }
+
+    /**
+     * Collects the broadcasts that are serialized by this thread.
+     *
+     * @param broadcasts receives the broadcasts, or null to stop collecting.
+     */
+    public static void collect(Collection<Broadcast> broadcasts) {
+        if(broadcasts != null) serialized.set(broadcasts);
+        else serialized.remove();
+    }
+
+    /**
+     * Lists the files of a set of broadcasts, for the job's tmpfiles.
+     *
+     * @param broadcasts
+     * @return comma-separated file URIs, without duplicates.
+     */
+    public static String getURIs(Collection<Broadcast> broadcasts) {
+        Set<String> uris = new LinkedHashSet<String>();
+        for(Broadcast broadcast: broadcasts) uris.add(new File(broadcast.localPath).toURI().toString());
+        StringBuilder sb = new StringBuilder();
+        for(String uri: uris)
+        {
+            if(sb.length() > 0) sb.append(",");
+            sb.append(uri);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the file name, which tasks find in their working directory.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the path of the file on the client.
+     */
+    public String getLocalPath() {
+        return localPath;
+    }
+
+    /**
+     * Loads the value the first time it is used in this JVM.
+     *
+     * @return the value.
+     */
+    public PyObject getValue() {
+        PyObject loaded = value;
+        if(loaded == null)
+        {
+            synchronized(values)
+            {
+                loaded = values.get(name);
+                if(loaded == null)
+                {
+                    try
+                    {
+                        loaded = load();
+                    }
+                    catch(IOException e)
+                    {
+                        throw new RuntimeException("Error loading broadcast " + name, e);
+                    }
+                    values.put(name, loaded);
+                }
+                value = loaded;
+            }
+        }
+        return loaded;
+    }
+
+    private PyObject load() throws IOException {
+        // shipped jobs find the file in their working directory, local jobs use the original:
+        File file = new File(name);
+        if(!file.isFile()) file = new File(localPath);
+        long start = System.currentTimeMillis();
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            BJSON bjson = new BJSON();
+            bjson.readFields(new DataInputStream(new ByteBufferInputStream(buffer)));
+            PyObject value = Py.java2py(bjson.getObject());
+            log.info("Loaded broadcast " + file + " in " + (System.currentTimeMillis() - start) + "ms");
+            return value;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        Collection<Broadcast> broadcasts = serialized.get();
+        if(broadcasts != null) broadcasts.add(this);
+    }
+
+    public PyObject __finditem__(PyObject key) {
+        return getValue().__finditem__(key);
+    }
+
+    public PyObject __getitem__(PyObject key) {
+        return getValue().__getitem__(key);
+    }
+
+    public boolean __contains__(PyObject o) {
+        return getValue().__contains__(o);
+    }
+
+    public int __len__() {
+        return getValue().__len__();
+    }
+
+    public boolean __nonzero__() {
+        return getValue().__nonzero__();
+    }
+
+    public PyObject __iter__() {
+        return getValue().__iter__();
+    }
+
+    public PyObject __findattr_ex__(String name) {
+        if("value".equals(name)) return getValue();
+        return getValue().__findattr_ex__(name);
+    }
+
+    public String toString() {
+        return "<broadcast " + name + ">";
+    }
+
+    /**
+     * Reads a memory-mapped file.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if(!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+}
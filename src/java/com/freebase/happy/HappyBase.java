@@ -32,6 +32,7 @@ package com.freebase.happy;
 
 import com.freebase.happy.bjson.BJSON;
 import com.freebase.happy.json.JSONWritable;
+import com.freebase.happy.json.StringInterner;
 import com.freebase.happy.util.JarUtil;
 import com.freebase.happy.util.PyObjectSerializer;
 import com.freebase.happy.util.ResultSerializer;
@@ -46,9 +47,15 @@ import org.python.core.*;
 import org.python.util.PythonInterpreter;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Base class for happy jobs.
@@ -58,6 +65,15 @@ public class HappyBase {
     public static final String PATH_KEY = "happy.path";
     public static final String SCRIPT_KEY = "happy.script";
     public static final String SCRIPT_OBJECT = "happy.object";
+    public static final String WARMSTART_KEY = "happy.warmstart";
+    public static final String BJSON_VIEWS_KEY = "happy.bjson.views";
+
+    /**
+     * Interpreters and job objects kept alive between tasks when the JVM is reused.
+     */
+    private static final Map<String, WarmState> warmStates = new HashMap<String, WarmState>();
+    // whether BJSON dictionaries and lists are passed to tasks as views rather than decoded:
+    private static volatile boolean bjsonViews = false;
 
     protected final Log log = LogFactory.getLog(super.getClass());
     protected long jobStart;
@@ -65,11 +81,22 @@ public class HappyBase {
     protected PyObject jobObject;
     protected PyObject workFunction;
     protected PyObject pytask;
+    protected TaskWrapper taskWrapper;
+    protected HappyStats stats;
+    protected HappyProfiler profiler;
+    protected String taskType;
     protected JobConf jobConf;
     protected JobWrapper jobWrapper;
+    protected boolean isolatedState = false;
+    // if set, configure() leaves calling the config function to the caller:
+    protected boolean deferConfig = false;
+    protected String configFunctionName;
+    protected String closeFunctionName;
+    protected PySystemState systemState;
 
     /**
-     * Converts a key or value for a map or reduce into a PyObject.
+     * Converts a key or value for a map or reduce into a PyObject.  BJSON dictionaries and lists are
+     * BJSONViews if the job sets happy.bjson.views, since views aren't dict or list instances.
      *
      * @param o
      * @return
@@ -78,7 +105,7 @@ public class HappyBase {
     {
         if(o instanceof Text) return new PyUnicode(o.toString());
         else if(o instanceof JSONWritable) return ((JSONWritable)o).get();
-        else if(o instanceof BJSON) return (PyObject) ((BJSON)o).getObject();
+        else if(o instanceof BJSON) return bjsonViews ? ((BJSON)o).getView() : (PyObject) ((BJSON)o).getObject();
         else return PyJavaType.wrapJavaObject(o);
     }
 
@@ -101,13 +128,108 @@ public class HappyBase {
             }
         }
 
+        StringInterner.configure(jobConf);
+        bjsonViews = jobConf.getBoolean(BJSON_VIEWS_KEY, false);
+        Broadcast.setJob(jobConf.get("mapred.job.id"));
+
+        File scriptObjectFile = new File(jobConf.get(SCRIPT_OBJECT));
+
+        // see if we can reuse an interpreter from a previous task in this JVM:
+        String warmKey = null;
+        if(jobConf.getBoolean(WARMSTART_KEY, false) && !isolatedState)
+        {
+            try
+            {
+                warmKey = getWarmKey(jobConf, scriptObjectFile);
+            }
+            catch(IOException ioe)
+            {
+                throw new RuntimeException("Error hashing " + scriptObjectFile, ioe);
+            }
+        }
+        WarmState warmState = getWarmState(warmKey);
+        if(warmState != null)
+        {
+            pythonInterpreter = warmState.pythonInterpreter;
+            jobObject = warmState.jobObject;
+            systemState = Py.getSystemState();
+            log.info("Reusing Jython interpreter and job object from a previous task");
+
+            // reset the per-task happy environment:
+            jobWrapper = new JobWrapper(jobConf);
+            PyObject happy = pythonInterpreter.get("happy");
+            happy.__setattr__(new PyString("job"), PyJavaType.wrapJavaObject(jobWrapper));
+            happy.__setattr__(new PyString("results"), happy.__getattr__("Results").__call__());
+            happy.__setattr__(new PyString("_jobconf"), Py.None);
+        }
+        else
+        {
+            createInterpreter(jobConf, scriptObjectFile);
+            if(warmKey != null) putWarmState(warmKey, new WarmState(pythonInterpreter, jobObject));
+        }
+
+        // configure:
+        log.info("Configuring job");
+        String workFunctionName;
+        if(this instanceof HappyMap)
+        {
+            configFunctionName = "mapconfig";
+            closeFunctionName = "mapclose";
+            workFunctionName = "map";
+        }
+        else if(this instanceof HappyCombine)
+        {
+            configFunctionName = "combineconfig";
+            closeFunctionName = "combineclose";
+            workFunctionName = "combine";
+        }
+        else
+        {
+            configFunctionName = "reduceconfig";
+            closeFunctionName = "reduceclose";
+            workFunctionName = "reduce";
+        }
+
+        taskType = workFunctionName;
+        stats = new HappyStats(workFunctionName.toUpperCase(), jobConf);
+
+        if(!deferConfig) callConfigFunction();
+        workFunction = jobObject.__findattr__(workFunctionName.intern());
+
+        log.info("Configuration took " + (System.currentTimeMillis() - jobStart) + "ms");
+    }
+
+    /**
+     * Returns the Jython system state used by this task's interpreter.
+     *
+     * @return
+     */
+    public PySystemState getSystemState() {
+        return systemState;
+    }
+
+    /**
+     * Initializes Jython, creates a new interpreter, imports the job script and deserializes the job object.
+     *
+     * @param jobConf
+     * @param scriptObjectFile
+     */
+    private void createInterpreter(JobConf jobConf, File scriptObjectFile)
+    {
         // make sure that this jar file is in the Jython classpath and we're using the right classloader:
         PySystemState.initialize(PySystemState.getBaseProperties(), null, null);
-        Py.getSystemState().setClassLoader(HappyBase.class.getClassLoader());
+        if(isolatedState)
+        {
+            // give this interpreter its own modules, including its own happy module:
+            systemState = new PySystemState();
+            Py.setSystemState(systemState);
+        }
+        else systemState = Py.getSystemState();
+        systemState.setClassLoader(HappyBase.class.getClassLoader());
         String thisJar = JarUtil.findContainingPath(HappyJobRunner.class);
 
         // add our jar file to the pythonpath:
-        PyList pathList = Py.getSystemState().path;
+        PyList pathList = systemState.path;
         pathList.insert(0, new PyString(thisJar));
         for(String path: jobConf.get(PATH_KEY, "").split(":"))
         {
@@ -116,7 +238,8 @@ public class HappyBase {
         log.info("pythonpath: " + pathList.toString());
 
         // start the interpreter:
-        pythonInterpreter = new PythonInterpreter();
+        if(isolatedState) pythonInterpreter = new PythonInterpreter(null, systemState);
+        else pythonInterpreter = new PythonInterpreter();
 
         // default imports:
         imp.load("site");
@@ -137,54 +260,74 @@ public class HappyBase {
         }
 
         // get our script object:
-        File scriptObjectFile = new File(jobConf.get(SCRIPT_OBJECT));
-
         log.info("Deserializing " + scriptObjectFile.getAbsolutePath() + ", size: " + scriptObjectFile.length());
         try {
             jobObject = PyObjectSerializer.deserialize(scriptObjectFile);
         } catch (Exception e) {
             throw new RuntimeException("Error deserializing " + scriptObjectFile, e);
         }
+    }
 
-        // configure:
-        log.info("Configuring job");
-        String configFunctionName;
-        String workFunctionName;
-        if(this instanceof HappyMap)
+    /**
+     * Builds the warm start cache key for a task from the job id, the task type and a hash of the job object.
+     *
+     * @param jobConf
+     * @param scriptObjectFile
+     * @return
+     * @throws IOException
+     */
+    private String getWarmKey(JobConf jobConf, File scriptObjectFile) throws IOException {
+        MessageDigest digest;
+        try
         {
-            configFunctionName = "mapconfig";
-            workFunctionName = "map";
+            digest = MessageDigest.getInstance("MD5");
         }
-        else if(this instanceof HappyCombine)
+        catch(NoSuchAlgorithmException e)
         {
-            configFunctionName = "combineconfig";
-            workFunctionName = "combine";
+            throw new RuntimeException(e);
         }
-        else
+        InputStream in = new FileInputStream(scriptObjectFile);
+        try
         {
-            configFunctionName = "reduceconfig";
-            workFunctionName = "reduce";
+            byte[] buffer = new byte[4096];
+            int read;
+            while((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+        }
+        finally
+        {
+            in.close();
         }
+        StringBuilder sb = new StringBuilder();
+        sb.append(jobConf.get("mapred.job.id")).append(':');
+        sb.append(getClass().getName()).append(':');
+        sb.append(jobConf.get(SCRIPT_KEY)).append(':');
+        for(byte b: digest.digest()) sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        return sb.toString();
+    }
 
-        PyObject configFunction = jobObject.__findattr__(configFunctionName.intern());
-        if(configFunction != null) configFunction.__call__();
-        workFunction = jobObject.__findattr__(workFunctionName.intern());
+    private static synchronized WarmState getWarmState(String warmKey)
+    {
+        if(warmKey == null) return null;
+        return warmStates.get(warmKey);
+    }
 
-        log.info("Configuration took " + (System.currentTimeMillis() - jobStart) + "ms");
+    private static synchronized void putWarmState(String warmKey, WarmState warmState)
+    {
+        // only keep interpreters for the current job:
+        String jobPrefix = warmKey.substring(0, warmKey.indexOf(':') + 1);
+        Iterator<String> keys = warmStates.keySet().iterator();
+        while(keys.hasNext())
+        {
+            if(!keys.next().startsWith(jobPrefix)) keys.remove();
+        }
+        warmStates.put(warmKey, warmState);
     }
 
     public void close() throws IOException {
         // call the job close method:
-        if(jobObject != null)
-        {
-            // close:
-            String closeFunctionName;
-            if(this instanceof HappyMap) closeFunctionName = "mapclose";
-            else if(this instanceof HappyCombine) closeFunctionName = "combineclose";
-            else closeFunctionName = "reduceclose";
-            PyObject closeFunction = jobObject.__findattr__(closeFunctionName.intern());
-            if(closeFunction != null) closeFunction.__call__();
-        }
+        callCloseFunction();
+        // collect any aggregated values and finish writing output:
+        closeTask();
         // close closeables:
         jobWrapper.close();
         // store any results:
@@ -197,6 +340,77 @@ public class HappyBase {
         log.info("Job finished, duration: " + (now - jobStart) + "ms");
     }
 
+    /**
+     * Calls the job's mapconfig, combineconfig or reduceconfig function, if it has one.
+     */
+    protected void callConfigFunction() {
+        PyObject configFunction = jobObject.__findattr__(configFunctionName.intern());
+        if(configFunction != null) configFunction.__call__();
+    }
+
+    /**
+     * Calls the job's mapclose, combineclose or reduceclose function, if it has one.
+     */
+    protected void callCloseFunction() {
+        if(jobObject == null) return;
+        PyObject closeFunction = jobObject.__findattr__(closeFunctionName.intern());
+        if(closeFunction != null) closeFunction.__call__();
+    }
+
+    /**
+     * Finishes writing output, publishes the task counters and writes the profile.
+     *
+     * @throws IOException
+     */
+    protected void closeTask() throws IOException {
+        if(taskWrapper != null)
+        {
+            taskWrapper.close();
+            stats.publish(taskWrapper.getReporter());
+            StringInterner.getInstance().publish(taskWrapper.getReporter());
+        }
+        // write the profile:
+        if(profiler != null)
+        {
+            HappyProfiler finished = profiler;
+            stopProfiler();
+            finished.write(jobConf, taskType);
+        }
+    }
+
+    /**
+     * Starts profiling the calling thread if profiling is enabled for the job and hasn't already been started.
+     */
+    protected void startProfiler()
+    {
+        if(profiler == null && jobConf.getBoolean(HappyProfiler.PROFILE_KEY, false))
+        {
+            profiler = new HappyProfiler(jobConf.getInt(HappyProfiler.INTERVAL_KEY, HappyProfiler.DEFAULT_INTERVAL));
+        }
+    }
+
+    /**
+     * Stops the profiler without writing it, for tasks that fail.
+     */
+    protected void stopProfiler()
+    {
+        if(profiler != null)
+        {
+            profiler.stop();
+            profiler = null;
+        }
+    }
+
+    /**
+     * Stops the profiler and any asynchronous output thread of a failed task, without writing either.
+     * Does nothing for a task that has been closed.
+     */
+    protected void abortTask()
+    {
+        stopProfiler();
+        if(taskWrapper != null) taskWrapper.abort();
+    }
+
     protected String getStringValue(Object o)
     {
         try
@@ -254,21 +468,30 @@ public class HappyBase {
      */
     public static class RecordIterator extends PyIterator
     {
-        private final RecordReader recordReader;
-        private final WritableComparable key;
-        private final Writable value;
+        protected final RecordReader recordReader;
+        protected final WritableComparable key;
+        protected final Writable value;
+        protected final HappyStats stats;
 
         public RecordIterator(RecordReader recordReader) {
+            this(recordReader, new HappyStats("MAP", 0));
+        }
+
+        public RecordIterator(RecordReader recordReader, HappyStats stats) {
             this.recordReader = recordReader;
+            this.stats = stats;
             key = (WritableComparable) recordReader.createKey();
             value = (Writable) recordReader.createValue();
         }
 
         public PyObject __iternext__() {
             try {
-                if(recordReader.next(key, value))
+                if(next())
                 {
-                    return new PyTuple(new PyObject[]{getPyValue(key), getPyValue(value)});
+                    long start = stats.start(HappyStats.CONVERT);
+                    PyObject record = new PyTuple(new PyObject[]{getPyValue(key), getPyValue(value)});
+                    stats.stop(HappyStats.CONVERT, start);
+                    return record;
                 }
                 else return null;
             } catch (IOException e) {
@@ -276,6 +499,20 @@ public class HappyBase {
             }
         }
 
+        /**
+         * Reads the next record into key and value.
+         *
+         * @return false if there are no more records.
+         * @throws IOException
+         */
+        protected boolean next() throws IOException {
+            long start = stats.start(HappyStats.READ);
+            boolean more = recordReader.next(key, value);
+            stats.stop(HappyStats.READ, start);
+            if(more) stats.addInput(key, value);
+            return more;
+        }
+
         public WritableComparable getKey() {
             return key;
         }
@@ -285,22 +522,79 @@ public class HappyBase {
         }
     }
 
+    /**
+     * A Python iterator for batches of map records.
+     * Each step returns a tuple of a list of keys and a list of values, filled directly from the RecordReader.
+     */
+    public static class BatchIterator extends RecordIterator
+    {
+        private final int batchSize;
+
+        public BatchIterator(RecordReader recordReader, int batchSize, HappyStats stats) {
+            super(recordReader, stats);
+            if(batchSize < 1) throw new IllegalArgumentException("Invalid batch size " + batchSize);
+            this.batchSize = batchSize;
+        }
+
+        public PyObject __iternext__() {
+            try {
+                PyObject[] batchKeys = new PyObject[batchSize];
+                PyObject[] batchValues = new PyObject[batchSize];
+                int count = 0;
+                while(count < batchSize && next())
+                {
+                    long start = stats.start(HappyStats.CONVERT);
+                    batchKeys[count] = getPyValue(key);
+                    batchValues[count] = getPyValue(value);
+                    stats.stop(HappyStats.CONVERT, start);
+                    count++;
+                }
+                if(count == 0) return null;
+                if(count < batchSize)
+                {
+                    PyObject[] lastKeys = new PyObject[count];
+                    PyObject[] lastValues = new PyObject[count];
+                    System.arraycopy(batchKeys, 0, lastKeys, 0, count);
+                    System.arraycopy(batchValues, 0, lastValues, 0, count);
+                    batchKeys = lastKeys;
+                    batchValues = lastValues;
+                }
+                return new PyTuple(new PyObject[]{new PyList(batchKeys), new PyList(batchValues)});
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     /**
      * A python iterator for combiners and reducers.
      */
     public static class ReduceIterator extends PyIterator
     {
         private final Iterator iterator;
+        private final HappyStats stats;
         private PyObject currentValue;
 
         public ReduceIterator(Iterator iterator) {
+            this(iterator, new HappyStats("REDUCE", 0));
+        }
+
+        public ReduceIterator(Iterator iterator, HappyStats stats) {
             this.iterator = iterator;
+            this.stats = stats;
         }
 
         public PyObject __iternext__() {
-            if(iterator.hasNext())
+            long start = stats.start(HappyStats.READ);
+            boolean more = iterator.hasNext();
+            Object next = more ? iterator.next() : null;
+            stats.stop(HappyStats.READ, start);
+            if(more)
             {
-                currentValue = getPyValue(iterator.next());
+                stats.addInput(next);
+                start = stats.start(HappyStats.CONVERT);
+                currentValue = getPyValue(next);
+                stats.stop(HappyStats.CONVERT, start);
                 return currentValue;
             }
             else return null;
@@ -310,5 +604,18 @@ public class HappyBase {
             return currentValue;
         }
     }
-}
 
+    /**
+     * An initialized interpreter and job object that can be shared by later tasks of the same job.
+     */
+    private static class WarmState
+    {
+        private final PythonInterpreter pythonInterpreter;
+        private final PyObject jobObject;
+
+        private WarmState(PythonInterpreter pythonInterpreter, PyObject jobObject) {
+            this.pythonInterpreter = pythonInterpreter;
+            this.jobObject = jobObject;
+        }
+    }
+}
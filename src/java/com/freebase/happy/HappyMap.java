@@ -30,11 +30,13 @@
 
 package com.freebase.happy;
 
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapRunnable;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reporter;
 import org.python.core.PyJavaType;
+import org.python.core.PyObject;
 
 import java.io.IOException;
 
@@ -42,16 +44,41 @@ import java.io.IOException;
  * Happy Mapper.
  */
 public class HappyMap extends HappyBase implements MapRunnable<Object, Object, Object, Object> {
+    public static final String BATCHSIZE_KEY = "happy.batchsize";
+    public static final int DEFAULT_BATCHSIZE = 1000;
+
+    protected int batchSize = 0;
+
+    public void configure(JobConf jobConf) {
+        super.configure(jobConf);
+        // use batch delivery if the job defines map_batches:
+        PyObject batchFunction = jobObject.__findattr__("map_batches");
+        if(batchFunction != null)
+        {
+            workFunction = batchFunction;
+            batchSize = jobConf.getInt(BATCHSIZE_KEY, DEFAULT_BATCHSIZE);
+            log.info("Delivering map records in batches of " + batchSize);
+        }
+    }
+
     public void run(RecordReader<Object, Object> recordReader,
                     OutputCollector<Object, Object> outputCollector, Reporter reporter) throws IOException {
         RecordIterator recordIterator = null;
         try
         {
-            if(pytask == null) pytask = PyJavaType.wrapJavaObject(
-                    new TaskWrapper(outputCollector, reporter,
-                            jobConf.getMapOutputKeyClass(), jobConf.getMapOutputValueClass()));
-            recordIterator = new RecordIterator(recordReader);
+            if(pytask == null)
+            {
+                taskWrapper = new TaskWrapper(outputCollector, reporter,
+                        jobConf.getMapOutputKeyClass(), jobConf.getMapOutputValueClass(), jobConf);
+                pytask = PyJavaType.wrapJavaObject(taskWrapper);
+            }
+            taskWrapper.setStats(stats);
+            if(batchSize > 0) recordIterator = new BatchIterator(recordReader, batchSize, stats);
+            else recordIterator = new RecordIterator(recordReader, stats);
+            startProfiler();
+            long callStart = System.nanoTime();
             workFunction.__call__(recordIterator, pytask);
+            stats.addCallTime(System.nanoTime() - callStart);
             super.close();
         }
         catch(Throwable e)
@@ -73,5 +100,10 @@ public class HappyMap extends HappyBase implements MapRunnable<Object, Object, O
             log.error("Exception rethrown", re);
             throw re;
         }
+        finally
+        {
+            // a failed task doesn't write its profile or output, but mustn't leave their threads running:
+            abortTask();
+        }
     }
 }
\ No newline at end of file
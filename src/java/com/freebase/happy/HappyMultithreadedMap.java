@@ -0,0 +1,407 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapRunnable;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import com.freebase.happy.util.ResultSerializer;
+import org.python.core.*;
+import org.python.util.PythonInterpreter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Happy Mapper that runs the map function on several threads.
+ * Records are read on the calling thread and handed out in chunks through a bounded queue
+ * to worker threads, each of which has its own interpreter, happy module and job object.
+ *
+ * mapconfig and mapclose are only called on the first worker, the primary.  The job object
+ * attributes that mapconfig sets are copied to the other workers, all workers share the
+ * primary's happy.job, and their happy.results are combined into one entry for the task.
+ * mapclose only sees the primary's job object and happy.results, not what the map function
+ * changed on the other workers.
+ */
+public class HappyMultithreadedMap extends HappyBase implements MapRunnable<Object, Object, Object, Object> {
+    public static final String THREADS_KEY = "happy.mapthreads";
+    public static final String CHUNKSIZE_KEY = "happy.mapthreads.chunksize";
+    public static final int DEFAULT_CHUNKSIZE = 100;
+
+    private static final Object[] END = new Object[0];
+
+    private Worker[] workers;
+    private BlockingQueue<Object[]> queue;
+    private int chunkSize;
+    private volatile Throwable failure;
+
+    public void configure(JobConf jobConf) {
+        this.jobConf = jobConf;
+        jobStart = System.currentTimeMillis();
+        int threads = jobConf.getInt(THREADS_KEY, 1);
+        if(threads < 1) throw new IllegalArgumentException("Invalid map thread count " + threads);
+        log.info("Starting " + threads + " map threads for job " + jobConf.getJobName());
+
+        PySystemState mainState = Py.getSystemState();
+        try
+        {
+            workers = new Worker[threads];
+            for(int i = 0; i < threads; i++)
+            {
+                workers[i] = new Worker();
+                workers[i].isolatedState = true;
+                workers[i].deferConfig = true;
+                workers[i].configure(jobConf);
+            }
+
+            // configure once, on the primary, and give the other workers what mapconfig set up:
+            Worker primary = workers[0];
+            Py.setSystemState(primary.getSystemState());
+            Map<String, PyObject> before = getAttributes(primary.jobObject);
+            primary.callConfigFunction();
+            Map<String, PyObject> after = getAttributes(primary.jobObject);
+            for(int i = 1; i < threads; i++)
+            {
+                Py.setSystemState(workers[i].getSystemState());
+                workers[i].share(primary, before, after);
+            }
+        }
+        finally
+        {
+            Py.setSystemState(mainState);
+        }
+        // in batch mode every chunk is handed to python as one batch:
+        if(workers[0].batchSize > 0) chunkSize = workers[0].batchSize;
+        else chunkSize = jobConf.getInt(CHUNKSIZE_KEY, DEFAULT_CHUNKSIZE);
+        queue = new ArrayBlockingQueue<Object[]>(threads * 2);
+
+        log.info("Configuration took " + (System.currentTimeMillis() - jobStart) + "ms");
+    }
+
+    public void run(RecordReader<Object, Object> recordReader,
+                    final OutputCollector<Object, Object> outputCollector, Reporter reporter) throws IOException {
+        // all workers share the collector:
+        OutputCollector<Object, Object> sharedCollector = new OutputCollector<Object, Object>() {
+            public synchronized void collect(Object key, Object value) throws IOException {
+                outputCollector.collect(key, value);
+            }
+        };
+        Thread[] threads = new Thread[workers.length];
+        for(int i = 0; i < workers.length; i++)
+        {
+            final Worker worker = workers[i];
+            worker.taskWrapper = new TaskWrapper(sharedCollector, reporter,
+                    jobConf.getMapOutputKeyClass(), jobConf.getMapOutputValueClass(), jobConf);
+            worker.taskWrapper.setStats(worker.stats);
+            worker.pytask = PyJavaType.wrapJavaObject(worker.taskWrapper);
+            threads[i] = new Thread("happy-map-" + i) {
+                public void run() {
+                    worker.work();
+                }
+            };
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        // read records and hand them to the workers in chunks:
+        Object key = null;
+        Object value = null;
+        try
+        {
+            boolean more = true;
+            while(more && failure == null)
+            {
+                Object[] chunk = new Object[chunkSize * 2];
+                int count = 0;
+                while(count < chunk.length)
+                {
+                    key = recordReader.createKey();
+                    value = recordReader.createValue();
+                    if(!recordReader.next(key, value))
+                    {
+                        more = false;
+                        break;
+                    }
+                    chunk[count++] = key;
+                    chunk[count++] = value;
+                }
+                if(count > 0)
+                {
+                    if(count < chunk.length)
+                    {
+                        Object[] last = new Object[count];
+                        System.arraycopy(chunk, 0, last, 0, count);
+                        chunk = last;
+                    }
+                    put(chunk);
+                }
+            }
+            put(END);
+
+            // wait for the workers, who close themselves when the input is done:
+            for(Thread thread: threads) thread.join();
+        }
+        catch(Throwable e)
+        {
+            if(failure == null) failure = e;
+            for(Thread thread: threads) thread.interrupt();
+        }
+
+        if(failure != null)
+        {
+            // a failed task doesn't write its profiles or output, but mustn't leave their threads running:
+            for(Worker worker: workers) worker.abortTask();
+            RuntimeException re;
+            if(failure instanceof WorkerException) re = (WorkerException) failure;
+            else
+            {
+                String keyString = getStringValue(key);
+                if(keyString.length() > 200) keyString = keyString.substring(0, 200) + "...";
+                String valueString = getStringValue(value);
+                if(valueString.length() > 200) valueString = valueString.substring(0, 200) + "...";
+                re = new RuntimeException("Error caught reading map record key: '" + keyString +
+                        "', value: '" + valueString + "'", failure);
+            }
+            log.error("Exception rethrown", re);
+            throw re;
+        }
+        closeWorkers();
+        log.info("Job finished, duration: " + (System.currentTimeMillis() - jobStart) + "ms");
+    }
+
+    /**
+     * Calls mapclose on the primary, then finishes each worker's output and writes the combined results.
+     *
+     * @throws IOException
+     */
+    private void closeWorkers() throws IOException {
+        PySystemState mainState = Py.getSystemState();
+        try
+        {
+            Worker primary = workers[0];
+            Py.setSystemState(primary.getSystemState());
+            primary.callCloseFunction();
+            PythonInterpreter[] interpreters = new PythonInterpreter[workers.length];
+            for(int i = 0; i < workers.length; i++)
+            {
+                Py.setSystemState(workers[i].getSystemState());
+                workers[i].closeTask();
+                interpreters[i] = workers[i].pythonInterpreter;
+            }
+            Py.setSystemState(primary.getSystemState());
+            primary.jobWrapper.close();
+            ResultSerializer.serialize(jobConf, interpreters);
+            for(Worker worker: workers)
+            {
+                worker.pythonInterpreter.get("happy").__setattr__(new PyString("job"), Py.None);
+            }
+        }
+        finally
+        {
+            Py.setSystemState(mainState);
+        }
+    }
+
+    /**
+     * Returns the instance attributes of a job object.
+     *
+     * @param jobObject
+     * @return
+     */
+    private static Map<String, PyObject> getAttributes(PyObject jobObject) {
+        Map<String, PyObject> attributes = new HashMap<String, PyObject>();
+        PyObject dict = jobObject.__findattr__("__dict__");
+        if(dict == null) return attributes;
+        PyObject iterator = dict.invoke("items").__iter__();
+        PyObject item;
+        while((item = iterator.__iternext__()) != null)
+        {
+            attributes.put(item.__getitem__(0).toString(), item.__getitem__(1));
+        }
+        return attributes;
+    }
+
+    /**
+     * Puts a chunk on the queue, giving up if a worker has failed.
+     *
+     * @param chunk
+     * @throws InterruptedException
+     */
+    private void put(Object[] chunk) throws InterruptedException {
+        while(failure == null)
+        {
+            if(queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) return;
+        }
+    }
+
+    /////////////////////////////////////////////////////
+
+    /**
+     * A map worker with its own interpreter and job object.
+     */
+    private class Worker extends HappyMap
+    {
+        /**
+         * Shares the primary's happy.job, and the job object attributes that its mapconfig added,
+         * replaced or removed.
+         */
+        private void share(Worker primary, Map<String, PyObject> before, Map<String, PyObject> after) {
+            jobWrapper = primary.jobWrapper;
+            pythonInterpreter.get("happy").__setattr__(new PyString("job"), PyJavaType.wrapJavaObject(jobWrapper));
+            for(Map.Entry<String, PyObject> attribute: after.entrySet())
+            {
+                if(before.get(attribute.getKey()) != attribute.getValue())
+                {
+                    jobObject.__setattr__(attribute.getKey().intern(), attribute.getValue());
+                }
+            }
+            for(String name: before.keySet())
+            {
+                if(!after.containsKey(name)) jobObject.__delattr__(name.intern());
+            }
+        }
+
+        public void work() {
+            Py.setSystemState(systemState);
+            QueueIterator queueIterator = new QueueIterator(batchSize > 0, stats);
+            try
+            {
+                startProfiler();
+                long callStart = System.nanoTime();
+                workFunction.__call__(queueIterator, pytask);
+                stats.addCallTime(System.nanoTime() - callStart);
+            }
+            catch(Throwable e)
+            {
+                String keyString = getStringValue(queueIterator.key);
+                if(keyString.length() > 200) keyString = keyString.substring(0, 200) + "...";
+                String value = getStringValue(queueIterator.value);
+                if(value.length() > 200) value = value.substring(0, 200) + "...";
+                String message = "Error caught on map record key: '" + keyString + "', value: '" + value + "'";
+                synchronized(HappyMultithreadedMap.this)
+                {
+                    if(failure == null) failure = new WorkerException(message, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A Python iterator over the records or batches of records on the shared queue.
+     */
+    private class QueueIterator extends PyIterator
+    {
+        private final boolean batches;
+        private final HappyStats stats;
+        private Object[] chunk;
+        private int position;
+        private Object key;
+        private Object value;
+
+        private QueueIterator(boolean batches, HappyStats stats) {
+            this.batches = batches;
+            this.stats = stats;
+        }
+
+        public PyObject __iternext__() {
+            if(chunk == null || position >= chunk.length)
+            {
+                if(!nextChunk()) return null;
+            }
+            if(batches)
+            {
+                int count = chunk.length / 2;
+                PyObject[] batchKeys = new PyObject[count];
+                PyObject[] batchValues = new PyObject[count];
+                for(int i = 0; i < count; i++)
+                {
+                    key = chunk[i * 2];
+                    value = chunk[i * 2 + 1];
+                    stats.addInput(key, value);
+                    long start = stats.start(HappyStats.CONVERT);
+                    batchKeys[i] = getPyValue(key);
+                    batchValues[i] = getPyValue(value);
+                    stats.stop(HappyStats.CONVERT, start);
+                }
+                position = chunk.length;
+                return new PyTuple(new PyObject[]{new PyList(batchKeys), new PyList(batchValues)});
+            }
+            else
+            {
+                key = chunk[position++];
+                value = chunk[position++];
+                stats.addInput(key, value);
+                long start = stats.start(HappyStats.CONVERT);
+                PyObject record = new PyTuple(new PyObject[]{getPyValue(key), getPyValue(value)});
+                stats.stop(HappyStats.CONVERT, start);
+                return record;
+            }
+        }
+
+        private boolean nextChunk() {
+            try
+            {
+                Object[] next = null;
+                while(next == null)
+                {
+                    if(failure != null) return false;
+                    next = queue.poll(100, TimeUnit.MILLISECONDS);
+                }
+                if(next == END)
+                {
+                    // leave the end marker for the other workers:
+                    queue.put(END);
+                    return false;
+                }
+                chunk = next;
+                position = 0;
+                return true;
+            }
+            catch(InterruptedException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static class WorkerException extends RuntimeException
+    {
+        private WorkerException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.python.core.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A sampling profiler for Python map and reduce functions.
+ * A background thread periodically walks the Jython frame stack of the profiled thread and counts
+ * identical stacks.  The counts are written in the folded stack format used by flame graph tools,
+ * one "frame;frame;frame count" line per stack.
+ */
+public class HappyProfiler implements Runnable {
+    public static final String PROFILE_KEY = "happy.profile";
+    public static final String INTERVAL_KEY = "happy.profile.interval";
+    public static final int DEFAULT_INTERVAL = 10;
+    public static final String PROFILE_DIR = "_hprofile";
+    public static final String MERGED_FILE = "_hprofile.folded";
+
+    // distinguishes the profiles of several threads of one task written in the same millisecond:
+    private static final AtomicInteger sequence = new AtomicInteger();
+
+    private final Map<String, long[]> stacks = new HashMap<String, long[]>();
+    private final int interval;
+    private final ThreadState threadState;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Starts profiling the calling thread.
+     *
+     * @param interval sampling interval in milliseconds.
+     */
+    public HappyProfiler(int interval) {
+        this.interval = interval;
+        threadState = Py.getThreadState();
+        thread = new Thread(this, "happy-profiler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        StringBuilder sb = new StringBuilder();
+        List<PyFrame> frames = new ArrayList<PyFrame>();
+        while(running)
+        {
+            try
+            {
+                Thread.sleep(interval);
+            }
+            catch(InterruptedException e)
+            {
+                return;
+            }
+            // the frame chain is read without locking, so this is a best-effort snapshot:
+            frames.clear();
+            for(PyFrame frame = threadState.frame; frame != null; frame = frame.f_back) frames.add(frame);
+            if(frames.isEmpty()) continue;
+            sb.setLength(0);
+            for(int i = frames.size() - 1; i >= 0; i--)
+            {
+                if(sb.length() > 0) sb.append(';');
+                appendFrame(sb, frames.get(i));
+            }
+            String stack = sb.toString();
+            synchronized(stacks)
+            {
+                long[] count = stacks.get(stack);
+                if(count == null) stacks.put(stack, new long[]{1});
+                else count[0]++;
+            }
+        }
+    }
+
+    private static void appendFrame(StringBuilder sb, PyFrame frame) {
+        PyCode code = frame.f_code;
+        if(code == null)
+        {
+            sb.append("?");
+            return;
+        }
+        if(code instanceof PyBaseCode)
+        {
+            String filename = ((PyBaseCode)code).co_filename;
+            if(filename != null)
+            {
+                sb.append(filename.substring(filename.lastIndexOf('/') + 1)).append(':');
+            }
+        }
+        sb.append(code.co_name);
+    }
+
+    /**
+     * Stops sampling.
+     */
+    public void stop() {
+        running = false;
+        thread.interrupt();
+        try
+        {
+            thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the folded stacks for this task to the _hprofile directory of the job output.
+     *
+     * @param jobConf
+     * @param taskType
+     * @throws IOException
+     */
+    public void write(JobConf jobConf, String taskType) throws IOException {
+        synchronized(stacks)
+        {
+            if(stacks.isEmpty()) return;
+            FileSystem fs = FileSystem.get(jobConf);
+            Path workPath = FileOutputFormat.getWorkOutputPath(jobConf);
+            Path profilePath = new Path(workPath, PROFILE_DIR + "/" + taskType + "-" +
+                    jobConf.get("mapred.task.partition") + "-" + System.currentTimeMillis() + "-" +
+                    sequence.getAndIncrement() + ".folded");
+            Writer out = new OutputStreamWriter(fs.create(profilePath), "UTF-8");
+            writeStacks(stacks, out);
+            out.close();
+        }
+    }
+
+    /**
+     * Merges all of the task profiles for a job into a single folded stack file in the output directory,
+     * and deletes the per-task files.
+     *
+     * @param jobConf
+     * @return the path of the merged file, or null if no profiles were written.
+     * @throws IOException
+     */
+    public static String merge(JobConf jobConf) throws IOException {
+        FileSystem fs = FileSystem.get(jobConf);
+        Path outputPath = FileOutputFormat.getOutputPath(jobConf);
+        Path profilePath = new Path(outputPath, PROFILE_DIR);
+        if(!fs.exists(profilePath)) return null;
+        Map<String, long[]> merged = new HashMap<String, long[]>();
+        for(FileStatus file: fs.listStatus(profilePath))
+        {
+            if(file.isDir() || !file.getPath().getName().endsWith(".folded")) continue;
+            BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(file.getPath()), "UTF-8"));
+            String line;
+            while((line = in.readLine()) != null)
+            {
+                int space = line.lastIndexOf(' ');
+                if(space < 0) continue;
+                String stack = line.substring(0, space);
+                long count = Long.parseLong(line.substring(space + 1));
+                long[] total = merged.get(stack);
+                if(total == null) merged.put(stack, new long[]{count});
+                else total[0] += count;
+            }
+            in.close();
+        }
+        Path mergedPath = new Path(outputPath, MERGED_FILE);
+        Writer out = new OutputStreamWriter(fs.create(mergedPath), "UTF-8");
+        writeStacks(merged, out);
+        out.close();
+        fs.delete(profilePath, true);
+        return mergedPath.toString();
+    }
+
+    private static void writeStacks(Map<String, long[]> stacks, Writer out) throws IOException {
+        for(Map.Entry<String, long[]> entry: stacks.entrySet())
+        {
+            out.write(entry.getKey());
+            out.write(' ');
+            out.write(Long.toString(entry.getValue()[0]));
+            out.write('\n');
+        }
+    }
+}
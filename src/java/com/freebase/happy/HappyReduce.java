@@ -50,14 +50,23 @@ public class HappyReduce
         ReduceIterator reduceIterator = null;
         try
         {
-            if(pytask == null) pytask = PyJavaType.wrapJavaObject(
-                    new TaskWrapper(outputCollector, reporter,
-                            jobConf.getOutputKeyClass(), jobConf.getOutputValueClass()));
-            reduceIterator = new ReduceIterator(iterator);
+            if(pytask == null)
+            {
+                taskWrapper = new TaskWrapper(outputCollector, reporter,
+                        jobConf.getOutputKeyClass(), jobConf.getOutputValueClass(), jobConf);
+                taskWrapper.setStats(stats);
+                pytask = PyJavaType.wrapJavaObject(taskWrapper);
+            }
+            reduceIterator = new ReduceIterator(iterator, stats);
+            startProfiler();
+            long callStart = System.nanoTime();
             workFunction.__call__(getPyValue(key), reduceIterator, pytask);
+            stats.addCallTime(System.nanoTime() - callStart);
         }
         catch(Throwable e)
         {
+            // a failed task doesn't write its profile or output, but mustn't leave their threads running:
+            abortTask();
             RuntimeException re;
             if(reduceIterator != null)
             {
@@ -0,0 +1,186 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Low-overhead per-task timing and record counters.
+ * Phases are timed on every Nth call and the sampled times are scaled up by the call count,
+ * so only a fraction of records pay for System.nanoTime().
+ * The totals are published as Hadoop counters in the "Happy" group when the task closes.
+ */
+public class HappyStats {
+    public static final String GROUP = "Happy";
+    public static final String SAMPLE_KEY = "happy.stats.sampleinterval";
+    public static final int DEFAULT_SAMPLE_INTERVAL = 64;
+
+    /** Reading records from the RecordReader or the reduce value iterator. */
+    public static final int READ = 0;
+    /** Converting keys and values to PyObjects. */
+    public static final int CONVERT = 1;
+    /** Serializing and collecting output in TaskWrapper. */
+    public static final int COLLECT = 2;
+    private static final String[] PHASE_NAMES = {"READ", "CONVERT", "COLLECT"};
+
+    private final String prefix;
+    private final int interval;
+    private final long[] calls = new long[PHASE_NAMES.length];
+    private final long[] samples = new long[PHASE_NAMES.length];
+    private final long[] sampledNanos = new long[PHASE_NAMES.length];
+    private long callNanos = 0;
+    private boolean collectInCall = true;
+    private long inputRecords = 0;
+    private long inputBytes = 0;
+    private long outputRecords = 0;
+    private long outputBytes = 0;
+
+    /**
+     * @param prefix counter name prefix, such as "MAP" or "REDUCE".
+     * @param jobConf
+     */
+    public HappyStats(String prefix, JobConf jobConf) {
+        this(prefix, jobConf.getInt(SAMPLE_KEY, DEFAULT_SAMPLE_INTERVAL));
+    }
+
+    /**
+     * @param prefix counter name prefix, such as "MAP" or "REDUCE".
+     * @param interval the sampling interval, or 0 to only count records.
+     */
+    public HappyStats(String prefix, int interval) {
+        this.prefix = prefix;
+        this.interval = interval;
+    }
+
+    /**
+     * Set to false if output is collected on another thread, so collect time isn't part of the Python call time.
+     *
+     * @param collectInCall
+     */
+    public void setCollectInCall(boolean collectInCall) {
+        this.collectInCall = collectInCall;
+    }
+
+    /**
+     * Starts timing a phase.  Returns 0 if this call isn't sampled.
+     *
+     * @param phase
+     * @return
+     */
+    public long start(int phase) {
+        if(interval <= 0 || ++calls[phase] % interval != 0) return 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * Stops timing a phase started with start().
+     *
+     * @param phase
+     * @param start
+     */
+    public void stop(int phase, long start) {
+        if(start == 0) return;
+        sampledNanos[phase] += System.nanoTime() - start;
+        samples[phase]++;
+    }
+
+    /**
+     * Adds unsampled time spent in calls to the user's Python function, including time spent in the other phases.
+     *
+     * @param nanos
+     */
+    public void addCallTime(long nanos) {
+        callNanos += nanos;
+    }
+
+    public void addInput(Object key, Object value) {
+        inputRecords++;
+        inputBytes += sizeOf(key) + sizeOf(value);
+    }
+
+    public void addInput(Object value) {
+        inputRecords++;
+        inputBytes += sizeOf(value);
+    }
+
+    public void addOutput(Object key, Object value) {
+        outputRecords++;
+        outputBytes += sizeOf(key) + sizeOf(value);
+    }
+
+    /**
+     * Returns the estimated total time spent in a phase, in nanoseconds.
+     *
+     * @param phase
+     * @return
+     */
+    public long getEstimatedNanos(int phase) {
+        if(samples[phase] == 0) return 0;
+        return (long) (sampledNanos[phase] * ((double) calls[phase] / samples[phase]));
+    }
+
+    /**
+     * Publishes the counters to the task's reporter.
+     *
+     * @param reporter
+     */
+    public void publish(Reporter reporter) {
+        if(reporter == null) return;
+        long phaseNanos = 0;
+        for(int phase = 0; phase < PHASE_NAMES.length; phase++)
+        {
+            long nanos = getEstimatedNanos(phase);
+            if(phase != COLLECT || collectInCall) phaseNanos += nanos;
+            reporter.incrCounter(GROUP, prefix + "_" + PHASE_NAMES[phase] + "_MS", nanos / 1000000);
+        }
+        reporter.incrCounter(GROUP, prefix + "_PYTHON_MS", Math.max(0, callNanos - phaseNanos) / 1000000);
+        reporter.incrCounter(GROUP, prefix + "_INPUT_RECORDS", inputRecords);
+        reporter.incrCounter(GROUP, prefix + "_INPUT_BYTES", inputBytes);
+        reporter.incrCounter(GROUP, prefix + "_OUTPUT_RECORDS", outputRecords);
+        reporter.incrCounter(GROUP, prefix + "_OUTPUT_BYTES", outputBytes);
+    }
+
+    /**
+     * Returns the size of a Writable if it can be found without serializing it, otherwise 0.
+     *
+     * @param o
+     * @return
+     */
+    private static long sizeOf(Object o) {
+        if(o instanceof Text) return ((Text)o).getLength();
+        else if(o instanceof BytesWritable) return ((BytesWritable)o).getSize();
+        else if(o instanceof String) return ((String)o).length();
+        else return 0;
+    }
+}
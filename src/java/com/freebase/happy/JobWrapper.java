@@ -34,14 +34,18 @@ import org.apache.hadoop.mapred.JobConf;
 import org.python.core.PyObject;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A wrapper for the current JobConf in a job.  Holds task-wide configuration and context.
+ * With mapthreads, all of a task's map threads share one JobWrapper.
  */
 public class JobWrapper {
     private JobConf jobConf;
     private List<PyObject> closeables = new ArrayList<PyObject>();
+    private Map<String, PyObject> partitionedCollectors = new HashMap<String, PyObject>();
 
     public JobWrapper(JobConf jobConf) {
         this.jobConf = jobConf;
@@ -66,16 +70,42 @@ public class JobWrapper {
      *
      * @param closeable
      */
-    public void addCloseable(PyObject closeable)
+    public synchronized void addCloseable(PyObject closeable)
     {
         closeables.add(closeable);
     }
 
+    /**
+     * Returns the partitioned collector for a path that was created earlier in this task, or creates
+     * one with the given factory.  Threads of the same task asking for the same path get the same collector.
+     *
+     * @param path
+     * @param factory called with no arguments to create the collector.
+     * @return
+     */
+    public synchronized PyObject getPartitionedCollector(String path, PyObject factory)
+    {
+        PyObject collector = partitionedCollectors.get(path);
+        if(collector == null)
+        {
+            collector = factory.__call__();
+            partitionedCollectors.put(path, collector);
+        }
+        return collector;
+    }
+
     /**
      * Calls close() on all closeables.
      */
     public void close()
     {
+        List<PyObject> closeables;
+        synchronized(this)
+        {
+            closeables = new ArrayList<PyObject>(this.closeables);
+            this.closeables.clear();
+            partitionedCollectors.clear();
+        }
         for(PyObject closeable: closeables)
         {
             PyObject close = closeable.__getattr__("close");
@@ -31,15 +31,27 @@
 package com.freebase.happy;
 
 import com.freebase.happy.bjson.BJSON;
+import com.freebase.happy.bjson.BJSONView;
+import com.freebase.happy.json.JSONByteEncoder;
 import com.freebase.happy.json.JSONWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
+import org.python.core.Py;
+import org.python.core.PyDictionary;
+import org.python.core.PyList;
 import org.python.core.PyObject;
+import org.python.core.PyTuple;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A wrapper for the output collector.
@@ -51,19 +63,153 @@ public class TaskWrapper
     private OutputCollector collector;
     private Reporter reporter;
     private String inputPath;
+    private AggregateBuffer aggregateBuffer;
+    private long aggregateBufferSize = AggregateBuffer.DEFAULT_BUFFERSIZE * 1024L * 1024L;
+    private AsyncWriter asyncWriter;
+    private HappyStats stats = new HappyStats("TASK", 0);
+    // each task thread has its own TaskWrapper, so the counter handles aren't locked:
+    private final Map<String, Map<String, Counter>> counters = new HashMap<String, Map<String, Counter>>();
+    private Counter lastCounter;
+
+    public static final String ASYNC_KEY = "happy.asyncoutput";
+    public static final String ASYNC_BUFFER_KEY = "happy.asyncoutput.buffer";
+    public static final int DEFAULT_ASYNC_BUFFER = 4096;
+    public static final String RAW_UNICODE_KEY = "happy.json.rawunicode";
+    public static final String JSON_TEXT_KEY = "happy.text.json";
 
     public TaskWrapper(OutputCollector collector, Reporter reporter, Class keyclass, Class valueclass) {
+        this(collector, reporter, keyclass, valueclass, null);
+    }
+
+    public TaskWrapper(OutputCollector collector, Reporter reporter, Class keyclass, Class valueclass, JobConf jobConf) {
         this.collector = collector;
         this.reporter = reporter;
-        keySerializer = getSerializer(keyclass);
-        valueSerializer = getSerializer(valueclass);
+        boolean jsonText = jobConf != null && jobConf.getBoolean(JSON_TEXT_KEY, false);
+        boolean rawUnicode = jobConf != null && jobConf.getBoolean(RAW_UNICODE_KEY, false);
+        keySerializer = getSerializer(keyclass, jsonText, rawUnicode, true);
+        valueSerializer = getSerializer(valueclass, jsonText, rawUnicode, false);
+        if(jobConf == null) return;
+        aggregateBufferSize = jobConf.getInt(AggregateBuffer.BUFFERSIZE_KEY, AggregateBuffer.DEFAULT_BUFFERSIZE) * 1024L * 1024L;
+        if(jobConf.getBoolean(ASYNC_KEY, false))
+        {
+            asyncWriter = new AsyncWriter(jobConf.getInt(ASYNC_BUFFER_KEY, DEFAULT_ASYNC_BUFFER));
+        }
     }
 
     public void collect(Object key, Object value) throws IOException
     {
         if(key == null) throw new NullPointerException("Null key specified in collect");
         if(value == null) throw new NullPointerException("Null value specified in collect");
-        collector.collect(keySerializer.serialize(key), valueSerializer.serialize(value));
+        if(asyncWriter != null) asyncWriter.collect(key, value);
+        else write(key, value);
+    }
+
+    private void write(Object key, Object value) throws IOException
+    {
+        long start = stats.start(HappyStats.COLLECT);
+        Object serializedKey = keySerializer.serialize(key);
+        Object serializedValue = valueSerializer.serialize(value);
+        collector.collect(serializedKey, serializedValue);
+        stats.stop(HappyStats.COLLECT, start);
+        stats.addOutput(serializedKey, serializedValue);
+    }
+
+    /**
+     * Sets the stats object that output is counted in.
+     *
+     * @param stats
+     */
+    public void setStats(HappyStats stats)
+    {
+        this.stats = stats;
+        stats.setCollectInCall(asyncWriter == null);
+    }
+
+    public Reporter getReporter()
+    {
+        return reporter;
+    }
+
+    /**
+     * Aggregates a value into an in-memory buffer instead of collecting it.
+     * The aggregated values are collected when the buffer fills up and when the task is closed.
+     *
+     * @param key
+     * @param value
+     * @param op one of "sum", "count", "min", "max" or "concat".
+     * @throws IOException
+     */
+    public void aggregate(PyObject key, PyObject value, String op) throws IOException
+    {
+        if(key == null || key == Py.None) throw new NullPointerException("Null key specified in aggregate");
+        if(aggregateBuffer == null) aggregateBuffer = new AggregateBuffer(aggregateBufferSize);
+        if(aggregateBuffer.aggregate(key, value, op)) aggregateBuffer.flush(this);
+    }
+
+    /**
+     * Collects any values left in the aggregation buffer and waits for any asynchronous output to be written.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        if(aggregateBuffer != null) aggregateBuffer.flush(this);
+        if(asyncWriter != null) asyncWriter.close();
+    }
+
+    /**
+     * Stops any asynchronous output thread without writing what it has buffered, for tasks that fail.
+     * Does nothing once the task has been closed.
+     */
+    public void abort()
+    {
+        if(asyncWriter != null) asyncWriter.abort();
+    }
+
+    /**
+     * Returns a handle for a Hadoop counter.  Hot loops should keep the handle and call increment() on it
+     * rather than calling counter(), which looks the handle up by name.
+     *
+     * @param group
+     * @param name
+     * @return
+     */
+    public Counter getCounter(String group, String name)
+    {
+        // loops usually increment the same counter again:
+        Counter counter = lastCounter;
+        if(counter != null && counter.group.equals(group) && counter.name.equals(name)) return counter;
+        Map<String, Counter> groupCounters = counters.get(group);
+        if(groupCounters == null)
+        {
+            groupCounters = new HashMap<String, Counter>();
+            counters.put(group, groupCounters);
+        }
+        counter = groupCounters.get(name);
+        if(counter == null)
+        {
+            counter = new Counter(reporter, group, name);
+            groupCounters.put(name, counter);
+        }
+        lastCounter = counter;
+        return counter;
+    }
+
+    /**
+     * Increments a Hadoop counter, which the client shows while the job runs.
+     *
+     * @param group
+     * @param name
+     * @param delta
+     */
+    public void counter(String group, String name, long delta)
+    {
+        getCounter(group, name).increment(delta);
+    }
+
+    public void counter(String group, String name)
+    {
+        counter(group, name, 1);
     }
 
     public void progress()
@@ -85,16 +231,273 @@ public class TaskWrapper
         return inputPath;
     }
 
-    private Serializer getSerializer(Class clazz)
+    /**
+     * A handle for one Hadoop counter.  The handle keeps the task's own counter, so increments skip the
+     * reporter's lookup by group and name, and still show up in the next progress report.
+     */
+    public static class Counter
+    {
+        private final Reporter reporter;
+        private final String group;
+        private final String name;
+        private final Counters.Counter counter;
+
+        private Counter(Reporter reporter, String group, String name)
+        {
+            this.reporter = reporter;
+            this.group = group;
+            this.name = name;
+            // Reporter.NULL has no counters:
+            counter = reporter.getCounter(group, name);
+        }
+
+        public void increment(long delta)
+        {
+            if(counter != null) counter.increment(delta);
+            else reporter.incrCounter(group, name, delta);
+        }
+
+        public void increment()
+        {
+            increment(1);
+        }
+    }
+
+    private Serializer getSerializer(Class clazz, boolean jsonText, boolean rawUnicode, boolean key)
     {
-        if(clazz.equals(Text.class)) return new TextSerializer();
+        if(clazz.equals(Text.class)) return jsonText ? new JSONTextSerializer(rawUnicode) : new TextSerializer();
         else if(clazz.equals(JSONWritable.class)) return new JSONSerializer();
-        else if(clazz.equals(BJSON.class)) return new BJSONSerializer();
+        else if(clazz.equals(BJSON.class)) return new BJSONSerializer(key);
         else return new DefaultSerializer();
     }
 
     /////////////////////////////////////////////////////
 
+    /**
+     * Serializes and collects output on a background thread.
+     * Keys and values are handed over through a bounded ring buffer; collect() blocks while the buffer is full,
+     * and errors from the writer thread are rethrown to the caller.
+     *
+     * Dictionaries and lists can be changed by the caller after they are collected, so collect() queues
+     * copies of their structure; the values they hold are shared, and all encoding is left to the writer thread.
+     */
+    private class AsyncWriter implements Runnable
+    {
+        private final Object[] keys;
+        private final Object[] values;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final Thread thread;
+        private int head = 0;
+        private int count = 0;
+        private boolean closed = false;
+        private volatile boolean aborted = false;
+        private volatile Throwable error;
+
+        private AsyncWriter(int size) {
+            if(size < 1) throw new IllegalArgumentException("Invalid async output buffer size " + size);
+            keys = new Object[size];
+            values = new Object[size];
+            thread = new Thread(this, "happy-output");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void collect(Object key, Object value) throws IOException {
+            checkError();
+            key = copy(key);
+            value = copy(value);
+            lock.lock();
+            try
+            {
+                while(count == keys.length)
+                {
+                    checkError();
+                    notFull.await();
+                }
+                int tail = (head + count) % keys.length;
+                keys[tail] = key;
+                values[tail] = value;
+                count++;
+                notEmpty.signal();
+            }
+            catch(InterruptedException e)
+            {
+                throw new IOException("Interrupted while collecting output");
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Copies the dictionaries, lists and tuples that make up a value, so later changes by the caller
+         * aren't written.  Strings and numbers are immutable and are shared with the caller.
+         */
+        private Object copy(Object o) {
+            if(o instanceof BJSONView)
+            {
+                BJSONView view = (BJSONView) o;
+                // an unchanged view reads its bytes, which are never changed, so it just needs detaching:
+                if(!view.isMaterialized()) return view.detach();
+                o = view.materialize();
+            }
+            if(o instanceof PyDictionary)
+            {
+                PyDictionary dictionary = (PyDictionary) o;
+                PyDictionary copy = new PyDictionary();
+                PyObject iterator = dictionary.iteritems();
+                PyTuple tuple;
+                while((tuple = (PyTuple) iterator.__iternext__()) != null)
+                {
+                    copy.__setitem__(tuple.pyget(0), (PyObject) copy(tuple.pyget(1)));
+                }
+                return copy;
+            }
+            if(o instanceof PyList)
+            {
+                PyList list = (PyList) o;
+                PyObject[] items = new PyObject[list.__len__()];
+                for(int i = 0; i < items.length; i++) items[i] = (PyObject) copy(list.pyget(i));
+                return new PyList(items);
+            }
+            if(o instanceof PyTuple)
+            {
+                // tuples can't change, but the lists and dicts in them can:
+                PyTuple tuple = (PyTuple) o;
+                PyObject[] items = new PyObject[tuple.__len__()];
+                boolean changed = false;
+                for(int i = 0; i < items.length; i++)
+                {
+                    items[i] = (PyObject) copy(tuple.pyget(i));
+                    changed |= items[i] != tuple.pyget(i);
+                }
+                return changed ? new PyTuple(items) : tuple;
+            }
+            return o;
+        }
+
+        public void abort() {
+            lock.lock();
+            try
+            {
+                if(closed) return;
+                closed = true;
+                aborted = true;
+                for(int i = 0; i < keys.length; i++)
+                {
+                    keys[i] = null;
+                    values[i] = null;
+                }
+                count = 0;
+                notEmpty.signal();
+                notFull.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            thread.interrupt();
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void close() throws IOException {
+            lock.lock();
+            try
+            {
+                closed = true;
+                notEmpty.signal();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new IOException("Interrupted while closing output");
+            }
+            checkError();
+        }
+
+        public void run() {
+            Object[] batchKeys = new Object[keys.length];
+            Object[] batchValues = new Object[values.length];
+            try
+            {
+                while(true)
+                {
+                    // take everything that is buffered in one go:
+                    int batchSize;
+                    lock.lock();
+                    try
+                    {
+                        while(count == 0 && !closed) notEmpty.await();
+                        if(count == 0 || aborted) return;
+                        batchSize = count;
+                        for(int i = 0; i < batchSize; i++)
+                        {
+                            int index = (head + i) % keys.length;
+                            batchKeys[i] = keys[index];
+                            batchValues[i] = values[index];
+                            keys[index] = null;
+                            values[index] = null;
+                        }
+                        head = (head + batchSize) % keys.length;
+                        count = 0;
+                        notFull.signalAll();
+                    }
+                    finally
+                    {
+                        lock.unlock();
+                    }
+                    for(int i = 0; i < batchSize; i++)
+                    {
+                        if(aborted) return;
+                        write(batchKeys[i], batchValues[i]);
+                        batchKeys[i] = null;
+                        batchValues[i] = null;
+                    }
+                }
+            }
+            catch(Throwable e)
+            {
+                error = e;
+                // wake up any blocked collect:
+                lock.lock();
+                try
+                {
+                    notFull.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private void checkError() throws IOException {
+            Throwable e = error;
+            if(e == null) return;
+            if(e instanceof IOException) throw (IOException) e;
+            IOException ioe = new IOException("Error writing output: " + e);
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
     private interface Serializer
     {
         Object serialize(Object o);
@@ -104,6 +507,11 @@ public class TaskWrapper
     {
         private BJSON bjson = new BJSON();
 
+        private BJSONSerializer(boolean canonical) {
+            // keys are written in the canonical encoding, so they can be sorted as bytes:
+            bjson.setCanonical(canonical);
+        }
+
         public Object serialize(Object o) {
             bjson.setObject(o);
             return bjson;
@@ -120,6 +528,37 @@ public class TaskWrapper
         }
     }
 
+    /**
+     * Writes dictionaries and lists as JSON text, straight to UTF-8, when HappyJob.jsontext is set.
+     */
+    private static class JSONTextSerializer implements Serializer
+    {
+        private Text text = new Text();
+        private JSONByteEncoder encoder;
+        private final boolean rawUnicode;
+
+        private JSONTextSerializer(boolean rawUnicode) {
+            this.rawUnicode = rawUnicode;
+        }
+
+        public Object serialize(Object o) {
+            if(o instanceof PyDictionary || o instanceof PyList || o instanceof BJSONView)
+            {
+                if(encoder == null) encoder = new JSONByteEncoder(rawUnicode);
+                try
+                {
+                    encoder.encode(o, text);
+                }
+                catch(IOException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+            else text.set(o.toString());
+            return text;
+        }
+    }
+
     private static class JSONSerializer implements Serializer
     {
         private JSONWritable json = new JSONWritable();
@@ -133,6 +572,7 @@ public class TaskWrapper
     private static class DefaultSerializer implements Serializer
     {
         public Object serialize(Object o) {
+            if(o instanceof PyObject) return ((PyObject)o).__tojava__(Object.class);
             return o;
         }
     }
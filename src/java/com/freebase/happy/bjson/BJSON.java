@@ -30,8 +30,13 @@
 
 package com.freebase.happy.bjson;
 
+import com.freebase.happy.json.StringInterner;
 import com.freebase.happy.util.TextSerializer;
-import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.io.WritableUtils;
 import org.python.core.*;
 
@@ -39,101 +44,369 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Serializable;
-import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
 
 /**
+ * A binary JSON Writable.
  *
+ * Records are written in version 2 format: a header byte, then the value's tokens.  Integers are zig-zag
+ * variable length longs, floats take 4 bytes or fewer when that is exact, and short strings are written
+ * once and then referred to by number.  The string dictionary normally starts over with every record, so
+ * records can be sorted and shuffled.  BJSONCollector keeps it across a SequenceFile block instead, and
+ * marks the first record of each block with the reset flag.  Version 1 records, which have no header, can
+ * still be read.
+ *
+ * Keys are written in the canonical encoding of BJSONCanonical instead, which sorts as bytes, so the
+ * registered comparator can order and group keys without decoding them.
  */
-public class BJSON implements Writable, Serializable {
-    private static final byte TOKEN_NULL = 0;
-    private static final byte TOKEN_STRING = 1;
-    private static final byte TOKEN_LIST = 2;
-    private static final byte TOKEN_DICT = 3;
-    private static final byte TOKEN_INT = 4;
-    private static final byte TOKEN_FLOAT = 5;
-    private static final byte TOKEN_BOOL_TRUE = 6;
-    private static final byte TOKEN_BOOL_FALSE = 7;
-
-    private static StringInternMap internMap = new StringInternMap();
+public class BJSON implements WritableComparable, Serializable {
+    static final byte TOKEN_NULL = 0;
+    static final byte TOKEN_STRING = 1;
+    static final byte TOKEN_LIST = 2;
+    static final byte TOKEN_DICT = 3;
+    static final byte TOKEN_INT = 4;
+    static final byte TOKEN_FLOAT = 5;
+    static final byte TOKEN_BOOL_TRUE = 6;
+    static final byte TOKEN_BOOL_FALSE = 7;
+    // version 2 tokens:
+    static final byte TOKEN_STRING_DEF = 8;
+    static final byte TOKEN_STRING_REF = 9;
+    static final byte TOKEN_LONG = 10;
+    static final byte TOKEN_BIGINT = 11;
+    static final byte TOKEN_FLOAT32 = 12;
+    static final byte TOKEN_FLOAT_LONG = 13;
+
+    // version 2 record header; version 1 records start with a token, which never has the high bit set:
+    static final int VERSION_2 = 0x80;
+    static final int FLAG_RESET = 0x01;
+    static final int CANONICAL = 0x82;
+
+    static
+    {
+        WritableComparator.define(BJSON.class, new Comparator());
+    }
+
+    // strings up to this length are put in the dictionary:
+    private static final int MAX_DICTIONARY_STRING = 64;
+    private static final int MAX_DICTIONARY_SIZE = 65536;
+    // doubles that are whole numbers below 2^53 are exact as longs:
+    private static final double MAX_EXACT_LONG = 9007199254740992.0;
 
     private TextSerializer text = new TextSerializer();
     private Object object;
+    // the serialized tokens of the last record read, which are only decoded when needed:
+    private transient DataOutputBuffer buffer = new DataOutputBuffer();
+    private transient boolean serialized = false;
+    private transient boolean bufferShared = false;
+    // strings defined by the records read so far, and whether the last record defined all that it used:
+    private transient List<PyObject> readDictionary;
+    private transient boolean selfContained = true;
+    // strings written since the last reset:
+    private transient Map<String, Integer> writeDictionary;
+    private transient boolean blockDictionary = false;
+    private transient boolean resetPending = true;
+    // the canonical encoding of the object, used for keys, comparisons and hashing:
+    private transient boolean canonical = false;
+    private transient DataOutputBuffer canonicalBuffer;
+    private transient boolean canonicalValid = false;
 
     public Object getObject() {
+        if(object == null && serialized)
+        {
+            try
+            {
+                object = new BJSONReader(buffer.getData(), 0, readDictionary).readValue();
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
         return object;
     }
 
+    /**
+     * Returns a lazy view of the value read by readFields().  Dictionaries and lists are returned as
+     * BJSONViews that look values up in the serialized bytes; other values are decoded.
+     *
+     * @return
+     */
+    public PyObject getView() {
+        if(object != null || !serialized) return (PyObject) getObject();
+        try
+        {
+            PyObject view = BJSONView.valueAt(buffer.getData(), 0, readDictionary);
+            // the view keeps the bytes, so the next record is read into a new buffer:
+            if(view instanceof BJSONView) bufferShared = true;
+            return view;
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
     public void setObject(Object object) {
         this.object = object;
+        serialized = false;
+        canonicalValid = false;
+    }
+
+    /**
+     * Writes records in the canonical key encoding, which the raw comparator can compare as bytes.
+     *
+     * @param canonical
+     */
+    public void setCanonical(boolean canonical) {
+        this.canonical = canonical;
+    }
+
+    /**
+     * Keeps the string dictionary across records until resetDictionary() is called.  Only use this when
+     * records are read back in the order they were written, from the last reset on.
+     *
+     * @param blockDictionary
+     */
+    public void setBlockDictionary(boolean blockDictionary) {
+        this.blockDictionary = blockDictionary;
+        resetPending = true;
+    }
+
+    /**
+     * Starts a new string dictionary with the next record written.
+     */
+    public void resetDictionary() {
+        resetPending = true;
     }
 
     public void write(DataOutput out) throws IOException {
-        write(object, out);
+        if(canonical)
+        {
+            DataOutputBuffer bytes = getCanonicalBytes();
+            out.writeByte(CANONICAL);
+            out.write(bytes.getData(), 0, bytes.getLength());
+            return;
+        }
+        // an unchanged record that defines all of its own strings can be copied as is:
+        if(object == null && serialized && selfContained && !blockDictionary)
+        {
+            out.writeByte(VERSION_2 | FLAG_RESET);
+            out.write(buffer.getData(), 0, buffer.getLength());
+            return;
+        }
+        boolean reset = !blockDictionary || resetPending || writeDictionary == null;
+        if(reset)
+        {
+            if(writeDictionary == null) writeDictionary = new HashMap<String, Integer>();
+            else writeDictionary.clear();
+            resetPending = false;
+        }
+        out.writeByte(VERSION_2 | (reset ? FLAG_RESET : 0));
+        write(getObject(), out);
     }
 
     public void readFields(DataInput in) throws IOException {
-        this.object = read(in);
+        if(buffer == null || bufferShared) buffer = new DataOutputBuffer();
+        else buffer.reset();
+        bufferShared = false;
+        canonicalValid = false;
+        byte header = in.readByte();
+        if((header & 0xFF) == CANONICAL)
+        {
+            // keys are small, so they are decoded right away:
+            if(canonicalBuffer == null) canonicalBuffer = new DataOutputBuffer();
+            else canonicalBuffer.reset();
+            BJSONCanonical.copy(in.readByte(), in, canonicalBuffer);
+            canonicalValid = true;
+            object = BJSONCanonical.decode(canonicalBuffer.getData(), new int[] {0});
+            serialized = false;
+            return;
+        }
+        if((header & VERSION_2) != 0)
+        {
+            selfContained = (header & FLAG_RESET) != 0;
+            // views may still refer to the old dictionary, so it is replaced rather than cleared:
+            if(selfContained || readDictionary == null) readDictionary = new ArrayList<PyObject>();
+            copyValue(in.readByte(), in, buffer);
+        }
+        else
+        {
+            selfContained = true;
+            readDictionary = null;
+            copyValue(header, in, buffer);
+        }
+        object = null;
+        serialized = true;
     }
 
-    //////////////////////////////////////////////////////////////
+    /**
+     * Returns the canonical encoding of the object, encoding it if it hasn't been already.
+     *
+     * @return
+     * @throws IOException
+     */
+    private DataOutputBuffer getCanonicalBytes() throws IOException {
+        if(!canonicalValid)
+        {
+            if(canonicalBuffer == null) canonicalBuffer = new DataOutputBuffer();
+            else canonicalBuffer.reset();
+            BJSONCanonical.encode(getObject(), canonicalBuffer);
+            canonicalValid = true;
+        }
+        return canonicalBuffer;
+    }
 
-    private PyObject read(DataInput in) throws IOException {
-        byte tokenType = in.readByte();
-        switch(tokenType)
+    public int compareTo(Object o) {
+        if(o == this) return 0;
+        try
         {
-            case TOKEN_LIST: return decodeArray(in);
-            case TOKEN_DICT: return decodeObject(in);
-            case TOKEN_STRING: return decodeString(in);
-            case TOKEN_FLOAT: return new PyFloat(in.readDouble());
-            case TOKEN_INT: return new PyInteger(WritableUtils.readVInt(in));
-            case TOKEN_BOOL_TRUE: return Py.True;
-            case TOKEN_BOOL_FALSE: return Py.False;
-            case TOKEN_NULL: return Py.None;
-            default: throw new IOException("invalid token value" + tokenType);
+            DataOutputBuffer a = getCanonicalBytes();
+            DataOutputBuffer b = ((BJSON) o).getCanonicalBytes();
+            return WritableComparator.compareBytes(a.getData(), 0, a.getLength(), b.getData(), 0, b.getLength());
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
         }
     }
 
-    private PyObject decodeString(DataInput in) throws IOException {
-        text.readFields(in);
-        String s = text.getString();
-        if(s.length() == 0) return Py.EmptyString;
-        else return internMap.intern(s);
+    public boolean equals(Object o) {
+        return o instanceof BJSON && compareTo(o) == 0;
     }
 
-    private PyObject decodeObject(DataInput in) throws IOException {
-        int size = WritableUtils.readVInt(in);
-        PyDictionary pyDictionary = new PyDictionary();
-        for(int i = 0; i < size; i++)
+    public int hashCode() {
+        try
         {
-            pyDictionary.__setitem__(read(in), read(in));
+            DataOutputBuffer bytes = getCanonicalBytes();
+            return WritableComparator.hashBytes(bytes.getData(), bytes.getLength());
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Compares serialized BJSON keys.  Canonical records are compared as bytes; others are decoded and
+     * compared by their canonical encodings.
+     */
+    public static class Comparator extends WritableComparator
+    {
+        private final BJSON a = new BJSON();
+        private final BJSON b = new BJSON();
+        private final DataInputBuffer input = new DataInputBuffer();
+
+        public Comparator()
+        {
+            super(BJSON.class);
+        }
+
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+        {
+            if((b1[s1] & 0xFF) == CANONICAL && (b2[s2] & 0xFF) == CANONICAL)
+            {
+                return compareBytes(b1, s1 + 1, l1 - 1, b2, s2 + 1, l2 - 1);
+            }
+            try
+            {
+                input.reset(b1, s1, l1);
+                a.readFields(input);
+                input.reset(b2, s2, l2);
+                b.readFields(input);
+                return a.compareTo(b);
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException(e);
+            }
         }
-        return pyDictionary;
     }
 
-    private PyObject decodeArray(DataInput in) throws IOException {
-        int size = WritableUtils.readVInt(in);
-        PyList objects = new PyList();
-        for(int i = 0; i < size; i++)
+    //////////////////////////////////////////////////////////////
+
+    /**
+     * Copies one value's tokens from the input without decoding them, adding any string definitions to
+     * the read dictionary.
+     */
+    private void copyValue(byte tokenType, DataInput in, DataOutputBuffer out) throws IOException {
+        out.writeByte(tokenType);
+        switch(tokenType)
         {
-            objects.pyadd(read(in));
+            case TOKEN_LIST:
+            {
+                int size = WritableUtils.readVInt(in);
+                WritableUtils.writeVInt(out, size);
+                for(int i = 0; i < size; i++) copyValue(in.readByte(), in, out);
+                break;
+            }
+            case TOKEN_DICT:
+            {
+                int size = WritableUtils.readVInt(in);
+                WritableUtils.writeVInt(out, size);
+                for(int i = 0; i < 2 * size; i++) copyValue(in.readByte(), in, out);
+                break;
+            }
+            case TOKEN_STRING:
+            case TOKEN_BIGINT:
+            {
+                int length = WritableUtils.readVInt(in);
+                WritableUtils.writeVInt(out, length);
+                out.write(in, length);
+                break;
+            }
+            case TOKEN_STRING_DEF:
+            {
+                if(readDictionary == null) throw new IOException("invalid token value" + tokenType);
+                int length = WritableUtils.readVInt(in);
+                WritableUtils.writeVInt(out, length);
+                int start = out.getLength();
+                out.write(in, length);
+                String s = Text.decode(out.getData(), start, length);
+                readDictionary.add(StringInterner.getInstance().intern(s));
+                break;
+            }
+            case TOKEN_FLOAT:
+                out.write(in, 8);
+                break;
+            case TOKEN_FLOAT32:
+                out.write(in, 4);
+                break;
+            case TOKEN_INT:
+            case TOKEN_STRING_REF:
+                WritableUtils.writeVInt(out, WritableUtils.readVInt(in));
+                break;
+            case TOKEN_LONG:
+            case TOKEN_FLOAT_LONG:
+            {
+                byte b;
+                do
+                {
+                    b = in.readByte();
+                    out.writeByte(b);
+                }
+                while((b & 0x80) != 0);
+                break;
+            }
+            case TOKEN_BOOL_TRUE:
+            case TOKEN_BOOL_FALSE:
+            case TOKEN_NULL:
+                break;
+            default: throw new IOException("invalid token value" + tokenType);
         }
-        return objects;
     }
 
     //////////////////////////////////////////////////////////////
 
-    private void write(Object o, DataOutput out) throws IOException {
+    void write(Object o, DataOutput out) throws IOException {
         if(o == null) out.writeByte(TOKEN_NULL);
+        else if(o instanceof BJSONView) ((BJSONView)o).write(out, this);
         else if(o instanceof PyDictionary) encodePyDictionary((PyDictionary)o, out);
-        else if(o instanceof PyBaseString || o instanceof String)         {
-            out.writeByte(TOKEN_STRING);
-            text.setString(o.toString());
-            text.write(out);
-        }
+        else if(o instanceof PyBaseString || o instanceof String) encodeString(o.toString(), out);
         else if(o instanceof Boolean) {
             if(o.equals(Boolean.TRUE)) out.writeByte(TOKEN_BOOL_TRUE);
             else out.writeByte(TOKEN_BOOL_FALSE);
@@ -143,33 +416,92 @@ public class BJSON implements Writable, Serializable {
              if(((PyBoolean)o).getValue() != 0) out.writeByte(TOKEN_BOOL_TRUE);
              else out.writeByte(TOKEN_BOOL_FALSE);
          }
-        else if(o instanceof Float)
+        else if(o instanceof Float || o instanceof Double) encodeDouble(((Number) o).doubleValue(), out);
+        else if(o instanceof PyFloat) encodeDouble(((PyFloat)o).getValue(), out);
+        else if(o instanceof PyInteger) encodeLong(((PyInteger)o).getValue(), out);
+        else if(o instanceof Integer || o instanceof Long) encodeLong(((Number) o).longValue(), out);
+        else if(o instanceof PyLong) encodeBigInteger(((PyLong)o).getValue(), out);
+        else if(o instanceof BigInteger) encodeBigInteger((BigInteger) o, out);
+        else if(o instanceof List) encodeList((List)o, out);
+        else if(o instanceof Map) encodeMap((Map)o, out);
+        else if(o.getClass().isArray()) encodeList(Arrays.asList(o), out);
+        else if(Py.None.equals(o)) out.writeByte(TOKEN_NULL);
+        else
         {
-            out.writeByte(TOKEN_FLOAT);
-            out.writeDouble((Float) o);
+            throw new IOException("Unknown object " + o.toString());
         }
-        else if(o instanceof PyFloat) {
-            out.writeByte(TOKEN_FLOAT);
-            out.writeDouble(((PyFloat)o).getValue());
+    }
+
+    private void encodeString(String s, DataOutput out) throws IOException {
+        if(s.length() <= MAX_DICTIONARY_STRING && writeDictionary != null)
+        {
+            Integer id = writeDictionary.get(s);
+            if(id != null)
+            {
+                out.writeByte(TOKEN_STRING_REF);
+                WritableUtils.writeVInt(out, id);
+                return;
+            }
+            if(writeDictionary.size() < MAX_DICTIONARY_SIZE)
+            {
+                writeDictionary.put(s, writeDictionary.size());
+                out.writeByte(TOKEN_STRING_DEF);
+                text.setString(s);
+                text.write(out);
+                return;
+            }
         }
-        else if(o instanceof PyInteger)
+        out.writeByte(TOKEN_STRING);
+        text.setString(s);
+        text.write(out);
+    }
+
+    private static void encodeLong(long l, DataOutput out) throws IOException {
+        out.writeByte(TOKEN_LONG);
+        writeVarLong(l, out);
+    }
+
+    private static void encodeBigInteger(BigInteger i, DataOutput out) throws IOException {
+        if(i.bitLength() < 64) encodeLong(i.longValue(), out);
+        else
         {
-            out.writeByte(TOKEN_INT);
-            WritableUtils.writeVInt(out, ((PyInteger)o).getValue());
+            byte[] bytes = i.toByteArray();
+            out.writeByte(TOKEN_BIGINT);
+            WritableUtils.writeVInt(out, bytes.length);
+            out.write(bytes);
         }
-        else if(o instanceof Integer)
+    }
+
+    private static void encodeDouble(double d, DataOutput out) throws IOException {
+        // whole numbers, except -0.0, are written as longs:
+        if(d == Math.rint(d) && Math.abs(d) < MAX_EXACT_LONG && !(d == 0.0 && 1.0 / d < 0))
         {
-            out.writeByte(TOKEN_INT);
-            WritableUtils.writeVInt(out, (Integer)o);
+            out.writeByte(TOKEN_FLOAT_LONG);
+            writeVarLong((long) d, out);
+        }
+        else if((double) (float) d == d)
+        {
+            out.writeByte(TOKEN_FLOAT32);
+            out.writeFloat((float) d);
         }
-        else if(o instanceof List) encodeList((List)o, out);
-        else if(o instanceof Map) encodeMap((Map)o, out);
-        else if(o.getClass().isArray()) encodeList(Arrays.asList(o), out);
-        else if(Py.None.equals(o)) out.writeByte(TOKEN_NULL);
         else
         {
-            throw new IOException("Unknown object " + o.toString());
+            out.writeByte(TOKEN_FLOAT);
+            out.writeDouble(d);
+        }
+    }
+
+    /**
+     * Writes a zig-zag encoded variable length long: 7 bits per byte, small magnitudes first.
+     */
+    private static void writeVarLong(long l, DataOutput out) throws IOException {
+        long z = (l << 1) ^ (l >> 63);
+        while((z & ~0x7FL) != 0)
+        {
+            out.writeByte((int) ((z & 0x7F) | 0x80));
+            z >>>= 7;
         }
+        out.writeByte((int) z);
     }
 
     private void encodeList(List l, DataOutput out) throws IOException {
@@ -200,22 +532,4 @@ public class BJSON implements Writable, Serializable {
         }
     }
 
-    private static class StringInternMap
-    {
-        private WeakHashMap map = new WeakHashMap();
-
-        public synchronized PyUnicode intern(String s)
-        {
-            WeakReference reference = (WeakReference) map.get(s);
-            PyUnicode ret;
-            if(reference != null)
-            {
-                ret = (PyUnicode) reference.get();
-                if(ret != null) return ret;
-            }
-            ret = new PyUnicode(s);
-            map.put(s, new WeakReference(ret));
-            return ret;
-        }
-    }
 }
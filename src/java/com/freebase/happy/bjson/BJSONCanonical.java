@@ -0,0 +1,290 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.bjson;
+
+import com.freebase.happy.json.StringInterner;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.python.core.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The canonical BJSON encoding used for keys.  Encoded values compare as unsigned bytes in key order:
+ * first by type (null, false, true, integer, float, string, list, dict), then by value.  Integers and
+ * floats are fixed width with their sign flipped, strings are UTF-8 with zero bytes escaped, and lists
+ * and dicts end with a zero byte, so a prefix sorts first.  Dict keys are written in sorted order, so
+ * equal dicts have equal encodings.
+ */
+class BJSONCanonical {
+    static final byte END = 0x00;
+    static final byte NULL = 0x01;
+    static final byte FALSE = 0x02;
+    static final byte TRUE = 0x03;
+    static final byte INT = 0x04;
+    static final byte FLOAT = 0x05;
+    static final byte STRING = 0x06;
+    static final byte LIST = 0x07;
+    static final byte DICT = 0x08;
+
+    // zero bytes in strings are written as 0x00 0xFF, and strings end with 0x00 0x01:
+    private static final int STRING_ESCAPE = 0xFF;
+    private static final int STRING_END = 0x01;
+
+    private static final Comparator<byte[][]> ENTRY_ORDER = new Comparator<byte[][]>() {
+        public int compare(byte[][] a, byte[][] b) {
+            return WritableComparator.compareBytes(a[0], 0, a[0].length, b[0], 0, b[0].length);
+        }
+    };
+
+    private BJSONCanonical() {
+    }
+
+    static void encode(Object o, DataOutput out) throws IOException {
+        if(o == null || Py.None.equals(o)) out.writeByte(NULL);
+        else if(o instanceof BJSONView) encode(((BJSONView) o).materialize(), out);
+        else if(o instanceof PyBaseString || o instanceof String) encodeString(o.toString(), out);
+        else if(o instanceof Boolean) out.writeByte(((Boolean) o) ? TRUE : FALSE);
+        else if(o instanceof PyBoolean) out.writeByte(((PyBoolean) o).getValue() != 0 ? TRUE : FALSE);
+        else if(o instanceof PyInteger) encodeLong(((PyInteger) o).getValue(), out);
+        else if(o instanceof Integer || o instanceof Long) encodeLong(((Number) o).longValue(), out);
+        else if(o instanceof PyLong) encodeBigInteger(((PyLong) o).getValue(), out);
+        else if(o instanceof BigInteger) encodeBigInteger((BigInteger) o, out);
+        else if(o instanceof PyFloat) encodeDouble(((PyFloat) o).getValue(), out);
+        else if(o instanceof Float || o instanceof Double) encodeDouble(((Number) o).doubleValue(), out);
+        else if(o instanceof PyDictionary) encodeEntries(((PyDictionary) o).iteritems(), out);
+        else if(o instanceof List) encodeList(((List) o).iterator(), out);
+        else if(o instanceof Map) encodeMap((Map) o, out);
+        else if(o.getClass().isArray()) encodeList(Arrays.asList((Object[]) o).iterator(), out);
+        else throw new IOException("Unknown object " + o.toString());
+    }
+
+    private static void encodeLong(long l, DataOutput out) throws IOException {
+        out.writeByte(INT);
+        out.writeLong(l ^ Long.MIN_VALUE);
+    }
+
+    private static void encodeBigInteger(BigInteger i, DataOutput out) throws IOException {
+        if(i.bitLength() >= 64) throw new IOException("Integer keys must fit in 64 bits: " + i);
+        encodeLong(i.longValue(), out);
+    }
+
+    private static void encodeDouble(double d, DataOutput out) throws IOException {
+        // -0.0 and 0.0 are equal, as are all NaNs:
+        if(d == 0.0) d = 0.0;
+        long bits = Double.doubleToLongBits(d);
+        bits = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+        out.writeByte(FLOAT);
+        out.writeLong(bits);
+    }
+
+    private static void encodeString(String s, DataOutput out) throws IOException {
+        out.writeByte(STRING);
+        ByteBuffer utf8 = Text.encode(s);
+        byte[] bytes = utf8.array();
+        int length = utf8.limit();
+        int start = 0;
+        for(int i = 0; i < length; i++)
+        {
+            if(bytes[i] == 0)
+            {
+                out.write(bytes, start, i + 1 - start);
+                out.writeByte(STRING_ESCAPE);
+                start = i + 1;
+            }
+        }
+        out.write(bytes, start, length - start);
+        out.writeByte(0);
+        out.writeByte(STRING_END);
+    }
+
+    private static void encodeList(Iterator iterator, DataOutput out) throws IOException {
+        out.writeByte(LIST);
+        while(iterator.hasNext()) encode(iterator.next(), out);
+        out.writeByte(END);
+    }
+
+    private static void encodeMap(Map m, DataOutput out) throws IOException {
+        List<byte[][]> entries = new ArrayList<byte[][]>(m.size());
+        for(Object o: m.entrySet())
+        {
+            Map.Entry entry = (Map.Entry) o;
+            entries.add(new byte[][] {toBytes(entry.getKey()), toBytes(entry.getValue())});
+        }
+        writeEntries(entries, out);
+    }
+
+    private static void encodeEntries(PyObject iterator, DataOutput out) throws IOException {
+        List<byte[][]> entries = new ArrayList<byte[][]>();
+        PyTuple tuple;
+        while((tuple = (PyTuple) iterator.__iternext__()) != null)
+        {
+            entries.add(new byte[][] {toBytes(tuple.pyget(0)), toBytes(tuple.pyget(1))});
+        }
+        writeEntries(entries, out);
+    }
+
+    private static void writeEntries(List<byte[][]> entries, DataOutput out) throws IOException {
+        Collections.sort(entries, ENTRY_ORDER);
+        out.writeByte(DICT);
+        for(byte[][] entry: entries)
+        {
+            out.write(entry[0]);
+            out.write(entry[1]);
+        }
+        out.writeByte(END);
+    }
+
+    private static byte[] toBytes(Object o) throws IOException {
+        DataOutputBuffer buffer = new DataOutputBuffer();
+        encode(o, buffer);
+        byte[] bytes = new byte[buffer.getLength()];
+        System.arraycopy(buffer.getData(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    //////////////////////////////////////////////////////////////
+
+    /**
+     * Copies one canonical value, whose tag has already been read, from the input.
+     */
+    static void copy(byte tag, DataInput in, DataOutput out) throws IOException {
+        out.writeByte(tag);
+        switch(tag)
+        {
+            case NULL:
+            case FALSE:
+            case TRUE:
+                break;
+            case INT:
+            case FLOAT:
+                out.writeLong(in.readLong());
+                break;
+            case STRING:
+                while(true)
+                {
+                    byte b = in.readByte();
+                    out.writeByte(b);
+                    if(b == 0)
+                    {
+                        int next = in.readUnsignedByte();
+                        out.writeByte(next);
+                        if(next == STRING_END) break;
+                    }
+                }
+                break;
+            case LIST:
+            case DICT:
+            {
+                byte next;
+                while((next = in.readByte()) != END) copy(next, in, out);
+                out.writeByte(END);
+                break;
+            }
+            default: throw new IOException("invalid canonical token value" + tag);
+        }
+    }
+
+    /**
+     * Decodes the canonical value at the given position.
+     *
+     * @param bytes
+     * @param position a one element array holding the position, which is moved past the value.
+     * @return
+     * @throws IOException
+     */
+    static PyObject decode(byte[] bytes, int[] position) throws IOException {
+        byte tag = bytes[position[0]++];
+        switch(tag)
+        {
+            case NULL: return Py.None;
+            case FALSE: return Py.False;
+            case TRUE: return Py.True;
+            case INT:
+            {
+                long l = WritableComparator.readLong(bytes, position[0]) ^ Long.MIN_VALUE;
+                position[0] += 8;
+                if(l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) return new PyInteger((int) l);
+                return new PyLong(l);
+            }
+            case FLOAT:
+            {
+                long bits = WritableComparator.readLong(bytes, position[0]);
+                position[0] += 8;
+                bits = bits < 0 ? bits ^ Long.MIN_VALUE : ~bits;
+                return new PyFloat(Double.longBitsToDouble(bits));
+            }
+            case STRING:
+            {
+                DataOutputBuffer utf8 = new DataOutputBuffer();
+                while(true)
+                {
+                    byte b = bytes[position[0]++];
+                    if(b == 0)
+                    {
+                        int next = bytes[position[0]++] & 0xFF;
+                        if(next == STRING_END) break;
+                    }
+                    utf8.writeByte(b);
+                }
+                if(utf8.getLength() == 0) return Py.EmptyString;
+                return StringInterner.getInstance().intern(Text.decode(utf8.getData(), 0, utf8.getLength()));
+            }
+            case LIST:
+            {
+                PyList list = new PyList();
+                while(bytes[position[0]] != END) list.pyadd(decode(bytes, position));
+                position[0]++;
+                return list;
+            }
+            case DICT:
+            {
+                PyDictionary dictionary = new PyDictionary();
+                while(bytes[position[0]] != END) dictionary.__setitem__(decode(bytes, position), decode(bytes, position));
+                position[0]++;
+                return dictionary;
+            }
+            default: throw new IOException("invalid canonical token value" + tag);
+        }
+    }
+}
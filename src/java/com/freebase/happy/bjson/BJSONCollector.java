@@ -52,16 +52,21 @@ public class BJSONCollector implements OutputCollector<String, Object> {
                                      SequenceFile.CompressionType compressionType, CompressionCodec compressionCodec) throws IOException {
         writer = SequenceFile.createWriter(fileSystem, configuration, path, Text.class, BJSON.class,
                 compressionType, compressionCodec);
+        valueWritable.setBlockDictionary(true);
     }
 
-    public void collect(String key, Object value) throws IOException {
+    public synchronized void collect(String key, Object value) throws IOException {
         keyWritable.set(key);
         valueWritable.setObject(value);
+        long length = writer.getLength();
         writer.append(keyWritable, valueWritable);
+        // the file only grows when a block (or, without block compression, a record) is written out, and
+        // readers can start at the next one, so the next record starts a new string dictionary:
+        if(writer.getLength() != length) valueWritable.resetDictionary();
         valueWritable.setObject(null);
     }
 
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         writer.close();
     }
 }
@@ -0,0 +1,246 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.bjson;
+
+import com.freebase.happy.json.StringInterner;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.python.core.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * Reads BJSON tokens in place from a byte array.  Values can be decoded, or skipped without decoding.
+ * Both v1 and v2 tokens are understood; v2 string references are resolved with the dictionary that was
+ * built while the record was read.
+ */
+class BJSONReader {
+    private final byte[] bytes;
+    private final List<PyObject> dictionary;
+    private int position;
+
+    BJSONReader(byte[] bytes, int position, List<PyObject> dictionary) {
+        this.bytes = bytes;
+        this.position = position;
+        this.dictionary = dictionary;
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the token type at the current position, without moving past it.
+     */
+    byte peekToken() {
+        return bytes[position];
+    }
+
+    byte readToken() {
+        return bytes[position++];
+    }
+
+    int readVInt() throws IOException {
+        int value = WritableComparator.readVInt(bytes, position);
+        position += WritableUtils.decodeVIntSize(bytes[position]);
+        return value;
+    }
+
+    /**
+     * Reads a zig-zag encoded variable length long.
+     */
+    long readVarLong() throws IOException {
+        long z = 0;
+        int shift = 0;
+        int b;
+        do
+        {
+            if(shift > 63) throw new IOException("Malformed BJSON integer");
+            b = bytes[position++];
+            z |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while((b & 0x80) != 0);
+        return (z >>> 1) ^ -(z & 1);
+    }
+
+    /**
+     * Decodes the value at the current position.
+     */
+    PyObject readValue() throws IOException {
+        byte tokenType = readToken();
+        switch(tokenType)
+        {
+            case BJSON.TOKEN_LIST:
+            {
+                int size = readVInt();
+                PyList objects = new PyList();
+                for(int i = 0; i < size; i++) objects.pyadd(readValue());
+                return objects;
+            }
+            case BJSON.TOKEN_DICT:
+            {
+                int size = readVInt();
+                PyDictionary pyDictionary = new PyDictionary();
+                for(int i = 0; i < size; i++) pyDictionary.__setitem__(readValue(), readValue());
+                return pyDictionary;
+            }
+            case BJSON.TOKEN_STRING:
+            case BJSON.TOKEN_STRING_DEF:
+                return readString();
+            case BJSON.TOKEN_STRING_REF: return getReference(readVInt());
+            case BJSON.TOKEN_FLOAT:
+            {
+                double d = WritableComparator.readDouble(bytes, position);
+                position += 8;
+                return new PyFloat(d);
+            }
+            case BJSON.TOKEN_FLOAT32:
+            {
+                float f = Float.intBitsToFloat(WritableComparator.readInt(bytes, position));
+                position += 4;
+                return new PyFloat(f);
+            }
+            case BJSON.TOKEN_FLOAT_LONG: return new PyFloat((double) readVarLong());
+            case BJSON.TOKEN_INT: return new PyInteger(readVInt());
+            case BJSON.TOKEN_LONG:
+            {
+                long l = readVarLong();
+                if(l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) return new PyInteger((int) l);
+                return new PyLong(l);
+            }
+            case BJSON.TOKEN_BIGINT:
+            {
+                int length = readVInt();
+                byte[] magnitude = new byte[length];
+                System.arraycopy(bytes, position, magnitude, 0, length);
+                position += length;
+                return new PyLong(new BigInteger(magnitude));
+            }
+            case BJSON.TOKEN_BOOL_TRUE: return Py.True;
+            case BJSON.TOKEN_BOOL_FALSE: return Py.False;
+            case BJSON.TOKEN_NULL: return Py.None;
+            default: throw new IOException("invalid token value" + tokenType);
+        }
+    }
+
+    private PyObject readString() throws IOException {
+        int length = readVInt();
+        if(length == 0) return Py.EmptyString;
+        String s = Text.decode(bytes, position, length);
+        position += length;
+        return StringInterner.getInstance().intern(s);
+    }
+
+    private PyObject getReference(int id) throws IOException {
+        if(dictionary == null || id < 0 || id >= dictionary.size())
+        {
+            throw new IOException("BJSON string reference " + id + " has no definition; records were read out of order");
+        }
+        return dictionary.get(id);
+    }
+
+    /**
+     * Moves past the value at the current position without decoding it.
+     */
+    void skipValue() throws IOException {
+        byte tokenType = readToken();
+        switch(tokenType)
+        {
+            case BJSON.TOKEN_LIST:
+            {
+                int size = readVInt();
+                for(int i = 0; i < size; i++) skipValue();
+                break;
+            }
+            case BJSON.TOKEN_DICT:
+            {
+                int size = readVInt();
+                for(int i = 0; i < 2 * size; i++) skipValue();
+                break;
+            }
+            case BJSON.TOKEN_STRING:
+            case BJSON.TOKEN_STRING_DEF:
+            case BJSON.TOKEN_BIGINT:
+                position += readVInt();
+                break;
+            case BJSON.TOKEN_FLOAT:
+                position += 8;
+                break;
+            case BJSON.TOKEN_FLOAT32:
+                position += 4;
+                break;
+            case BJSON.TOKEN_INT:
+            case BJSON.TOKEN_STRING_REF:
+                readVInt();
+                break;
+            case BJSON.TOKEN_LONG:
+            case BJSON.TOKEN_FLOAT_LONG:
+                readVarLong();
+                break;
+            case BJSON.TOKEN_BOOL_TRUE:
+            case BJSON.TOKEN_BOOL_FALSE:
+            case BJSON.TOKEN_NULL:
+                break;
+            default: throw new IOException("invalid token value" + tokenType);
+        }
+    }
+
+    /**
+     * Compares the string token at the current position with a key, and moves past it.
+     *
+     * @param key
+     * @param utf8 the key's UTF-8 bytes.
+     * @return true if the token is a string equal to the key.
+     */
+    boolean matchString(String key, byte[] utf8) throws IOException {
+        byte tokenType = peekToken();
+        if(tokenType == BJSON.TOKEN_STRING_REF)
+        {
+            position++;
+            return getReference(readVInt()).toString().equals(key);
+        }
+        if(tokenType != BJSON.TOKEN_STRING && tokenType != BJSON.TOKEN_STRING_DEF)
+        {
+            skipValue();
+            return false;
+        }
+        position++;
+        int length = readVInt();
+        boolean match = length == utf8.length &&
+                        WritableComparator.compareBytes(bytes, position, length, utf8, 0, utf8.length) == 0;
+        position += length;
+        return match;
+    }
+}
@@ -0,0 +1,337 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.bjson;
+
+import org.python.core.*;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A lazy, read-only view of a serialized BJSON dictionary or list.
+ *
+ * Item lookups, len(), "in" and get() skip over the serialized tokens in place, and nested dictionaries
+ * and lists are returned as views over the same bytes.  Iterating, mutating or calling any other method
+ * decodes the container into a real dict or list, which is used from then on.  A nested view is decoded
+ * as part of its parent, so changes to nested values are kept in the enclosing record.
+ *
+ * get() also accepts a path, as a tuple or list of keys and indexes: record.get(("a", 0, "b")).
+ */
+public class BJSONView extends PyObject {
+    private final byte[] bytes;
+    private final int offset;
+    private final List<PyObject> dictionary;
+    private final boolean dict;
+    // the enclosing view and this view's key or index in it, or null for a record:
+    private final BJSONView parent;
+    private final PyObject parentKey;
+    // nested views already handed out, by key or index, so that changes to them are kept:
+    private Map<Object, BJSONView> children;
+    private PyObject materialized;
+
+    BJSONView(byte[] bytes, int offset, List<PyObject> dictionary) {
+        this(bytes, offset, dictionary, null, null);
+    }
+
+    private BJSONView(byte[] bytes, int offset, List<PyObject> dictionary, BJSONView parent, PyObject parentKey) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.dictionary = dictionary;
+        this.dict = bytes[offset] == BJSON.TOKEN_DICT;
+        this.parent = parent;
+        this.parentKey = parentKey;
+    }
+
+    /**
+     * Returns a view for dictionaries and lists, or the decoded value for other types.
+     *
+     * @param bytes
+     * @param offset
+     * @param dictionary the strings defined by v2 records, or null for v1 records.
+     * @return
+     * @throws IOException
+     */
+    static PyObject valueAt(byte[] bytes, int offset, List<PyObject> dictionary) throws IOException {
+        byte token = bytes[offset];
+        if(token == BJSON.TOKEN_DICT || token == BJSON.TOKEN_LIST) return new BJSONView(bytes, offset, dictionary);
+        return new BJSONReader(bytes, offset, dictionary).readValue();
+    }
+
+    /**
+     * @return true once the view has been decoded into a dict or list.
+     */
+    public boolean isMaterialized() {
+        return decoded() != null;
+    }
+
+    /**
+     * Returns a new view of the same bytes that doesn't share any state with this one, so it can be
+     * read on another thread.  Only meaningful while the view hasn't been decoded.
+     */
+    public BJSONView detach() {
+        // the dictionary of a block of records grows as later records are read:
+        List<PyObject> strings = dictionary != null ? new ArrayList<PyObject>(dictionary) : null;
+        return new BJSONView(bytes, offset, strings);
+    }
+
+    /**
+     * Returns the decoded container, or null if neither this view nor an enclosing one has been decoded.
+     */
+    private PyObject decoded() {
+        if(materialized == null && parent != null && parent.decoded() != null)
+        {
+            PyObject value = parent.materialized.__finditem__(parentKey);
+            if(value instanceof PyDictionary || value instanceof PyList) materialized = value;
+        }
+        return materialized;
+    }
+
+    /**
+     * Decodes the whole container, if it hasn't been already.
+     *
+     * @return the decoded dict or list.
+     */
+    public PyObject materialize() {
+        if(decoded() == null && parent != null)
+        {
+            // decode the enclosing record, so that it refers to the same dict or list as this view:
+            parent.materialize();
+            decoded();
+        }
+        if(materialized == null)
+        {
+            try
+            {
+                materialized = new BJSONReader(bytes, offset, dictionary).readValue();
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        return materialized;
+    }
+
+    /**
+     * Writes the view in BJSON format.  Unchanged views of v1 records are copied without re-encoding;
+     * v2 records refer to their reader's string dictionary, so they are decoded and encoded again.
+     *
+     * @param out
+     * @param bjson
+     * @throws IOException
+     */
+    void write(DataOutput out, BJSON bjson) throws IOException {
+        if(decoded() != null) bjson.write(materialized, out);
+        else if(dictionary != null) bjson.write(new BJSONReader(bytes, offset, dictionary).readValue(), out);
+        else
+        {
+            BJSONReader reader = new BJSONReader(bytes, offset, null);
+            reader.skipValue();
+            out.write(bytes, offset, reader.getPosition() - offset);
+        }
+    }
+
+    /**
+     * Looks up a dictionary key or list index.
+     *
+     * @param key
+     * @return the value, or null if it isn't present.
+     */
+    public PyObject lookup(PyObject key) {
+        if(decoded() != null) return materialized.__finditem__(key);
+        try
+        {
+            BJSONReader reader = new BJSONReader(bytes, offset + 1, dictionary);
+            int size = reader.readVInt();
+            if(dict)
+            {
+                if(!(key instanceof PyString)) return materialize().__finditem__(key);
+                String s = key.toString();
+                byte[] utf8 = s.getBytes("UTF-8");
+                for(int i = 0; i < size; i++)
+                {
+                    if(reader.matchString(s, utf8)) return child(key, s, reader.getPosition());
+                    reader.skipValue();
+                }
+                return null;
+            }
+            else
+            {
+                if(!(key instanceof PyInteger || key instanceof PyLong)) throw Py.TypeError("list indices must be integers");
+                int index = key.asInt();
+                if(index < 0) index += size;
+                if(index < 0 || index >= size) return null;
+                for(int i = 0; i < index; i++) reader.skipValue();
+                return child(Py.newInteger(index), new Integer(index), reader.getPosition());
+            }
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the value at a position within this container.  Nested views are cached, so that a
+     * change to one is seen by later lookups and written with the record.
+     */
+    private PyObject child(PyObject key, Object cacheKey, int position) throws IOException {
+        byte token = bytes[position];
+        if(token != BJSON.TOKEN_DICT && token != BJSON.TOKEN_LIST) return new BJSONReader(bytes, position, dictionary).readValue();
+        if(children == null) children = new HashMap<Object, BJSONView>();
+        BJSONView child = children.get(cacheKey);
+        if(child == null)
+        {
+            child = new BJSONView(bytes, position, dictionary, this, key);
+            children.put(cacheKey, child);
+        }
+        return child;
+    }
+
+    /**
+     * Looks up a key, index or path.
+     *
+     * @param keyOrPath a key or index, or a tuple or list of them.
+     * @param defaultValue returned if the key isn't present.
+     * @return
+     */
+    public PyObject get(PyObject keyOrPath, PyObject defaultValue) {
+        if(!(keyOrPath instanceof PyTuple || keyOrPath instanceof PyList))
+        {
+            PyObject value = lookup(keyOrPath);
+            return value == null ? defaultValue : value;
+        }
+        PyObject current = this;
+        PyObject iterator = keyOrPath.__iter__();
+        PyObject key;
+        while((key = iterator.__iternext__()) != null)
+        {
+            if(current instanceof BJSONView) current = ((BJSONView) current).lookup(key);
+            else if(current instanceof PyDictionary || current instanceof PyList) current = current.__finditem__(key);
+            else current = null;
+            if(current == null) return defaultValue;
+        }
+        return current;
+    }
+
+    public PyObject get(PyObject keyOrPath) {
+        return get(keyOrPath, Py.None);
+    }
+
+    public PyObject __finditem__(PyObject key) {
+        return lookup(key);
+    }
+
+    public PyObject __finditem__(int index) {
+        return lookup(Py.newInteger(index));
+    }
+
+    public PyObject __getitem__(PyObject key) {
+        PyObject value = lookup(key);
+        if(value != null) return value;
+        if(dict) throw Py.KeyError(key.toString());
+        throw Py.IndexError("list index out of range");
+    }
+
+    public boolean __contains__(PyObject o) {
+        if(decoded() != null || !dict) return materialize().__contains__(o);
+        return lookup(o) != null;
+    }
+
+    public int __len__() {
+        if(decoded() != null) return materialized.__len__();
+        try
+        {
+            return new BJSONReader(bytes, offset + 1, dictionary).readVInt();
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean __nonzero__() {
+        return __len__() != 0;
+    }
+
+    public PyObject __iter__() {
+        return materialize().__iter__();
+    }
+
+    public void __setitem__(PyObject key, PyObject value) {
+        materialize().__setitem__(key, value);
+    }
+
+    public void __delitem__(PyObject key) {
+        materialize().__delitem__(key);
+    }
+
+    public PyObject __findattr_ex__(String name) {
+        if("get".equals(name)) return new GetMethod();
+        return materialize().__findattr_ex__(name);
+    }
+
+    public PyObject __eq__(PyObject other) {
+        if(other instanceof BJSONView) other = ((BJSONView) other).materialize();
+        return materialize().__eq__(other);
+    }
+
+    public PyObject __ne__(PyObject other) {
+        if(other instanceof BJSONView) other = ((BJSONView) other).materialize();
+        return materialize().__ne__(other);
+    }
+
+    public PyString __repr__() {
+        return materialize().__repr__();
+    }
+
+    public String toString() {
+        return materialize().toString();
+    }
+
+    /**
+     * The bound get() method.
+     */
+    private class GetMethod extends PyObject
+    {
+        public PyObject __call__(PyObject keyOrPath) {
+            return get(keyOrPath);
+        }
+
+        public PyObject __call__(PyObject keyOrPath, PyObject defaultValue) {
+            return get(keyOrPath, defaultValue);
+        }
+    }
+}
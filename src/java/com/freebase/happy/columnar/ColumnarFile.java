@@ -0,0 +1,401 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.columnar;
+
+import com.freebase.happy.json.JSONByteDecoder;
+import com.freebase.happy.json.JSONByteEncoder;
+import com.freebase.happy.json.StringInterner;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.python.core.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The layout and column encodings shared by ColumnarOutputFormat and ColumnarInputFormat.
+ *
+ * A file starts with the magic bytes, the name of the codec used for its column chunks (empty if they
+ * aren't compressed) and a random sync marker.  Then come blocks of rows, each one starting with the sync
+ * marker so a split can find the next block:
+ *
+ * <pre>
+ *   sync, VInt rows, VInt columns, columns x (String name, VInt flags, VInt rawLength, VInt storedLength), chunks
+ * </pre>
+ *
+ * The first column holds the keys and the second holds values that aren't dictionaries; every other column
+ * holds one top-level dictionary field.  A chunk stores the encoding of its values, the run-length encoded
+ * state of each row (absent, null or present), and then the present values.  Chunks can be skipped
+ * without being read, which is what makes column projection cheap.
+ */
+public class ColumnarFile {
+    public static final byte[] MAGIC = new byte[]{'H', 'C', 'F', 1};
+    public static final int SYNC_SIZE = 16;
+
+    static final int KEY_COLUMN = 0;
+    static final int VALUE_COLUMN = 1;
+
+    // chunk flags:
+    static final int COMPRESSED = 0x01;
+
+    // row states:
+    static final byte ABSENT = 0;
+    static final byte NULL = 1;
+    static final byte PRESENT = 2;
+
+    // value encodings:
+    static final byte ENCODING_NONE = 0;
+    static final byte ENCODING_BOOLEAN_RLE = 1;
+    static final byte ENCODING_LONG_DELTA = 2;
+    static final byte ENCODING_DOUBLE = 3;
+    static final byte ENCODING_STRING = 4;
+    static final byte ENCODING_STRING_DICTIONARY = 5;
+    static final byte ENCODING_JSON = 6;
+
+    private static final int KIND_BOOLEAN = 0x01;
+    private static final int KIND_LONG = 0x02;
+    private static final int KIND_DOUBLE = 0x04;
+    private static final int KIND_STRING = 0x08;
+    private static final int KIND_OTHER = 0x10;
+
+    private static final int MAX_DICTIONARY_SIZE = 65536;
+
+    /**
+     * Collects the values of one column for a block of rows and encodes them.
+     * Rows that have no value are null, and rows holding None are Py.None.
+     */
+    static class ColumnBuilder
+    {
+        final String name;
+        private PyObject[] values = new PyObject[64];
+        private int rows = 0;
+
+        ColumnBuilder(String name) {
+            this.name = name;
+        }
+
+        void set(int row, PyObject value) {
+            if(row >= values.length)
+            {
+                PyObject[] newValues = new PyObject[Math.max(row + 1, values.length * 2)];
+                System.arraycopy(values, 0, newValues, 0, rows);
+                values = newValues;
+            }
+            values[row] = value;
+            if(row >= rows) rows = row + 1;
+        }
+
+        void clear() {
+            Arrays.fill(values, 0, rows, null);
+            rows = 0;
+        }
+
+        /**
+         * Encodes the first blockRows rows of this column.  Rows past the last value set are absent.
+         */
+        void encode(int blockRows, DataOutput out, JSONByteEncoder json) throws IOException {
+            // work out which encoding fits the present values:
+            int kinds = 0;
+            int present = 0;
+            for(int i = 0; i < rows; i++)
+            {
+                PyObject value = values[i];
+                if(value == null || value == Py.None) continue;
+                kinds |= kindOf(value);
+                present++;
+            }
+            Map<String, Integer> dictionary = null;
+            byte encoding;
+            if(kinds == 0) encoding = ENCODING_NONE;
+            else if(kinds == KIND_BOOLEAN) encoding = ENCODING_BOOLEAN_RLE;
+            else if(kinds == KIND_LONG) encoding = ENCODING_LONG_DELTA;
+            else if(kinds == KIND_DOUBLE) encoding = ENCODING_DOUBLE;
+            else if(kinds == KIND_STRING)
+            {
+                dictionary = buildDictionary(present);
+                encoding = dictionary != null ? ENCODING_STRING_DICTIONARY : ENCODING_STRING;
+            }
+            else encoding = ENCODING_JSON;
+            out.writeByte(encoding);
+
+            // row states:
+            byte runState = stateOf(0);
+            int runLength = 0;
+            for(int i = 0; i < blockRows; i++)
+            {
+                byte state = stateOf(i);
+                if(state != runState)
+                {
+                    WritableUtils.writeVInt(out, runLength);
+                    out.writeByte(runState);
+                    runState = state;
+                    runLength = 0;
+                }
+                runLength++;
+            }
+            WritableUtils.writeVInt(out, runLength);
+            out.writeByte(runState);
+
+            // present values:
+            switch(encoding)
+            {
+                case ENCODING_BOOLEAN_RLE:
+                    // alternating runs of false and true, starting with false:
+                    boolean runValue = false;
+                    runLength = 0;
+                    for(int i = 0; i < rows; i++)
+                    {
+                        if(stateOf(i) != PRESENT) continue;
+                        boolean value = ((PyBoolean)values[i]).getValue() != 0;
+                        if(value != runValue)
+                        {
+                            WritableUtils.writeVInt(out, runLength);
+                            runValue = value;
+                            runLength = 0;
+                        }
+                        runLength++;
+                    }
+                    WritableUtils.writeVInt(out, runLength);
+                    break;
+                case ENCODING_LONG_DELTA:
+                    long previous = 0;
+                    for(int i = 0; i < rows; i++)
+                    {
+                        if(stateOf(i) != PRESENT) continue;
+                        long value = longValue(values[i]);
+                        WritableUtils.writeVLong(out, value - previous);
+                        previous = value;
+                    }
+                    break;
+                case ENCODING_DOUBLE:
+                    for(int i = 0; i < rows; i++)
+                    {
+                        if(stateOf(i) == PRESENT) out.writeDouble(((PyFloat)values[i]).getValue());
+                    }
+                    break;
+                case ENCODING_STRING:
+                    for(int i = 0; i < rows; i++)
+                    {
+                        if(stateOf(i) == PRESENT) Text.writeString(out, values[i].toString());
+                    }
+                    break;
+                case ENCODING_STRING_DICTIONARY:
+                    String[] entries = new String[dictionary.size()];
+                    for(Map.Entry<String, Integer> entry: dictionary.entrySet()) entries[entry.getValue()] = entry.getKey();
+                    WritableUtils.writeVInt(out, entries.length);
+                    for(String entry: entries) Text.writeString(out, entry);
+                    // runs of dictionary ids:
+                    int runId = -1;
+                    runLength = 0;
+                    for(int i = 0; i < rows; i++)
+                    {
+                        if(stateOf(i) != PRESENT) continue;
+                        int id = dictionary.get(values[i].toString());
+                        if(id != runId)
+                        {
+                            if(runLength > 0)
+                            {
+                                WritableUtils.writeVInt(out, runLength);
+                                WritableUtils.writeVInt(out, runId);
+                            }
+                            runId = id;
+                            runLength = 0;
+                        }
+                        runLength++;
+                    }
+                    WritableUtils.writeVInt(out, runLength);
+                    WritableUtils.writeVInt(out, runId);
+                    break;
+                case ENCODING_JSON:
+                    for(int i = 0; i < rows; i++)
+                    {
+                        if(stateOf(i) != PRESENT) continue;
+                        json.encode(values[i]);
+                        WritableUtils.writeVInt(out, json.getLength());
+                        out.write(json.getBytes(), 0, json.getLength());
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * @return the distinct strings of this column numbered in order of appearance, or null if there are
+         * too many of them for a dictionary to pay off.
+         */
+        private Map<String, Integer> buildDictionary(int present) {
+            Map<String, Integer> dictionary = new HashMap<String, Integer>();
+            int maxSize = Math.min(MAX_DICTIONARY_SIZE, present / 2);
+            for(int i = 0; i < rows; i++)
+            {
+                if(stateOf(i) != PRESENT) continue;
+                String value = values[i].toString();
+                if(dictionary.containsKey(value)) continue;
+                if(dictionary.size() >= maxSize) return null;
+                dictionary.put(value, dictionary.size());
+            }
+            return dictionary;
+        }
+
+        private byte stateOf(int row) {
+            if(row >= rows || values[row] == null) return ABSENT;
+            else if(values[row] == Py.None) return NULL;
+            else return PRESENT;
+        }
+    }
+
+    private static int kindOf(PyObject value) {
+        // PyBoolean is a PyInteger, so it has to be checked first:
+        if(value instanceof PyBoolean) return KIND_BOOLEAN;
+        else if(value instanceof PyInteger) return KIND_LONG;
+        else if(value instanceof PyLong) return ((PyLong)value).getValue().bitLength() < 64 ? KIND_LONG : KIND_OTHER;
+        else if(value instanceof PyFloat) return KIND_DOUBLE;
+        else if(value instanceof PyBaseString) return KIND_STRING;
+        else return KIND_OTHER;
+    }
+
+    private static long longValue(PyObject value) {
+        if(value instanceof PyInteger) return ((PyInteger)value).getValue();
+        else return ((PyLong)value).getValue().longValue();
+    }
+
+    /**
+     * Decodes a column chunk written by ColumnBuilder.encode().
+     *
+     * @param in the chunk.
+     * @param rows the number of rows in the block.
+     * @param values receives the row values, null for absent rows; it is reallocated if it is too small.
+     * @return the values array.
+     */
+    static PyObject[] decode(DataInput in, int rows, PyObject[] values) throws IOException {
+        if(values == null || values.length < rows) values = new PyObject[rows];
+        byte encoding = in.readByte();
+
+        // row states, with present rows marked by a placeholder until the values are read:
+        int row = 0;
+        int present = 0;
+        while(row < rows)
+        {
+            int runLength = WritableUtils.readVInt(in);
+            byte state = in.readByte();
+            if(row + runLength > rows) throw new IOException("Column runs overflow the block");
+            PyObject value = state == ABSENT ? null : state == NULL ? Py.None : Py.True;
+            Arrays.fill(values, row, row + runLength, value);
+            if(state == PRESENT) present += runLength;
+            row += runLength;
+        }
+        if(present == 0) return values;
+
+        row = 0;
+        switch(encoding)
+        {
+            case ENCODING_BOOLEAN_RLE:
+                boolean runValue = false;
+                while(present > 0)
+                {
+                    int runLength = WritableUtils.readVInt(in);
+                    PyObject value = runValue ? Py.True : Py.False;
+                    for(int i = 0; i < runLength; i++)
+                    {
+                        row = nextPresent(values, row, rows);
+                        values[row++] = value;
+                    }
+                    present -= runLength;
+                    runValue = !runValue;
+                }
+                break;
+            case ENCODING_LONG_DELTA:
+                long previous = 0;
+                for(int i = 0; i < present; i++)
+                {
+                    previous += WritableUtils.readVLong(in);
+                    row = nextPresent(values, row, rows);
+                    if(previous >= Integer.MIN_VALUE && previous <= Integer.MAX_VALUE) values[row++] = Py.newInteger((int)previous);
+                    else values[row++] = new PyLong(BigInteger.valueOf(previous));
+                }
+                break;
+            case ENCODING_DOUBLE:
+                for(int i = 0; i < present; i++)
+                {
+                    row = nextPresent(values, row, rows);
+                    values[row++] = new PyFloat(in.readDouble());
+                }
+                break;
+            case ENCODING_STRING:
+                for(int i = 0; i < present; i++)
+                {
+                    row = nextPresent(values, row, rows);
+                    values[row++] = new PyUnicode(Text.readString(in));
+                }
+                break;
+            case ENCODING_STRING_DICTIONARY:
+                StringInterner interner = StringInterner.getInstance();
+                PyObject[] entries = new PyObject[WritableUtils.readVInt(in)];
+                for(int i = 0; i < entries.length; i++) entries[i] = interner.intern(Text.readString(in));
+                while(present > 0)
+                {
+                    int runLength = WritableUtils.readVInt(in);
+                    PyObject value = entries[WritableUtils.readVInt(in)];
+                    for(int i = 0; i < runLength; i++)
+                    {
+                        row = nextPresent(values, row, rows);
+                        values[row++] = value;
+                    }
+                    present -= runLength;
+                }
+                break;
+            case ENCODING_JSON:
+                byte[] bytes = new byte[256];
+                for(int i = 0; i < present; i++)
+                {
+                    int length = WritableUtils.readVInt(in);
+                    if(length > bytes.length) bytes = new byte[Math.max(length, bytes.length * 2)];
+                    in.readFully(bytes, 0, length);
+                    row = nextPresent(values, row, rows);
+                    values[row++] = JSONByteDecoder.decode(bytes, 0, length);
+                }
+                break;
+            default: throw new IOException("Unknown column encoding " + encoding);
+        }
+        return values;
+    }
+
+    private static int nextPresent(PyObject[] values, int row, int rows) throws IOException {
+        // present rows are still marked with the Py.True placeholder:
+        while(row < rows && (values[row] == null || values[row] == Py.None)) row++;
+        if(row >= rows) throw new IOException("Column has more values than present rows");
+        return row;
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.columnar;
+
+import com.freebase.happy.json.JSON;
+import com.freebase.happy.json.JSONInputFormat;
+import com.freebase.happy.json.JSONWritable;
+import com.freebase.happy.json.StringInterner;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.python.core.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An InputFormat for files written by ColumnarOutputFormat.  Keys are Text and values are JSONWritable.
+ *
+ * If happy.inputfields is set, only those fields are read: the other column chunks are skipped on disk
+ * without being decompressed or decoded, and values are dictionaries holding just the requested fields.
+ */
+public class ColumnarInputFormat extends FileInputFormat<Text, JSONWritable> {
+
+    public RecordReader<Text, JSONWritable> getRecordReader(InputSplit split, JobConf job, Reporter reporter) throws IOException {
+        reporter.setStatus(split.toString());
+        return new ColumnarRecordReader(job, (FileSplit) split);
+    }
+
+    /**
+     * @return true if the file starts with the columnar magic bytes.
+     */
+    public static boolean isColumnarFile(FileSystem fs, Path file) throws IOException {
+        InputStream in = fs.open(file);
+        try
+        {
+            for(byte b: ColumnarFile.MAGIC)
+            {
+                if(in.read() != b) return false;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the blocks whose sync marker starts inside a split, one block of columns at a time.
+     */
+    public static class ColumnarRecordReader implements RecordReader<Text, JSONWritable> {
+        private final FSDataInputStream in;
+        private final long start;
+        private final long end;
+        private final Set<String> fields;
+        private final CompressionCodec codec;
+        private final Decompressor decompressor;
+        private final byte[] sync = new byte[ColumnarFile.SYNC_SIZE];
+        private final byte[] syncCheck = new byte[ColumnarFile.SYNC_SIZE];
+        private final DataInputBuffer chunk = new DataInputBuffer();
+        private byte[] stored = new byte[4096];
+        private byte[] raw = new byte[4096];
+        private boolean more = true;
+
+        // the current block:
+        private int blockRows = 0;
+        private int row = 0;
+        private PyObject[] keys;
+        private PyObject[] values;
+        private final List<PyObject> fieldNames = new ArrayList<PyObject>();
+        private final List<PyObject[]> fieldValues = new ArrayList<PyObject[]>();
+        private final List<PyObject[]> spareValues = new ArrayList<PyObject[]>();
+
+        public ColumnarRecordReader(JobConf job, FileSplit split) throws IOException {
+            Path file = split.getPath();
+            FileSystem fs = file.getFileSystem(job);
+            in = fs.open(file);
+            long length = fs.getFileStatus(file).getLen();
+            start = split.getStart();
+            end = Math.min(start + split.getLength(), length);
+
+            byte[] magic = new byte[ColumnarFile.MAGIC.length];
+            in.readFully(magic);
+            if(!Arrays.equals(magic, ColumnarFile.MAGIC)) throw new IOException(file + " is not a columnar file");
+            String codecName = Text.readString(in);
+            if(codecName.length() > 0)
+            {
+                try
+                {
+                    codec = (CompressionCodec) ReflectionUtils.newInstance(job.getClassByName(codecName), job);
+                }
+                catch(ClassNotFoundException e)
+                {
+                    throw new IOException("Unknown compression codec " + codecName + " in " + file);
+                }
+                decompressor = CodecPool.getDecompressor(codec);
+            }
+            else
+            {
+                codec = null;
+                decompressor = null;
+            }
+            in.readFully(sync);
+
+            // the first block follows the header, and splits that start later look for the next sync marker:
+            if(start > in.getPos()) more = seekSync(start);
+
+            String[] fieldNames = job.getStrings(JSONInputFormat.FIELDS_KEY);
+            fields = fieldNames != null ? new HashSet<String>(Arrays.asList(fieldNames)) : null;
+        }
+
+        private boolean seekSync(long position) throws IOException {
+            in.seek(position);
+            try
+            {
+                in.readFully(syncCheck);
+                for(int i = 0; true; i++)
+                {
+                    int j = 0;
+                    while(j < ColumnarFile.SYNC_SIZE && sync[j] == syncCheck[(i + j) % ColumnarFile.SYNC_SIZE]) j++;
+                    if(j == ColumnarFile.SYNC_SIZE)
+                    {
+                        in.seek(in.getPos() - ColumnarFile.SYNC_SIZE);
+                        return true;
+                    }
+                    // a marker belongs to this split if it starts before the end:
+                    if(in.getPos() - ColumnarFile.SYNC_SIZE >= end) return false;
+                    syncCheck[i % ColumnarFile.SYNC_SIZE] = in.readByte();
+                }
+            }
+            catch(EOFException e)
+            {
+                return false;
+            }
+        }
+
+        public Text createKey() {
+            return new Text();
+        }
+
+        public JSONWritable createValue() {
+            return new JSONWritable();
+        }
+
+        public boolean next(Text key, JSONWritable value) throws IOException {
+            while(row >= blockRows)
+            {
+                if(!more || !readBlock()) return false;
+            }
+            PyObject k = keys[row];
+            if(k == null || k == Py.None) key.clear();
+            else if(k instanceof PyBaseString) key.set(k.toString());
+            else key.set(JSON.encode(k));
+
+            PyObject v = values[row];
+            if(v == null)
+            {
+                PyDictionary dictionary = new PyDictionary();
+                for(int i = 0; i < fieldNames.size(); i++)
+                {
+                    PyObject fieldValue = fieldValues.get(i)[row];
+                    if(fieldValue != null) dictionary.__setitem__(fieldNames.get(i), fieldValue);
+                }
+                v = dictionary;
+            }
+            else if(fields != null && v instanceof PyDictionary) v = project((PyDictionary)v);
+            value.set(v);
+            row++;
+            return true;
+        }
+
+        private PyObject project(PyDictionary dictionary) {
+            PyDictionary projected = new PyDictionary();
+            for(String field: fields)
+            {
+                PyObject name = new PyUnicode(field);
+                PyObject fieldValue = dictionary.__finditem__(name);
+                if(fieldValue != null) projected.__setitem__(name, fieldValue);
+            }
+            return projected;
+        }
+
+        /**
+         * Reads the next block that starts in this split, decoding the key, value and projected field columns.
+         *
+         * @return false if there are no more blocks.
+         */
+        private boolean readBlock() throws IOException {
+            if(in.getPos() >= end)
+            {
+                more = false;
+                return false;
+            }
+            try
+            {
+                in.readFully(syncCheck);
+            }
+            catch(EOFException e)
+            {
+                more = false;
+                return false;
+            }
+            if(!Arrays.equals(sync, syncCheck)) throw new IOException("Missing sync marker at byte " + (in.getPos() - ColumnarFile.SYNC_SIZE));
+
+            blockRows = WritableUtils.readVInt(in);
+            int columns = WritableUtils.readVInt(in);
+            String[] names = new String[columns];
+            int[] flags = new int[columns];
+            int[] rawLengths = new int[columns];
+            int[] storedLengths = new int[columns];
+            for(int i = 0; i < columns; i++)
+            {
+                names[i] = Text.readString(in);
+                flags[i] = WritableUtils.readVInt(in);
+                rawLengths[i] = WritableUtils.readVInt(in);
+                storedLengths[i] = WritableUtils.readVInt(in);
+            }
+
+            spareValues.addAll(fieldValues);
+            fieldNames.clear();
+            fieldValues.clear();
+            StringInterner interner = StringInterner.getInstance();
+            for(int i = 0; i < columns; i++)
+            {
+                boolean wanted = i == ColumnarFile.KEY_COLUMN || i == ColumnarFile.VALUE_COLUMN || fields == null || fields.contains(names[i]);
+                if(!wanted)
+                {
+                    in.seek(in.getPos() + storedLengths[i]);
+                    continue;
+                }
+                readChunk(flags[i], rawLengths[i], storedLengths[i]);
+                if(i == ColumnarFile.KEY_COLUMN) keys = ColumnarFile.decode(chunk, blockRows, keys);
+                else if(i == ColumnarFile.VALUE_COLUMN) values = ColumnarFile.decode(chunk, blockRows, values);
+                else
+                {
+                    PyObject[] reuse = spareValues.isEmpty() ? null : spareValues.remove(spareValues.size() - 1);
+                    fieldNames.add(interner.intern(names[i]));
+                    fieldValues.add(ColumnarFile.decode(chunk, blockRows, reuse));
+                }
+            }
+            row = 0;
+            return true;
+        }
+
+        private void readChunk(int flags, int rawLength, int storedLength) throws IOException {
+            if(storedLength > stored.length) stored = new byte[Math.max(storedLength, stored.length * 2)];
+            in.readFully(stored, 0, storedLength);
+            if((flags & ColumnarFile.COMPRESSED) == 0)
+            {
+                chunk.reset(stored, 0, storedLength);
+                return;
+            }
+            if(codec == null) throw new IOException("Compressed column found in a file without a codec");
+            if(rawLength > raw.length) raw = new byte[Math.max(rawLength, raw.length * 2)];
+            decompressor.reset();
+            CompressionInputStream compressedIn = codec.createInputStream(new ByteArrayInputStream(stored, 0, storedLength), decompressor);
+            int read = 0;
+            while(read < rawLength)
+            {
+                int count = compressedIn.read(raw, read, rawLength - read);
+                if(count < 0) throw new EOFException("Column chunk ended after " + read + " of " + rawLength + " bytes");
+                read += count;
+            }
+            chunk.reset(raw, 0, rawLength);
+        }
+
+        public long getPos() throws IOException {
+            return in.getPos();
+        }
+
+        public float getProgress() throws IOException {
+            if(end == start) return 0.0f;
+            return Math.min(1.0f, (in.getPos() - start) / (float)(end - start));
+        }
+
+        public void close() throws IOException {
+            if(decompressor != null) CodecPool.returnDecompressor(decompressor);
+            in.close();
+        }
+    }
+}
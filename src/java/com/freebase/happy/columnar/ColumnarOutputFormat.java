@@ -0,0 +1,232 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.columnar;
+
+import com.freebase.happy.json.JSON;
+import com.freebase.happy.json.JSONByteEncoder;
+import com.freebase.happy.json.JSONWritable;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.python.core.*;
+
+import java.io.IOException;
+import java.rmi.server.UID;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An OutputFormat that writes JSON values as blocks of columns, one column per top-level dictionary field.
+ * Each column picks the encoding that fits its values (run-length booleans, delta-encoded integers,
+ * dictionary or plain strings, doubles, or JSON for anything else) and is compressed separately with the
+ * job's output codec, so ColumnarInputFormat can read back only the fields a job asks for.
+ *
+ * Values can be JSONWritable, or Text holding JSON.  Values that aren't dictionaries, and dictionaries with
+ * fields that don't fit in the block's columns, are stored whole in a JSON column.
+ */
+public class ColumnarOutputFormat<K, V> extends FileOutputFormat<K, V> {
+    public static final String BLOCK_ROWS_KEY = "happy.columnar.blockrows";
+    public static final int DEFAULT_BLOCK_ROWS = 10000;
+    public static final String MAX_COLUMNS_KEY = "happy.columnar.maxcolumns";
+    public static final int DEFAULT_MAX_COLUMNS = 1024;
+
+    public RecordWriter<K, V> getRecordWriter(FileSystem ignored, JobConf job, String name, Progressable progress) throws IOException {
+        Path file = FileOutputFormat.getTaskOutputPath(job, name);
+        FileSystem fs = file.getFileSystem(job);
+        CompressionCodec codec = null;
+        if(getCompressOutput(job))
+        {
+            codec = ReflectionUtils.newInstance(getOutputCompressorClass(job, DefaultCodec.class), job);
+        }
+        return new ColumnarRecordWriter<K, V>(fs.create(file, progress), codec,
+                job.getInt(BLOCK_ROWS_KEY, DEFAULT_BLOCK_ROWS), job.getInt(MAX_COLUMNS_KEY, DEFAULT_MAX_COLUMNS));
+    }
+
+    /**
+     * Buffers rows column by column and writes them out a block at a time.
+     */
+    public static class ColumnarRecordWriter<K, V> implements RecordWriter<K, V> {
+        private static final int MIN_COMPRESSED_CHUNK = 128;
+
+        private final FSDataOutputStream out;
+        private final CompressionCodec codec;
+        private final Compressor compressor;
+        private final int blockRows;
+        private final int maxColumns;
+        private final byte[] sync;
+        private final ColumnarFile.ColumnBuilder keys = new ColumnarFile.ColumnBuilder("");
+        private final ColumnarFile.ColumnBuilder values = new ColumnarFile.ColumnBuilder("");
+        private final List<ColumnarFile.ColumnBuilder> fieldList = new ArrayList<ColumnarFile.ColumnBuilder>();
+        private final Map<String, ColumnarFile.ColumnBuilder> fields = new HashMap<String, ColumnarFile.ColumnBuilder>();
+        private final JSONByteEncoder json = new JSONByteEncoder(true);
+        private final DataOutputBuffer raw = new DataOutputBuffer();
+        private final DataOutputBuffer compressed = new DataOutputBuffer();
+        private final DataOutputBuffer chunks = new DataOutputBuffer();
+        private final DataOutputBuffer directory = new DataOutputBuffer();
+        private int rows = 0;
+
+        public ColumnarRecordWriter(FSDataOutputStream out, CompressionCodec codec, int blockRows, int maxColumns) throws IOException {
+            this.out = out;
+            this.codec = codec;
+            this.compressor = codec != null ? CodecPool.getCompressor(codec) : null;
+            this.blockRows = blockRows;
+            this.maxColumns = maxColumns;
+            sync = MD5Hash.digest(new UID().toString() + "@" + System.currentTimeMillis()).getDigest();
+            out.write(ColumnarFile.MAGIC);
+            Text.writeString(out, codec != null ? codec.getClass().getName() : "");
+            out.write(sync);
+        }
+
+        public synchronized void write(K key, V value) throws IOException {
+            keys.set(rows, key instanceof Text ? new PyUnicode(key.toString()) : toPyObject(key));
+            PyObject pyValue = toPyObject(value);
+            if(!(pyValue instanceof PyDictionary) || !setFields((PyDictionary)pyValue)) values.set(rows, pyValue);
+            if(++rows >= blockRows) writeBlock();
+        }
+
+        /**
+         * Spreads the fields of a dictionary over the field columns.
+         *
+         * @return false if a key isn't a string or there is no room left for a new column.
+         */
+        private boolean setFields(PyDictionary dictionary) {
+            int newColumns = 0;
+            PyObject iterator = dictionary.iterkeys();
+            PyObject key;
+            while((key = iterator.__iternext__()) != null)
+            {
+                if(!(key instanceof PyBaseString)) return false;
+                if(!fields.containsKey(key.toString())) newColumns++;
+            }
+            if(fields.size() + newColumns > maxColumns) return false;
+
+            iterator = dictionary.iteritems();
+            PyTuple tuple;
+            while((tuple = (PyTuple) iterator.__iternext__()) != null)
+            {
+                String name = tuple.pyget(0).toString();
+                ColumnarFile.ColumnBuilder column = fields.get(name);
+                if(column == null)
+                {
+                    column = new ColumnarFile.ColumnBuilder(name);
+                    fields.put(name, column);
+                    fieldList.add(column);
+                }
+                column.set(rows, tuple.pyget(1));
+            }
+            return true;
+        }
+
+        private PyObject toPyObject(Object o) throws IOException {
+            if(o == null) return Py.None;
+            else if(o instanceof JSONWritable) return ((JSONWritable)o).get();
+            else if(o instanceof Text) return (PyObject) JSON.decode(o.toString());
+            else if(o instanceof PyObject) return (PyObject)o;
+            else return new PyUnicode(o.toString());
+        }
+
+        private void writeBlock() throws IOException {
+            if(rows == 0) return;
+            chunks.reset();
+            directory.reset();
+            WritableUtils.writeVInt(directory, rows);
+            WritableUtils.writeVInt(directory, 2 + fieldList.size());
+            writeChunk(keys);
+            writeChunk(values);
+            for(ColumnarFile.ColumnBuilder column: fieldList) writeChunk(column);
+
+            out.write(sync);
+            out.write(directory.getData(), 0, directory.getLength());
+            out.write(chunks.getData(), 0, chunks.getLength());
+
+            // columns are rebuilt for each block, so fields that stop appearing don't linger:
+            keys.clear();
+            values.clear();
+            fields.clear();
+            fieldList.clear();
+            rows = 0;
+        }
+
+        private void writeChunk(ColumnarFile.ColumnBuilder column) throws IOException {
+            raw.reset();
+            column.encode(rows, raw, json);
+            int flags = 0;
+            DataOutputBuffer stored = raw;
+            if(codec != null && raw.getLength() >= MIN_COMPRESSED_CHUNK)
+            {
+                compressed.reset();
+                compressor.reset();
+                CompressionOutputStream compressedOut = codec.createOutputStream(compressed, compressor);
+                compressedOut.write(raw.getData(), 0, raw.getLength());
+                compressedOut.finish();
+                if(compressed.getLength() < raw.getLength())
+                {
+                    flags |= ColumnarFile.COMPRESSED;
+                    stored = compressed;
+                }
+            }
+            Text.writeString(directory, column.name);
+            WritableUtils.writeVInt(directory, flags);
+            WritableUtils.writeVInt(directory, raw.getLength());
+            WritableUtils.writeVInt(directory, stored.getLength());
+            chunks.write(stored.getData(), 0, stored.getLength());
+        }
+
+        public synchronized void close(Reporter reporter) throws IOException {
+            try
+            {
+                writeBlock();
+            }
+            finally
+            {
+                if(compressor != null) CodecPool.returnCompressor(compressor);
+                out.close();
+            }
+        }
+    }
+}
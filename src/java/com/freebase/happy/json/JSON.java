@@ -30,18 +30,17 @@
 
 package com.freebase.happy.json;
 
+import com.freebase.happy.bjson.BJSONView;
 import org.python.core.*;
 
 import java.io.IOException;
 import java.util.*;
-import java.lang.ref.WeakReference;
 
 /**
  * JavaScript encoder and decoder that works with Jython native objects.
  * The .encode() method also accepts Java List and Map classes.
  */
 public class JSON {
-    private static final StringInternMap internMap = new StringInternMap();
     private enum TokenType { object, array, stringValue, numberValue, booleanValue, nullValue }
 
     /**
@@ -70,11 +69,36 @@ public class JSON {
         return decodeReader(new Input(s));
     }
 
+    /**
+     * Decodes only the requested top-level fields of a JSON object.  Other fields are skipped without being decoded.
+     *
+     * @param s
+     * @param fieldNames
+     * @return a dictionary holding only the requested fields that are present.
+     * @throws java.io.IOException
+     */
+    public static Object decodeFields(String s, Collection fieldNames) throws IOException {
+        if(s == null) throw new IOException("Cannot decode null");
+        byte[] bytes = s.getBytes("UTF-8");
+        return JSONByteDecoder.decodeFields(bytes, 0, bytes.length, new JSONByteDecoder.FieldSet(fieldNames));
+    }
+
+    /**
+     * Interns a decoded string.
+     *
+     * @param s
+     * @return
+     */
+    static PyUnicode intern(String s) {
+        return StringInterner.getInstance().intern(s, false);
+    }
+
     ////////////////////////// Encoder Methods //////////////////////////////
 
     private static void encode(Object o, StringBuilder sb) throws IOException {
         if(o == null) sb.append("null");
         else if(o instanceof PyDictionary) encodePyDictionary((PyDictionary)o, sb);
+        else if(o instanceof BJSONView) encode(((BJSONView)o).materialize(), sb);
         else if(o instanceof PyBaseString) encodeString(o.toString(), sb);
         else if(o instanceof Number) sb.append(o.toString());
         else if(o instanceof Boolean) sb.append(o.toString().toLowerCase());
@@ -383,12 +407,12 @@ public class JSON {
         }
         if(sb != null)
         {
-            return internMap.intern(sb.toString(), false);
+            return StringInterner.getInstance().intern(sb.toString(), false);
         }
         else
         {
             if(in.index() - startIndex <= 1) return Py.EmptyString;
-            else return internMap.intern(in.string().substring(startIndex, in.index() - 1), true);
+            else return StringInterner.getInstance().intern(in.string().substring(startIndex, in.index() - 1), true);
         }
     }
 
@@ -530,27 +554,6 @@ public class JSON {
         }
     }
 
-    private static class StringInternMap
-    {
-        private WeakHashMap map = new WeakHashMap();
-
-        public synchronized PyUnicode intern(String s, boolean recreate)
-        {
-            WeakReference reference = (WeakReference) map.get(s);
-            PyUnicode ret;
-            if(reference != null)
-            {
-                ret = (PyUnicode) reference.get();
-                if(ret != null) return ret;
-            }
-            // this recreates the string to prevent memory leaks by String.substring():
-            if(recreate) s = new String(s);
-            ret = new PyUnicode(s);
-            map.put(s, new WeakReference(ret));
-            return ret;
-        }
-    }
-
     private static class Input
     {
         private String s;
@@ -0,0 +1,323 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.json;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobConfigurable;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputFormat for files that hold a single top-level JSON array.  Each element of the array is a record,
+ * with the element's byte offset as the key and the element as a JSONWritable value.
+ *
+ * Uncompressed files are split at element boundaries.  A split starts at the first element that follows
+ * a newline, so each element should start on a new line and must not contain raw newlines itself;
+ * pretty-printed arrays should not be split.
+ */
+public class JSONArrayInputFormat extends FileInputFormat<LongWritable, JSONWritable> implements JobConfigurable {
+    private CompressionCodecFactory compressionCodecs = null;
+
+    public void configure(JobConf conf) {
+        compressionCodecs = new CompressionCodecFactory(conf);
+    }
+
+    protected boolean isSplitable(FileSystem fs, Path file) {
+        return compressionCodecs.getCodec(file) == null;
+    }
+
+    public RecordReader<LongWritable, JSONWritable> getRecordReader(InputSplit split, JobConf job, Reporter reporter) throws IOException {
+        reporter.setStatus(split.toString());
+        return new JSONArrayRecordReader(job, (FileSplit) split, JSONInputFormat.getFieldSet(job));
+    }
+
+    /**
+     * Reads the elements of a JSON array whose separating newline falls inside a split.  Elements are
+     * located by scanning bytes for their ends, and are only decoded when the value is used.
+     */
+    public static class JSONArrayRecordReader implements RecordReader<LongWritable, JSONWritable> {
+        private final InputStream in;
+        private final long start;
+        private final long end;
+        private final JSONByteDecoder.FieldSet fields;
+        private final byte[] buffer = new byte[65536];
+        private int bufferPosition = 0;
+        private int bufferLength = 0;
+        private long pos;
+        private long lastNewline = -1;
+        private boolean first = true;
+        private boolean done = false;
+        private byte[] element = new byte[4096];
+        private int elementLength = 0;
+
+        public JSONArrayRecordReader(JobConf job, FileSplit split, JSONByteDecoder.FieldSet fields) throws IOException {
+            this.fields = fields;
+            Path file = split.getPath();
+            FileSystem fs = file.getFileSystem(job);
+            FSDataInputStream fileIn = fs.open(file);
+            CompressionCodec codec = new CompressionCodecFactory(job).getCodec(file);
+            if(codec != null)
+            {
+                in = codec.createInputStream(fileIn);
+                start = 0;
+                end = Long.MAX_VALUE;
+            }
+            else
+            {
+                in = fileIn;
+                start = split.getStart();
+                end = start + split.getLength();
+            }
+
+            if(start == 0)
+            {
+                pos = 0;
+                skipWhitespace();
+                if(read() != '[') throw new IOException("File does not hold a JSON array: " + file);
+            }
+            else
+            {
+                // back up one byte, so that an element whose line starts at the split start is ours:
+                fileIn.seek(start - 1);
+                pos = start - 1;
+                sync();
+            }
+        }
+
+        /**
+         * Moves to the first element that follows a newline at or after the split start.
+         */
+        private void sync() throws IOException {
+            while(true)
+            {
+                int c;
+                while((c = read()) != '\n')
+                {
+                    if(c == -1)
+                    {
+                        done = true;
+                        return;
+                    }
+                }
+                lastNewline = pos - 1;
+                skipWhitespace();
+                if(peek() == ',')
+                {
+                    read();
+                    skipWhitespace();
+                }
+                c = peek();
+                if(c == -1 || c == ']')
+                {
+                    done = true;
+                    return;
+                }
+                if(isValueStart(c))
+                {
+                    if(lastNewline >= end - 1) done = true;
+                    return;
+                }
+            }
+        }
+
+        public boolean next(LongWritable key, JSONWritable value) throws IOException {
+            if(done) return false;
+            lastNewline = -1;
+            skipWhitespace();
+            if(first)
+            {
+                if(peek() == ']')
+                {
+                    done = true;
+                    return false;
+                }
+                first = false;
+            }
+            else
+            {
+                int c = read();
+                if(c == ']' || c == -1)
+                {
+                    done = true;
+                    return false;
+                }
+                if(c != ',') throw new IOException("Expected ',' or ']' at byte " + (pos - 1) +
+                                                   "; split JSON array elements must each start on a new line");
+                skipWhitespace();
+                // the element belongs to the split that holds its line start:
+                if(lastNewline >= end - 1)
+                {
+                    done = true;
+                    return false;
+                }
+            }
+            if(!isValueStart(peek())) throw new IOException("Invalid JSON array element at byte " + pos);
+            key.set(pos);
+            readElement();
+            value.setSerializedBytes(element, 0, elementLength);
+            return true;
+        }
+
+        /**
+         * Copies the next value's bytes into the element buffer.
+         */
+        private void readElement() throws IOException {
+            elementLength = 0;
+            int c = peek();
+            if(c == '{' || c == '[')
+            {
+                int depth = 0;
+                boolean inString = false;
+                do
+                {
+                    c = read();
+                    if(c == -1) throw new IOException("Unexpected end of JSON array");
+                    append(c);
+                    if(inString)
+                    {
+                        if(c == '\\') append(read());
+                        else if(c == '"') inString = false;
+                    }
+                    else if(c == '"') inString = true;
+                    else if(c == '{' || c == '[') depth++;
+                    else if(c == '}' || c == ']') depth--;
+                }
+                while(depth > 0);
+            }
+            else if(c == '"')
+            {
+                append(read());
+                while(true)
+                {
+                    c = read();
+                    if(c == -1) throw new IOException("Unexpected end of JSON array");
+                    append(c);
+                    if(c == '\\') append(read());
+                    else if(c == '"') break;
+                }
+            }
+            else
+            {
+                while((c = peek()) != -1 && c != ',' && c != ']' && !isWhitespace(c)) append(read());
+            }
+        }
+
+        private void append(int c) throws IOException {
+            if(c == -1) throw new IOException("Unexpected end of JSON array");
+            if(elementLength == element.length)
+            {
+                byte[] grown = new byte[element.length * 2];
+                System.arraycopy(element, 0, grown, 0, elementLength);
+                element = grown;
+            }
+            element[elementLength++] = (byte) c;
+        }
+
+        private static boolean isValueStart(int c) {
+            return c == '{' || c == '[' || c == '"' || c == '-' || (c >= '0' && c <= '9') ||
+                   c == 't' || c == 'f' || c == 'n';
+        }
+
+        private static boolean isWhitespace(int c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+        }
+
+        /**
+         * Skips whitespace, remembering the position of the last newline.
+         */
+        private void skipWhitespace() throws IOException {
+            int c;
+            while((c = peek()) != -1 && isWhitespace(c))
+            {
+                if(c == '\n') lastNewline = pos;
+                read();
+            }
+        }
+
+        private int peek() throws IOException {
+            if(bufferPosition == bufferLength && !fill()) return -1;
+            return buffer[bufferPosition] & 0xFF;
+        }
+
+        private int read() throws IOException {
+            if(bufferPosition == bufferLength && !fill()) return -1;
+            pos++;
+            return buffer[bufferPosition++] & 0xFF;
+        }
+
+        private boolean fill() throws IOException {
+            bufferLength = in.read(buffer, 0, buffer.length);
+            bufferPosition = 0;
+            if(bufferLength <= 0)
+            {
+                bufferLength = 0;
+                return false;
+            }
+            return true;
+        }
+
+        public LongWritable createKey() {
+            return new LongWritable();
+        }
+
+        public JSONWritable createValue() {
+            JSONWritable value = new JSONWritable();
+            value.setFields(fields);
+            return value;
+        }
+
+        public long getPos() throws IOException {
+            return pos;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        public float getProgress() throws IOException {
+            if(done) return 1.0f;
+            if(end == Long.MAX_VALUE || start == end) return 0.0f;
+            return Math.min(1.0f, (pos - start) / (float) (end - start));
+        }
+    }
+}
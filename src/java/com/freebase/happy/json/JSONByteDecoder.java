@@ -0,0 +1,675 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.json;
+
+import org.python.core.*;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.util.Collection;
+
+/**
+ * JSON decoder that parses UTF-8 bytes directly into Jython native objects, without decoding them to a String first.
+ * Integers and most floats are parsed without allocating, and strings are decoded into a reusable char buffer.
+ * Accepts the same input as JSON.decode().
+ */
+public class JSONByteDecoder {
+    private static final ThreadLocal<JSONByteDecoder> decoders = new ThreadLocal<JSONByteDecoder>() {
+        protected JSONByteDecoder initialValue() {
+            return new JSONByteDecoder();
+        }
+    };
+
+    // exact powers of ten that can be used for fast float parsing:
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private byte[] bytes;
+    private int i;
+    private int start;
+    private int end;
+    private char[] chars = new char[256];
+
+    /**
+     * Decodes UTF-8 JSON bytes to Jython native objects.
+     *
+     * @param bytes
+     * @param start
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    public static PyObject decode(byte[] bytes, int start, int length) throws IOException {
+        if(length == 0) throw new IOException("Cannot decode an empty string");
+        JSONByteDecoder decoder = decoders.get();
+        decoder.reset(bytes, start, length);
+        try
+        {
+            return decoder.decodeValue();
+        }
+        finally
+        {
+            decoder.bytes = null;
+        }
+    }
+
+    /**
+     * Decodes only the requested top-level fields of a UTF-8 JSON object.  Other fields are skipped at the
+     * byte level without being decoded, and decoding stops as soon as all of the requested fields are found.
+     *
+     * @param bytes
+     * @param start
+     * @param length
+     * @param fields
+     * @return a dictionary holding only the requested fields that are present.
+     * @throws IOException
+     */
+    public static PyObject decodeFields(byte[] bytes, int start, int length, FieldSet fields) throws IOException {
+        if(length == 0) throw new IOException("Cannot decode an empty string");
+        JSONByteDecoder decoder = decoders.get();
+        decoder.reset(bytes, start, length);
+        try
+        {
+            return decoder.decodeProjectedObject(fields);
+        }
+        finally
+        {
+            decoder.bytes = null;
+        }
+    }
+
+    private void reset(byte[] bytes, int start, int length) {
+        this.bytes = bytes;
+        this.start = start;
+        this.i = start;
+        this.end = start + length;
+    }
+
+    ////////////////////////// Decoder Methods //////////////////////////////
+
+    private PyObject decodeValue() throws IOException {
+        consumeWhitespace();
+        switch(peek())
+        {
+            case '[': return decodeArray();
+            case '{': return decodeObject();
+            case '"':
+            case '\'': return decodeString();
+            case '-':
+            case '+':
+            case '0':
+            case '1':
+            case '2':
+            case '3':
+            case '4':
+            case '5':
+            case '6':
+            case '7':
+            case '8':
+            case '9':
+            case '.': return decodeNumber();
+            case 't':
+            case 'T':
+            case 'f':
+            case 'F': return decodeBoolean();
+            case 'n':
+            case 'N': return decodeNull();
+            default: throw new IOException(generateError("invalid value"));
+        }
+    }
+
+    private PyObject decodeNull() throws IOException {
+        int n = read();
+        int u = read();
+        int l1 = read();
+        int l2 = read();
+
+        if((n == 'N' || n == 'n') &&
+           (u == 'U' || u == 'u' || u == 'o' || u == 'O') &&
+           (l1 == 'L' || l1 == 'l' || l1 == 'n' || l1 == 'N') &&
+           (l2 == 'L' || l2 == 'l' || l2 == 'e' || l2 == 'E')) return Py.None;
+        else throw new IOException(generateError("invalid null value"));
+    }
+
+    private PyObject decodeBoolean() throws IOException {
+        int c = read();
+        switch(c)
+        {
+            case 't':
+            case 'T':
+                if(read() == 'r' && read() == 'u' && read() == 'e') return Py.True;
+                else break;
+            case 'f':
+            case 'F':
+                if(read() == 'a' && read() == 'l' && read() == 's' && read() == 'e') return Py.False;
+                else break;
+        }
+        throw new IOException(generateError("invalid boolean value"));
+    }
+
+    private PyObject decodeNumber() throws IOException {
+        int numberStart = i;
+        boolean negative = false;
+        int c = peek();
+        if(c == '-' || c == '+')
+        {
+            negative = c == '-';
+            i++;
+        }
+
+        // accumulate up to 18 significant digits, which can't overflow a long:
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean integer = true;
+        boolean exact = true;
+        while(i < end && (c = bytes[i]) >= '0' && c <= '9')
+        {
+            if(digits < 18)
+            {
+                mantissa = mantissa * 10 + (c - '0');
+                if(mantissa != 0) digits++;
+            }
+            else
+            {
+                exact = false;
+                exponent++;
+            }
+            i++;
+        }
+        if(i < end && bytes[i] == '.')
+        {
+            integer = false;
+            i++;
+            while(i < end && (c = bytes[i]) >= '0' && c <= '9')
+            {
+                if(digits < 18)
+                {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if(mantissa != 0) digits++;
+                    exponent--;
+                }
+                else exact = false;
+                i++;
+            }
+        }
+        if(i < end && (bytes[i] == 'e' || bytes[i] == 'E'))
+        {
+            integer = false;
+            i++;
+            boolean negativeExponent = false;
+            if(i < end && (bytes[i] == '-' || bytes[i] == '+'))
+            {
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            int e = 0;
+            int exponentStart = i;
+            while(i < end && (c = bytes[i]) >= '0' && c <= '9')
+            {
+                if(e < 10000) e = e * 10 + (c - '0');
+                i++;
+            }
+            if(i == exponentStart) throw new IOException(generateError("invalid number"));
+            exponent += negativeExponent ? -e : e;
+        }
+        if(i == numberStart || (i == numberStart + 1 && (negative || bytes[numberStart] == '+')))
+        {
+            throw new IOException(generateError("invalid number"));
+        }
+
+        if(integer)
+        {
+            if(exact) return Py.newInteger(negative ? -mantissa : mantissa);
+            // more digits than fit in the fast path:
+            String number = ascii(numberStart, i);
+            try
+            {
+                return Py.newInteger(Long.parseLong(number));
+            }
+            catch(NumberFormatException e)
+            {
+                return Py.newLong(new BigInteger(number));
+            }
+        }
+        // exact fast path: the mantissa and power of ten are both exactly representable as doubles:
+        if(exact && mantissa < (1L << 53) && exponent >= -22 && exponent <= 22)
+        {
+            double d = mantissa;
+            if(exponent < 0) d /= POWERS_OF_TEN[-exponent];
+            else d *= POWERS_OF_TEN[exponent];
+            return Py.newFloat(negative ? -d : d);
+        }
+        return Py.newFloat(Double.parseDouble(ascii(numberStart, i)));
+    }
+
+    private PyObject decodeString() throws IOException {
+        int quote = read();
+        if(quote != '\'' && quote != '"') throw new IOException(generateError("invalid string value"));
+
+        // fast path for plain ascii strings:
+        int stringStart = i;
+        while(i < end)
+        {
+            int c = bytes[i];
+            if(c == quote)
+            {
+                int length = i - stringStart;
+                i++;
+                if(length == 0) return Py.EmptyString;
+                char[] buffer = getChars(length);
+                for(int j = 0; j < length; j++) buffer[j] = (char) bytes[stringStart + j];
+                return JSON.intern(new String(buffer, 0, length));
+            }
+            if(c == '\\' || c < 0) break;
+            i++;
+        }
+
+        // slow path for escapes and multi-byte characters:
+        i = stringStart;
+        int length = 0;
+        char[] buffer = getChars(64);
+        while(true)
+        {
+            if(i >= end) throw new IOException(generateError("invalid string value"));
+            int c = bytes[i++] & 0xff;
+            if(c == quote) break;
+            if(length + 2 > buffer.length) buffer = growChars(length + 2);
+            if(c == '\\')
+            {
+                int esc = read();
+                switch(esc)
+                {
+                    case '\'': buffer[length++] = '\''; break;
+                    case '\"': buffer[length++] = '\"'; break;
+                    case '\\': buffer[length++] = '\\'; break;
+                    case '/': buffer[length++] = '/'; break;
+                    case 'b': buffer[length++] = '\b'; break;
+                    case 'f': buffer[length++] = '\f'; break;
+                    case 'n': buffer[length++] = '\n'; break;
+                    case 'r': buffer[length++] = '\r'; break;
+                    case 't': buffer[length++] = '\t'; break;
+                    case 'u':
+                        buffer[length++] = (char) ((decodeDigit(read()) << 12) +
+                                (decodeDigit(read()) << 8) +
+                                (decodeDigit(read()) << 4) +
+                                decodeDigit(read()));
+                        break;
+                    default:
+                        throw new IOException(generateError("invalid escape sequence"));
+                }
+            }
+            else if(c < 0x80)
+            {
+                buffer[length++] = (char) c;
+            }
+            else if((c & 0xe0) == 0xc0)
+            {
+                buffer[length++] = (char) (((c & 0x1f) << 6) | continuation());
+            }
+            else if((c & 0xf0) == 0xe0)
+            {
+                int c2 = continuation();
+                buffer[length++] = (char) (((c & 0x0f) << 12) | (c2 << 6) | continuation());
+            }
+            else if((c & 0xf8) == 0xf0)
+            {
+                int c2 = continuation();
+                int c3 = continuation();
+                int codePoint = ((c & 0x07) << 18) | (c2 << 12) | (c3 << 6) | continuation();
+                codePoint -= 0x10000;
+                buffer[length++] = (char) ((codePoint >> 10) + 0xd800);
+                buffer[length++] = (char) ((codePoint & 0x3ff) + 0xdc00);
+            }
+            else throw new IOException(generateError("invalid UTF-8 sequence"));
+        }
+        if(length == 0) return Py.EmptyString;
+        return JSON.intern(new String(buffer, 0, length));
+    }
+
+    private int continuation() throws IOException {
+        if(i >= end) throw new IOException(generateError("invalid UTF-8 sequence"));
+        int c = bytes[i++] & 0xff;
+        if((c & 0xc0) != 0x80) throw new IOException(generateError("invalid UTF-8 sequence"));
+        return c & 0x3f;
+    }
+
+    private PyObject decodeObject() throws IOException {
+        if(read() != '{') throw new IOException(generateError("invalid object"));
+        PyDictionary pyDictionary = new PyDictionary();
+
+        // catch empty objects:
+        consumeWhitespace();
+        if(peek() == '}')
+        {
+            i++;
+            return pyDictionary;
+        }
+
+        while(true)
+        {
+            // get the key:
+            consumeWhitespace();
+            PyObject key = decodeValue();
+            if(!(key instanceof PyString)) throw new IOException(generateError("key must be string"));
+
+            // get the value:
+            consumeWhitespace();
+            if(read() != ':') throw new IOException(generateError("key missing value"));
+            pyDictionary.__setitem__(key, decodeValue());
+
+            // move to the next key or the end of the object:
+            consumeWhitespace();
+            int c = read();
+            if(c == '}') return pyDictionary;
+            else if(c != ',') throw new IOException(generateError("invalid object"));
+        }
+    }
+
+    private PyObject decodeArray() throws IOException {
+        if(read() != '[') throw new IOException(generateError("invalid array"));
+        PyList objects = new PyList();
+
+        // catch empty arrays:
+        consumeWhitespace();
+        if(peek() == ']')
+        {
+            i++;
+            return objects;
+        }
+
+        while(true)
+        {
+            // get the value:
+            consumeWhitespace();
+            objects.pyadd(decodeValue());
+
+            // move to the next value or the end of the array:
+            consumeWhitespace();
+            int c = read();
+            if(c == ']') return objects;
+            else if(c != ',') throw new IOException(generateError("invalid array"));
+        }
+    }
+
+    ////////////////////////// Projection Methods //////////////////////////////
+
+    private PyObject decodeProjectedObject(FieldSet fields) throws IOException {
+        consumeWhitespace();
+        if(read() != '{') throw new IOException(generateError("projected decoding requires an object"));
+        PyDictionary pyDictionary = new PyDictionary();
+
+        // catch empty objects:
+        consumeWhitespace();
+        if(peek() == '}')
+        {
+            i++;
+            return pyDictionary;
+        }
+
+        int found = 0;
+        while(true)
+        {
+            // match the key:
+            consumeWhitespace();
+            int field = matchKey(fields);
+
+            // decode or skip the value:
+            consumeWhitespace();
+            if(read() != ':') throw new IOException(generateError("key missing value"));
+            if(field >= 0)
+            {
+                pyDictionary.__setitem__(fields.keys[field], decodeValue());
+                if(++found == fields.size()) return pyDictionary;
+            }
+            else skipValue();
+
+            // move to the next key or the end of the object:
+            consumeWhitespace();
+            int c = read();
+            if(c == '}') return pyDictionary;
+            else if(c != ',') throw new IOException(generateError("invalid object"));
+        }
+    }
+
+    /**
+     * Reads an object key and returns the index of the matching field, or -1.
+     * Keys without escapes are compared as raw bytes.
+     */
+    private int matchKey(FieldSet fields) throws IOException {
+        int quote = peek();
+        if(quote != '"' && quote != '\'') throw new IOException(generateError("key must be string"));
+        int keyStart = i + 1;
+        for(int j = keyStart; j < end; j++)
+        {
+            int c = bytes[j];
+            if(c == quote)
+            {
+                i = j + 1;
+                return fields.indexOf(bytes, keyStart, j - keyStart);
+            }
+            if(c == '\\') break;
+        }
+        return fields.indexOf(decodeString().toString());
+    }
+
+    private void skipValue() throws IOException {
+        consumeWhitespace();
+        switch(peek())
+        {
+            case '"':
+            case '\'':
+                skipString();
+                return;
+            case '{':
+            case '[':
+                skipContainer();
+                return;
+            default:
+                int valueStart = i;
+                while(i < end)
+                {
+                    switch(bytes[i])
+                    {
+                        case ',':
+                        case '}':
+                        case ']':
+                        case ' ':
+                        case '\t':
+                        case '\n':
+                        case '\r':
+                        case '\f':
+                            if(i == valueStart) throw new IOException(generateError("invalid value"));
+                            return;
+                    }
+                    i++;
+                }
+                if(i == valueStart) throw new IOException(generateError("invalid value"));
+        }
+    }
+
+    private void skipString() throws IOException {
+        int quote = read();
+        while(i < end)
+        {
+            int c = bytes[i++];
+            if(c == '\\') i++;
+            else if(c == quote) return;
+        }
+        throw new IOException(generateError("invalid string value"));
+    }
+
+    private void skipContainer() throws IOException {
+        int depth = 0;
+        while(i < end)
+        {
+            switch(bytes[i])
+            {
+                case '"':
+                case '\'':
+                    skipString();
+                    continue;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    if(--depth == 0)
+                    {
+                        i++;
+                        return;
+                    }
+            }
+            i++;
+        }
+        throw new IOException(generateError("unterminated value"));
+    }
+
+    private static int decodeDigit(int digit) throws IOException {
+        if(digit >= '0' && digit <= '9') return digit - '0';
+        else if(digit >= 'a' && digit <= 'f') return digit - 'a' + 10;
+        else if(digit >= 'A' && digit <= 'F') return digit - 'A' + 10;
+        else if(digit == -1) throw new IOException("Invalid end of string");
+        else throw new IOException("Illegal hex digit " + (char)digit);
+    }
+
+    ////////////////////////// Input Methods //////////////////////////////
+
+    private int read() {
+        if(i < end) return bytes[i++] & 0xff;
+        else return -1;
+    }
+
+    private int peek() {
+        if(i < end) return bytes[i] & 0xff;
+        else return -1;
+    }
+
+    private void consumeWhitespace() {
+        while(i < end)
+        {
+            switch(bytes[i])
+            {
+                case ' ':
+                case '\t':
+                case '\n':
+                case '\r':
+                case '\f': break;
+                default: return;
+            }
+            i++;
+        }
+    }
+
+    private char[] getChars(int length) {
+        if(chars.length < length) chars = new char[Math.max(length, chars.length * 2)];
+        return chars;
+    }
+
+    private char[] growChars(int length) {
+        char[] newChars = new char[Math.max(length, chars.length * 2)];
+        System.arraycopy(chars, 0, newChars, 0, chars.length);
+        chars = newChars;
+        return chars;
+    }
+
+    private String ascii(int from, int to) {
+        char[] buffer = getChars(to - from);
+        for(int j = from; j < to; j++) buffer[j - from] = (char) bytes[j];
+        return new String(buffer, 0, to - from);
+    }
+
+    private String generateError(String error) {
+        int errorStart = Math.max(start, i - 5);
+        int errorEnd = Math.min(end, errorStart + 10);
+        return "Error " + error + " at byte " + (i - start) + ": ..." + ascii(errorStart, errorEnd) + "...";
+    }
+
+    /**
+     * A set of top-level field names for projected decoding, with their UTF-8 encodings precomputed.
+     */
+    public static class FieldSet
+    {
+        private final String[] names;
+        private final byte[][] encodedNames;
+        private final PyObject[] keys;
+
+        public FieldSet(Collection fieldNames) {
+            int size = fieldNames.size();
+            names = new String[size];
+            encodedNames = new byte[size][];
+            keys = new PyObject[size];
+            int index = 0;
+            for(Object fieldName: fieldNames)
+            {
+                names[index] = fieldName.toString();
+                try
+                {
+                    encodedNames[index] = names[index].getBytes("UTF-8");
+                }
+                catch(UnsupportedEncodingException e)
+                {
+                    throw new RuntimeException(e);
+                }
+                keys[index] = JSON.intern(names[index]);
+                index++;
+            }
+        }
+
+        public int size() {
+            return names.length;
+        }
+
+        private int indexOf(String name) {
+            for(int i = 0; i < names.length; i++)
+            {
+                if(names[i].equals(name)) return i;
+            }
+            return -1;
+        }
+
+        private int indexOf(byte[] bytes, int start, int length) {
+            for(int i = 0; i < encodedNames.length; i++)
+            {
+                byte[] encodedName = encodedNames[i];
+                if(encodedName.length != length) continue;
+                int j = 0;
+                while(j < length && encodedName[j] == bytes[start + j]) j++;
+                if(j == length) return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.json;
+
+import com.freebase.happy.bjson.BJSONView;
+import org.apache.hadoop.io.Text;
+import org.python.core.*;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * JSON encoder that writes UTF-8 bytes straight into a reusable, growable buffer instead of building a String.
+ * Produces the same output as JSON.encode(), except that in raw unicode mode non-ASCII characters are written
+ * as UTF-8 instead of unicode escapes.
+ * Instances are not thread-safe.
+ */
+public class JSONByteEncoder {
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+
+    private final boolean rawUnicode;
+    private byte[] buffer = new byte[512];
+    private int length = 0;
+    private final char[] digits = new char[20];
+
+    /**
+     * @param rawUnicode if true, non-ASCII characters are written as raw UTF-8 instead of escapes.
+     */
+    public JSONByteEncoder(boolean rawUnicode) {
+        this.rawUnicode = rawUnicode;
+    }
+
+    public JSONByteEncoder() {
+        this(false);
+    }
+
+    /**
+     * Encodes an object into the buffer, replacing anything that was there.
+     *
+     * @param o
+     * @throws IOException
+     */
+    public void encode(Object o) throws IOException {
+        length = 0;
+        encodeValue(o);
+    }
+
+    /**
+     * Encodes an object into a Text.
+     *
+     * @param o
+     * @param text
+     * @throws IOException
+     */
+    public void encode(Object o, Text text) throws IOException {
+        encode(o);
+        text.set(buffer, 0, length);
+    }
+
+    /**
+     * Returns the buffer holding the last encoded value.  Only the first getLength() bytes are valid.
+     *
+     * @return
+     */
+    public byte[] getBytes() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public boolean isRawUnicode() {
+        return rawUnicode;
+    }
+
+    ////////////////////////// Encoder Methods //////////////////////////////
+
+    private void encodeValue(Object o) throws IOException {
+        if(o == null) write(NULL);
+        else if(o instanceof PyDictionary) encodePyDictionary((PyDictionary)o);
+        else if(o instanceof BJSONView) encodeValue(((BJSONView)o).materialize());
+        else if(o instanceof PyBaseString) encodeString(o.toString());
+        else if(o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte)
+        {
+            encodeLong(((Number)o).longValue());
+        }
+        else if(o instanceof Number) writeAscii(o.toString());
+        else if(o instanceof Boolean) write(((Boolean)o) ? TRUE : FALSE);
+        else if(o instanceof String) encodeString((String)o);
+        else if(o instanceof PyBoolean) write(((PyBoolean)o).getValue() != 0 ? TRUE : FALSE);
+        else if(o instanceof PyFloat) writeAscii(Double.toString(((PyFloat)o).getValue()));
+        else if(o instanceof PyInteger) encodeLong(((PyInteger)o).getValue());
+        else if(o instanceof PyLong) encodeLong(((PyLong)o).getValue().longValue());
+        else if(o instanceof List) encodeList((List)o);
+        else if(o instanceof Map) encodeMap((Map)o);
+        else if(o.getClass().isArray()) encodeList(Arrays.asList(o));
+        else if(Py.None.equals(o)) write(NULL);
+        else
+        {
+            throw new IOException("Unknown object " + o.toString());
+        }
+    }
+
+    private void encodeList(List l) throws IOException {
+        write('[');
+        for(Iterator iterator = l.iterator(); iterator.hasNext();)
+        {
+            encodeValue(iterator.next());
+            if(iterator.hasNext())
+            {
+                write(',');
+                write(' ');
+            }
+        }
+        write(']');
+    }
+
+    private void encodeMap(Map m) throws IOException {
+        write('{');
+        for(Iterator iterator = m.entrySet().iterator(); iterator.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            encodeString(entry.getKey().toString());
+            write(':');
+            encodeValue(entry.getValue());
+            if(iterator.hasNext())
+            {
+                write(',');
+                write(' ');
+            }
+        }
+        write('}');
+    }
+
+    private void encodePyDictionary(PyDictionary m) throws IOException {
+        write('{');
+        PyObject iterator = m.iteritems();
+        PyTuple tuple;
+        int counter = 0;
+        int size = m.size();
+        while((tuple = (PyTuple) iterator.__iternext__()) != null)
+        {
+            encodeValue(tuple.pyget(0));
+            write(':');
+            encodeValue(tuple.pyget(1));
+            if(counter < size - 1)
+            {
+                write(',');
+                write(' ');
+            }
+            counter++;
+        }
+        write('}');
+    }
+
+    private void encodeString(String s) {
+        int stringLength = s.length();
+        // worst case is a 6 byte escape for every char:
+        ensureCapacity(length + stringLength * 6 + 2);
+        byte[] b = buffer;
+        int n = length;
+        b[n++] = '"';
+        for(int index = 0; index < stringLength; index++)
+        {
+            char c = s.charAt(index);
+            if(c >= ' ' && c <= '~')
+            {
+                if(c == '"' || c == '\\')
+                {
+                    b[n++] = '\\';
+                }
+                b[n++] = (byte) c;
+                continue;
+            }
+            switch(c)
+            {
+                case '\b': b[n++] = '\\'; b[n++] = 'b'; continue;
+                case '\f': b[n++] = '\\'; b[n++] = 'f'; continue;
+                case '\n': b[n++] = '\\'; b[n++] = 'n'; continue;
+                case '\r': b[n++] = '\\'; b[n++] = 'r'; continue;
+                case '\t': b[n++] = '\\'; b[n++] = 't'; continue;
+            }
+            if(rawUnicode && c >= 0x80)
+            {
+                if(c < 0x800)
+                {
+                    b[n++] = (byte) (0xc0 | (c >> 6));
+                    b[n++] = (byte) (0x80 | (c & 0x3f));
+                    continue;
+                }
+                else if(c < 0xd800 || c > 0xdfff)
+                {
+                    b[n++] = (byte) (0xe0 | (c >> 12));
+                    b[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    b[n++] = (byte) (0x80 | (c & 0x3f));
+                    continue;
+                }
+                else if(Character.isHighSurrogate(c) && index + 1 < stringLength &&
+                        Character.isLowSurrogate(s.charAt(index + 1)))
+                {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++index));
+                    b[n++] = (byte) (0xf0 | (codePoint >> 18));
+                    b[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    b[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    b[n++] = (byte) (0x80 | (codePoint & 0x3f));
+                    continue;
+                }
+                // lone surrogates can't be written as UTF-8, so they're escaped below.
+            }
+            b[n++] = '\\';
+            b[n++] = 'u';
+            b[n++] = HEX[(c >> 12) & 0xF];
+            b[n++] = HEX[(c >> 8) & 0xF];
+            b[n++] = HEX[(c >> 4) & 0xF];
+            b[n++] = HEX[c & 0xF];
+        }
+        b[n++] = '"';
+        length = n;
+    }
+
+    private void encodeLong(long l) {
+        if(l == Long.MIN_VALUE)
+        {
+            writeAscii(Long.toString(l));
+            return;
+        }
+        ensureCapacity(length + 20);
+        if(l < 0)
+        {
+            buffer[length++] = '-';
+            l = -l;
+        }
+        int count = 0;
+        do
+        {
+            digits[count++] = (char) ('0' + (l % 10));
+            l /= 10;
+        }
+        while(l > 0);
+        while(count > 0) buffer[length++] = (byte) digits[--count];
+    }
+
+    ////////////////////////// Output Methods //////////////////////////////
+
+    private void write(int b) {
+        ensureCapacity(length + 1);
+        buffer[length++] = (byte) b;
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(length + bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void writeAscii(String s) {
+        ensureCapacity(length + s.length());
+        for(int index = 0; index < s.length(); index++) buffer[length++] = (byte) s.charAt(index);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(buffer.length < capacity)
+        {
+            byte[] newBuffer = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, newBuffer, 0, length);
+            buffer = newBuffer;
+        }
+    }
+}
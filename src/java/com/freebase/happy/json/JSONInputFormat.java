@@ -38,23 +38,42 @@ import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reporter;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * An InputFormat that handles Text keys and JSON values, seperated by a tab.
  */
 public class JSONInputFormat extends TextOrSequenceInputFormat {
-
+    public static final String FIELDS_KEY = "happy.inputfields";
 
     public RecordReader getRecordReader(InputSplit split, JobConf job, Reporter reporter) throws IOException {
-        return new JSONRecordReader(super.getRecordReader(split, job, reporter));
+        return new JSONRecordReader(super.getRecordReader(split, job, reporter), getFieldSet(job));
+    }
+
+    /**
+     * Returns the top-level fields that JSON input values should be restricted to, or null for whole values.
+     *
+     * @param job
+     * @return
+     */
+    public static JSONByteDecoder.FieldSet getFieldSet(JobConf job) {
+        String[] fields = job.getStrings(FIELDS_KEY);
+        if(fields == null || fields.length == 0) return null;
+        return new JSONByteDecoder.FieldSet(Arrays.asList(fields));
     }
 
     public static class JSONRecordReader implements RecordReader<Text, JSONWritable> {
         private RecordReader reader;
         private Text innervalue = new Text();
+        private JSONByteDecoder.FieldSet fields;
 
         public JSONRecordReader(RecordReader reader) throws IOException {
+            this(reader, null);
+        }
+
+        public JSONRecordReader(RecordReader reader, JSONByteDecoder.FieldSet fields) throws IOException {
             this.reader = reader;
+            this.fields = fields;
             if(!(reader.createKey() instanceof Text) || !(reader.createValue() instanceof Text))
             {
                 throw new IllegalArgumentException("Input reader must have text keys and values: " + reader);
@@ -63,7 +82,7 @@ public class JSONInputFormat extends TextOrSequenceInputFormat {
 
         public boolean next(Text key, JSONWritable value) throws IOException {
             if (reader.next(key, innervalue)) {
-                value.setSerialized(innervalue.toString());
+                value.setSerializedBytes(innervalue.getBytes(), 0, innervalue.getLength());
                 return true;
             } else return false;
         }
@@ -73,7 +92,9 @@ public class JSONInputFormat extends TextOrSequenceInputFormat {
         }
 
         public JSONWritable createValue() {
-            return new JSONWritable();
+            JSONWritable value = new JSONWritable();
+            value.setFields(fields);
+            return value;
         }
 
         public long getPos() throws IOException {
@@ -0,0 +1,272 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.json;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobConfigurable;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputFormat for JSON Lines files: one bare JSON value per line, with no key.  The key is the byte
+ * offset of the record and the value is the decoded JSONWritable.
+ *
+ * Records may also span several lines, as long as continuation lines are indented, as pretty-printers do.
+ * A record starts on any line that begins with a JSON value, so a split skips the continuation lines of a
+ * record that started in the previous split, and a record that is cut short is dropped when an unindented
+ * object or array starts the next one.  Records that can't be decoded are skipped and counted in the JSONL_BAD_RECORDS counter.
+ */
+public class JSONLInputFormat extends FileInputFormat<LongWritable, JSONWritable> implements JobConfigurable {
+    public static final Log LOG = LogFactory.getLog(JSONLInputFormat.class);
+    public static final String MAX_RECORD_KEY = "happy.jsonl.maxrecord";
+    public static final int DEFAULT_MAX_RECORD = 64 * 1024 * 1024;
+    public static final String COUNTER_GROUP = "Happy";
+
+    private CompressionCodecFactory compressionCodecs = null;
+
+    public void configure(JobConf conf) {
+        compressionCodecs = new CompressionCodecFactory(conf);
+    }
+
+    protected boolean isSplitable(FileSystem fs, Path file) {
+        return compressionCodecs.getCodec(file) == null;
+    }
+
+    public RecordReader<LongWritable, JSONWritable> getRecordReader(InputSplit split, JobConf job, Reporter reporter) throws IOException {
+        reporter.setStatus(split.toString());
+        return new JSONLRecordReader(job, (FileSplit) split, JSONInputFormat.getFieldSet(job), reporter);
+    }
+
+    /**
+     * Reads the records that start inside a split, decoding each one on the reading thread.
+     */
+    public static class JSONLRecordReader implements RecordReader<LongWritable, JSONWritable> {
+        private final InputStream in;
+        private final long start;
+        private final long end;
+        private final int maxRecord;
+        private final JSONByteDecoder.FieldSet fields;
+        private final Reporter reporter;
+        private final byte[] buffer = new byte[65536];
+        private int bufferPosition = 0;
+        private int bufferLength = 0;
+        private long pos;
+        private byte[] record = new byte[4096];
+        private int recordLength = 0;
+        private long badRecords = 0;
+
+        public JSONLRecordReader(JobConf job, FileSplit split, JSONByteDecoder.FieldSet fields, Reporter reporter) throws IOException {
+            this.fields = fields;
+            this.reporter = reporter;
+            maxRecord = job.getInt(MAX_RECORD_KEY, DEFAULT_MAX_RECORD);
+            Path file = split.getPath();
+            FileSystem fs = file.getFileSystem(job);
+            FSDataInputStream fileIn = fs.open(file);
+            CompressionCodec codec = new CompressionCodecFactory(job).getCodec(file);
+            if(codec != null)
+            {
+                in = codec.createInputStream(fileIn);
+                start = 0;
+                end = Long.MAX_VALUE;
+                pos = 0;
+            }
+            else
+            {
+                in = fileIn;
+                start = split.getStart();
+                end = start + split.getLength();
+                pos = start;
+                if(start != 0)
+                {
+                    // back up one byte and skip to the next line, so a line starting at the split start is ours:
+                    fileIn.seek(start - 1);
+                    pos = start - 1;
+                    skipLine();
+                }
+            }
+        }
+
+        public boolean next(LongWritable key, JSONWritable value) throws IOException {
+            while(true)
+            {
+                // skip lines that don't start a record, such as blank lines and continuations:
+                int c;
+                while((c = peek()) != -1 && !isValueStart(c) && pos < end) skipLine();
+                if(c == -1 || pos >= end) return false;
+
+                long recordStart = pos;
+                if(!readRecord()) continue;
+                value.setSerializedBytes(record, 0, recordLength);
+                try
+                {
+                    value.get();
+                }
+                catch(RuntimeException e)
+                {
+                    if(badRecords++ < 10) LOG.warn("Skipping bad JSON record at byte " + recordStart + ": " + e.getMessage());
+                    if(reporter != null) reporter.incrCounter(COUNTER_GROUP, "JSONL_BAD_RECORDS", 1);
+                    continue;
+                }
+                key.set(recordStart);
+                return true;
+            }
+        }
+
+        /**
+         * Copies the record at the current position into the record buffer, following continuation lines
+         * until its objects and arrays are closed.
+         *
+         * @return false if the record was cut short by the start of another record or the end of the file.
+         */
+        private boolean readRecord() throws IOException {
+            recordLength = 0;
+            int depth = 0;
+            boolean inString = false;
+            int c;
+            while((c = read()) != -1)
+            {
+                if(c == '\n')
+                {
+                    if(depth == 0) break;
+                    // an unindented object or array begins a new record, so this one was cut short:
+                    int next = peek();
+                    if(next == '{' || next == '[')
+                    {
+                        if(badRecords++ < 10) LOG.warn("Dropping incomplete JSON record ending at byte " + pos);
+                        if(reporter != null) reporter.incrCounter(COUNTER_GROUP, "JSONL_BAD_RECORDS", 1);
+                        return false;
+                    }
+                    inString = false;
+                }
+                append(c);
+                if(inString)
+                {
+                    if(c == '\\')
+                    {
+                        c = peek();
+                        if(c != -1 && c != '\n') append(read());
+                    }
+                    else if(c == '"') inString = false;
+                }
+                else if(c == '"') inString = true;
+                else if(c == '{' || c == '[') depth++;
+                else if(c == '}' || c == ']') depth--;
+            }
+            if(c == -1 && depth > 0)
+            {
+                if(badRecords++ < 10) LOG.warn("Dropping incomplete JSON record at the end of the file");
+                if(reporter != null) reporter.incrCounter(COUNTER_GROUP, "JSONL_BAD_RECORDS", 1);
+                return false;
+            }
+            return true;
+        }
+
+        private void append(int c) throws IOException {
+            if(recordLength == record.length)
+            {
+                if(recordLength >= maxRecord) throw new IOException("JSON record at byte " + pos + " is longer than " + maxRecord + " bytes");
+                byte[] grown = new byte[Math.min(record.length * 2, maxRecord)];
+                System.arraycopy(record, 0, grown, 0, recordLength);
+                record = grown;
+            }
+            record[recordLength++] = (byte) c;
+        }
+
+        private static boolean isValueStart(int c) {
+            return c == '{' || c == '[' || c == '"' || c == '-' || (c >= '0' && c <= '9') ||
+                   c == 't' || c == 'f' || c == 'n';
+        }
+
+        private void skipLine() throws IOException {
+            int c;
+            while((c = read()) != -1 && c != '\n');
+        }
+
+        private int peek() throws IOException {
+            if(bufferPosition == bufferLength && !fill()) return -1;
+            return buffer[bufferPosition] & 0xFF;
+        }
+
+        private int read() throws IOException {
+            if(bufferPosition == bufferLength && !fill()) return -1;
+            pos++;
+            return buffer[bufferPosition++] & 0xFF;
+        }
+
+        private boolean fill() throws IOException {
+            bufferLength = in.read(buffer, 0, buffer.length);
+            bufferPosition = 0;
+            if(bufferLength <= 0)
+            {
+                bufferLength = 0;
+                return false;
+            }
+            return true;
+        }
+
+        public LongWritable createKey() {
+            return new LongWritable();
+        }
+
+        public JSONWritable createValue() {
+            JSONWritable value = new JSONWritable();
+            value.setFields(fields);
+            return value;
+        }
+
+        public long getPos() throws IOException {
+            return pos;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        public float getProgress() throws IOException {
+            if(end == Long.MAX_VALUE || start == end) return 0.0f;
+            return Math.min(1.0f, (pos - start) / (float) (end - start));
+        }
+    }
+}
@@ -30,12 +30,12 @@
 
 package com.freebase.happy.json;
 
+import com.freebase.happy.bjson.BJSONView;
 import org.python.core.*;
 
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
-import java.lang.ref.WeakReference;
 import java.util.*;
 
 /**
@@ -43,7 +43,6 @@ import java.util.*;
  * The .encode() method also accepts Java List and Map classes.
  */
 public class JSONStream {
-    private static final StringInternMap internMap = new StringInternMap();
     private enum TokenType { object, array, stringValue, numberValue, booleanValue, nullValue }
 
     /**
@@ -56,6 +55,7 @@ public class JSONStream {
     public static void encode(Object o, Writer out) throws IOException {
         if(o == null) out.append("null");
         else if(o instanceof PyDictionary) encodePyDictionary((PyDictionary)o, out);
+        else if(o instanceof BJSONView) encode(((BJSONView)o).materialize(), out);
         else if(o instanceof PyBaseString) encodeString(o.toString(), out);
         else if(o instanceof Number) out.append(o.toString());
         else if(o instanceof Boolean) out.append(o.toString().toLowerCase());
@@ -84,6 +84,205 @@ public class JSONStream {
         return decodeReader(new Input(in));
     }
 
+    /**
+     * Returns a pull parser that reads JSON events from a Reader without building the whole value.
+     *
+     * @param in
+     * @return
+     */
+    public static Parser parse(Reader in) {
+        return new Parser(in);
+    }
+
+    /**
+     * Returns a Python iterator over the elements of a top-level JSON array.  Only one element is decoded
+     * at a time, so the array does not have to fit in memory.
+     *
+     * @param in
+     * @return
+     * @throws java.io.IOException
+     */
+    public static PyIterator iterateArray(Reader in) throws IOException {
+        return new ArrayIterator(new Parser(in));
+    }
+
+    /**
+     * Parser events.  KEY and VALUE events carry a value available from Parser.getValue().
+     */
+    public enum Event { START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, KEY, VALUE }
+
+    /**
+     * A pull parser for JSON streams.  Each call to next() returns the next event, or null at the end of
+     * the input.  Several top-level values may follow each other in the stream.
+     */
+    public static class Parser
+    {
+        private static final int OBJECT = 0;
+        private static final int ARRAY = 1;
+
+        private final Input in;
+        private int[] containers = new int[16];
+        private boolean[] first = new boolean[16];
+        private int depth = 0;
+        private boolean expectValue = false;
+        private boolean finished = false;
+        private PyObject value;
+
+        private Parser(Reader r) {
+            in = new Input(r);
+        }
+
+        /**
+         * @return the next event, or null if there is no more input.
+         * @throws IOException
+         */
+        public Event next() throws IOException {
+            Event event = advance();
+            if(finished) return null;
+            if(event != null) return event;
+            value = null;
+            switch(in.peek())
+            {
+                case '{':
+                    in.skip();
+                    push(OBJECT);
+                    return Event.START_OBJECT;
+                case '[':
+                    in.skip();
+                    push(ARRAY);
+                    return Event.START_ARRAY;
+                default:
+                    value = decodeReader(in);
+                    return Event.VALUE;
+            }
+        }
+
+        /**
+         * Decodes the whole next value, including any nested objects and arrays.  If the enclosing array
+         * ends instead, its END_ARRAY event is consumed and null is returned.
+         *
+         * @return the value, or null at the end of the enclosing array or the input.
+         * @throws IOException
+         */
+        public PyObject readValue() throws IOException {
+            Event event = advance();
+            if(finished || event == Event.END_ARRAY) return null;
+            if(event != null) throw new IOException(in.generateError("expected a value but found " + event));
+            return decodeReader(in);
+        }
+
+        /**
+         * @return the key for KEY events, or the value for VALUE events.
+         */
+        public PyObject getValue() {
+            return value;
+        }
+
+        /**
+         * @return the number of objects and arrays enclosing the current position.
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * Consumes separators, keys and container ends up to the start of the next value.
+         *
+         * @return END_OBJECT, END_ARRAY or KEY, or null if a value starts at the current position.
+         * @throws IOException
+         */
+        private Event advance() throws IOException {
+            in.consumeWhitespace();
+            if(depth == 0)
+            {
+                finished = in.peek() == -1;
+                return null;
+            }
+            int level = depth - 1;
+            if(containers[level] == OBJECT)
+            {
+                if(expectValue)
+                {
+                    if(in.read() != ':') throw new IOException(in.generateError("key missing value"));
+                    in.consumeWhitespace();
+                    expectValue = false;
+                    return null;
+                }
+                if(in.peek() == '}')
+                {
+                    in.skip();
+                    depth--;
+                    return Event.END_OBJECT;
+                }
+                separate(level);
+                value = decodeReader(in);
+                if(!(value instanceof PyString)) throw new IOException(in.generateError("key must be string"));
+                expectValue = true;
+                return Event.KEY;
+            }
+            else
+            {
+                if(in.peek() == ']')
+                {
+                    in.skip();
+                    depth--;
+                    return Event.END_ARRAY;
+                }
+                separate(level);
+                return null;
+            }
+        }
+
+        private void separate(int level) throws IOException {
+            if(first[level]) first[level] = false;
+            else
+            {
+                if(in.read() != ',') throw new IOException(in.generateError(containers[level] == OBJECT ? "invalid object" : "invalid array"));
+                in.consumeWhitespace();
+            }
+            if(in.peek() == -1) throw new IOException("Unexpected end of input");
+        }
+
+        private void push(int container) {
+            if(depth == containers.length)
+            {
+                int[] newContainers = new int[depth * 2];
+                boolean[] newFirst = new boolean[depth * 2];
+                System.arraycopy(containers, 0, newContainers, 0, depth);
+                System.arraycopy(first, 0, newFirst, 0, depth);
+                containers = newContainers;
+                first = newFirst;
+            }
+            containers[depth] = container;
+            first[depth] = true;
+            depth++;
+        }
+    }
+
+    /**
+     * A Python iterator over the elements of a top-level array.
+     */
+    private static class ArrayIterator extends PyIterator
+    {
+        private final Parser parser;
+
+        private ArrayIterator(Parser parser) throws IOException {
+            this.parser = parser;
+            if(parser.next() != Event.START_ARRAY) throw new IOException("Input is not a JSON array");
+        }
+
+        public PyObject __iternext__() {
+            try
+            {
+                return parser.readValue();
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     ////////////////////////// Encoder Methods //////////////////////////////
 
 
@@ -368,7 +567,7 @@ public class JSONStream {
                     sb.append((char)i);
             }
         }
-        return internMap.intern(sb.toString());
+        return StringInterner.getInstance().intern(sb.toString());
     }
 
     /**
@@ -509,25 +708,6 @@ public class JSONStream {
         }
     }
 
-    private static class StringInternMap
-    {
-        private WeakHashMap map = new WeakHashMap();
-
-        public synchronized PyUnicode intern(String s)
-        {
-            WeakReference reference = (WeakReference) map.get(s);
-            PyUnicode ret;
-            if(reference != null)
-            {
-                ret = (PyUnicode) reference.get();
-                if(ret != null) return ret;
-            }
-            ret = new PyUnicode(s);
-            map.put(s, new WeakReference(ret));
-            return ret;
-        }
-    }
-
     private static class Input
     {
         private Reader r;
@@ -30,34 +30,67 @@
 
 package com.freebase.happy.json;
 
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 import org.python.core.PyObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
 
 /**
  * A thin wrapper for JSON keys and values.
+ *
+ * Values are written as a two byte marker (0xFFFF) followed by a VInt length and the UTF-8 JSON text.
+ * Values written with the older writeUTF() format (an unsigned short length and modified UTF-8) can still
+ * be read; the only ambiguous old value is one of exactly 65535 bytes.
  */
 public class JSONWritable implements WritableComparable {
+    private static final int MARKER = 0xFFFF;
+
+    private static final ThreadLocal<JSONByteEncoder> encoders = new ThreadLocal<JSONByteEncoder>() {
+        protected JSONByteEncoder initialValue() {
+            return new JSONByteEncoder(true);
+        }
+    };
+
+    static
+    {
+        WritableComparator.define(JSONWritable.class, new Comparator());
+    }
+
     private PyObject value;
     private String serializedValue;
+    private byte[] serializedBytes = new byte[0];
+    private int serializedLength = -1;
+    private JSONByteDecoder.FieldSet fields;
 
     public void set(PyObject o)
     {
         value = o;
         serializedValue = null;
+        serializedLength = -1;
     }
 
     public PyObject get()
     {
         if(value == null)
         {
-            if(serializedValue == null) throw new NullPointerException("No serialized value found");
             try
             {
-                value = (PyObject) JSON.decode(serializedValue);
+                if(serializedLength >= 0 && fields != null)
+                {
+                    value = JSONByteDecoder.decodeFields(serializedBytes, 0, serializedLength, fields);
+                }
+                else if(serializedLength >= 0) value = JSONByteDecoder.decode(serializedBytes, 0, serializedLength);
+                else if(serializedValue == null) throw new NullPointerException("No serialized value found");
+                else value = (PyObject) JSON.decode(serializedValue);
             }
             catch(IOException ioe)
             {
@@ -71,6 +104,11 @@ public class JSONWritable implements WritableComparable {
     {
         if(serializedValue == null)
         {
+            if(serializedLength >= 0)
+            {
+                serializedValue = decodeUTF8(serializedBytes, serializedLength);
+                return serializedValue;
+            }
             if(value == null) throw new NullPointerException("No value found");
             try
             {
@@ -87,25 +125,166 @@ public class JSONWritable implements WritableComparable {
     public void setSerialized(String s)
     {
         serializedValue = s;
+        serializedLength = -1;
+        value = null;
+    }
+
+    /**
+     * Sets the serialized value from UTF-8 JSON bytes.  The bytes are copied, and are decoded directly
+     * without building a String.
+     *
+     * @param bytes
+     * @param start
+     * @param length
+     */
+    public void setSerializedBytes(byte[] bytes, int start, int length)
+    {
+        ensureCapacity(length);
+        System.arraycopy(bytes, start, serializedBytes, 0, length);
+        serializedLength = length;
+        serializedValue = null;
         value = null;
     }
 
+    /**
+     * Restricts decoding of values set with setSerializedBytes to the given top-level fields.
+     * get() then returns a dictionary holding only those fields.
+     *
+     * @param fields the fields to decode, or null to decode whole values.
+     */
+    public void setFields(JSONByteDecoder.FieldSet fields)
+    {
+        this.fields = fields;
+        if(serializedLength >= 0) value = null;
+    }
+
+    /**
+     * Encodes the value to UTF-8 bytes if it has not been already.  These are the bytes written by write(),
+     * and the bytes that compareTo() and the raw comparator order by.
+     */
+    private void encodeBytes()
+    {
+        if(serializedLength >= 0) return;
+        if(serializedValue != null)
+        {
+            try
+            {
+                ByteBuffer buffer = Text.encode(serializedValue);
+                ensureCapacity(buffer.limit());
+                buffer.get(serializedBytes, 0, buffer.limit());
+                serializedLength = buffer.limit();
+            }
+            catch(CharacterCodingException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        else
+        {
+            if(value == null) throw new NullPointerException("No value found");
+            JSONByteEncoder encoder = encoders.get();
+            encoder.encode(value);
+            ensureCapacity(encoder.getLength());
+            System.arraycopy(encoder.getBytes(), 0, serializedBytes, 0, encoder.getLength());
+            serializedLength = encoder.getLength();
+        }
+    }
+
+    private void ensureCapacity(int length)
+    {
+        if(serializedBytes.length < length) serializedBytes = new byte[Math.max(length, serializedBytes.length * 2)];
+    }
+
+    private static String decodeUTF8(byte[] bytes, int length)
+    {
+        try
+        {
+            return Text.decode(bytes, 0, length);
+        }
+        catch(CharacterCodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
     public String toString()
     {
         return getSerialized();
     }
 
     public void write(DataOutput out) throws IOException {
-        out.writeUTF(getSerialized());
+        encodeBytes();
+        out.writeShort(MARKER);
+        WritableUtils.writeVInt(out, serializedLength);
+        out.write(serializedBytes, 0, serializedLength);
     }
 
     public void readFields(DataInput in) throws IOException {
-        setSerialized(in.readUTF());
+        int header = in.readUnsignedShort();
+        if(header == MARKER)
+        {
+            int length = WritableUtils.readVInt(in);
+            ensureCapacity(length);
+            in.readFully(serializedBytes, 0, length);
+            serializedLength = length;
+            serializedValue = null;
+            value = null;
+        }
+        else
+        {
+            // old writeUTF() format; let DataInputStream decode the modified UTF-8:
+            byte[] utf = new byte[header + 2];
+            utf[0] = (byte) (header >> 8);
+            utf[1] = (byte) header;
+            in.readFully(utf, 2, header);
+            setSerialized(new DataInputStream(new ByteArrayInputStream(utf)).readUTF());
+        }
     }
 
     public int compareTo(Object o) {
         if(o == this) return 0;
         JSONWritable w = (JSONWritable) o;
-        return getSerialized().compareTo(w.getSerialized());
+        encodeBytes();
+        w.encodeBytes();
+        return WritableComparator.compareBytes(serializedBytes, 0, serializedLength,
+                                               w.serializedBytes, 0, w.serializedLength);
+    }
+
+    public boolean equals(Object o)
+    {
+        return o instanceof JSONWritable && compareTo(o) == 0;
+    }
+
+    public int hashCode()
+    {
+        encodeBytes();
+        return WritableComparator.hashBytes(serializedBytes, serializedLength);
+    }
+
+    /**
+     * Orders serialized JSONWritables by their UTF-8 bytes without deserializing them.
+     */
+    public static class Comparator extends WritableComparator
+    {
+        public Comparator()
+        {
+            super(JSONWritable.class);
+        }
+
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+        {
+            int start1 = dataStart(b1, s1);
+            int start2 = dataStart(b2, s2);
+            return compareBytes(b1, start1, s1 + l1 - start1, b2, start2, s2 + l2 - start2);
+        }
+
+        private static int dataStart(byte[] bytes, int start)
+        {
+            if(readUnsignedShort(bytes, start) == MARKER)
+            {
+                return start + 2 + WritableUtils.decodeVIntSize(bytes[start + 2]);
+            }
+            return start + 2;
+        }
     }
 }
@@ -0,0 +1,240 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.json;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.python.core.PyUnicode;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A shared, size-bounded intern cache for strings decoded by JSON, JSONStream and BJSON.
+ *
+ * The cache is a lock-free direct-mapped table: each string hashes to a single slot, and a miss
+ * replaces whatever was in that slot.  Repeated keys and enumerated values stay cached, while
+ * high-cardinality strings simply overwrite each other instead of growing the cache.
+ * Hits and misses are counted per thread, so decoding threads don't contend on shared counters.
+ * The counts of threads that have finished are folded into a shared total.
+ */
+public class StringInterner {
+    public static final String SIZE_KEY = "happy.intern.size";
+    public static final int DEFAULT_SIZE = 16384;
+    public static final String COUNTER_GROUP = "Happy";
+
+    private static final StringInterner instance = new StringInterner(DEFAULT_SIZE);
+
+    private volatile AtomicReferenceArray<PyUnicode> table;
+    // the counts of live threads, which only the owning thread updates:
+    private final List<Counts> allCounts = new ArrayList<Counts>();
+    private final ThreadLocal<Counts> counts = new ThreadLocal<Counts>() {
+        protected Counts initialValue() {
+            Counts threadCounts = new Counts(Thread.currentThread());
+            synchronized(allCounts)
+            {
+                sweep();
+                allCounts.add(threadCounts);
+            }
+            return threadCounts;
+        }
+    };
+    // the counts of threads that have finished, guarded by allCounts:
+    private long finishedHits = 0;
+    private long finishedMisses = 0;
+    // the totals at the last publish:
+    private long publishedHits = 0;
+    private long publishedMisses = 0;
+
+    private StringInterner(int size) {
+        setSize(size);
+    }
+
+    /**
+     * @return the shared interner.
+     */
+    public static StringInterner getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sizes the shared interner from the happy.intern.size job setting; 0 turns interning off.
+     *
+     * @param jobConf
+     */
+    public static void configure(JobConf jobConf) {
+        int size = jobConf.getInt(SIZE_KEY, DEFAULT_SIZE);
+        AtomicReferenceArray<PyUnicode> current = instance.table;
+        int currentSize = current == null ? 0 : current.length();
+        if(tableSize(size) != currentSize) instance.setSize(size);
+    }
+
+    /**
+     * Replaces the table with an empty one of at least the given number of entries.
+     *
+     * @param size the number of entries, or 0 to turn interning off.
+     */
+    public void setSize(int size) {
+        table = size <= 0 ? null : new AtomicReferenceArray<PyUnicode>(tableSize(size));
+    }
+
+    private static int tableSize(int size) {
+        if(size <= 0) return 0;
+        int tableSize = 1;
+        while(tableSize < size && tableSize < (1 << 30)) tableSize <<= 1;
+        return tableSize;
+    }
+
+    /**
+     * Returns a cached PyUnicode for the string, or caches a new one.
+     *
+     * @param s
+     * @return
+     */
+    public PyUnicode intern(String s) {
+        return intern(s, false);
+    }
+
+    /**
+     * Returns a cached PyUnicode for the string, or caches a new one.
+     *
+     * @param s
+     * @param recreate copy the string before caching it, so a substring does not pin its parent's characters.
+     * @return
+     */
+    public PyUnicode intern(String s, boolean recreate) {
+        AtomicReferenceArray<PyUnicode> table = this.table;
+        if(table == null) return new PyUnicode(s);
+        int h = s.hashCode();
+        h ^= (h >>> 16);
+        int index = h & (table.length() - 1);
+        PyUnicode cached = table.get(index);
+        Counts threadCounts = counts.get();
+        if(cached != null && cached.getString().equals(s))
+        {
+            threadCounts.hits++;
+            return cached;
+        }
+        threadCounts.misses++;
+        if(recreate) s = new String(s);
+        PyUnicode ret = new PyUnicode(s);
+        table.set(index, ret);
+        return ret;
+    }
+
+    /**
+     * @return the hits since the last publish.  Counts from threads that are still decoding may lag.
+     */
+    public synchronized long getHits() {
+        long total;
+        synchronized(allCounts)
+        {
+            sweep();
+            total = finishedHits;
+            for(Counts threadCounts: allCounts) total += threadCounts.hits;
+        }
+        return total - publishedHits;
+    }
+
+    /**
+     * @return the misses since the last publish.  Counts from threads that are still decoding may lag.
+     */
+    public synchronized long getMisses() {
+        long total;
+        synchronized(allCounts)
+        {
+            sweep();
+            total = finishedMisses;
+            for(Counts threadCounts: allCounts) total += threadCounts.misses;
+        }
+        return total - publishedMisses;
+    }
+
+    /**
+     * Folds the counts of finished threads into the shared totals.  Must be called with allCounts locked.
+     */
+    private void sweep() {
+        Iterator<Counts> iterator = allCounts.iterator();
+        while(iterator.hasNext())
+        {
+            Counts threadCounts = iterator.next();
+            Thread thread = threadCounts.thread.get();
+            if(thread == null || !thread.isAlive())
+            {
+                finishedHits += threadCounts.hits;
+                finishedMisses += threadCounts.misses;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the fraction of strings found in the cache since the last publish.
+     */
+    public synchronized double getHitRate() {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * Adds the hits and misses since the last publish to the INTERN_HITS and INTERN_MISSES counters.
+     *
+     * @param reporter
+     */
+    public synchronized void publish(Reporter reporter) {
+        long h = getHits();
+        long m = getMisses();
+        publishedHits += h;
+        publishedMisses += m;
+        if(reporter == null) return;
+        reporter.incrCounter(COUNTER_GROUP, "INTERN_HITS", h);
+        reporter.incrCounter(COUNTER_GROUP, "INTERN_MISSES", m);
+    }
+
+    /**
+     * One thread's hit and miss counts.  They are volatile so other threads see the latest counts.
+     */
+    private static class Counts
+    {
+        private final WeakReference<Thread> thread;
+        private volatile long hits = 0;
+        private volatile long misses = 0;
+
+        private Counts(Thread thread)
+        {
+            this.thread = new WeakReference<Thread>(thread);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.util;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Copies and merges dataset files using a pool of threads and large buffers.
+ *
+ * Merges into a local file are written in parallel, with each part written at its
+ * offset in the preallocated destination.  Merges into other filesystems, which only
+ * support sequential writes, read the parts ahead on the pool while writing them in
+ * order.  Local-to-local copies go through FileChannel transfers.
+ */
+public class DatasetCopier
+{
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final int threads;
+    private final int bufferSize;
+
+    public DatasetCopier(int threads, int bufferSize) {
+        if(threads < 1) throw new IllegalArgumentException("Invalid number of copy threads " + threads);
+        if(bufferSize < 1) throw new IllegalArgumentException("Invalid copy buffer size " + bufferSize);
+        this.threads = threads;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Merges the given files into a single file, which must not already exist.
+     *
+     * @param srcFs
+     * @param parts
+     * @param dstFs
+     * @param dst
+     * @throws IOException
+     */
+    public void merge(FileSystem srcFs, List<FileStatus> parts, FileSystem dstFs, Path dst) throws IOException {
+        File local = localFile(dstFs, dst);
+        if(local != null)
+        {
+            if(local.exists()) throw new IOException("File " + dst + " already exists");
+            File parent = local.getAbsoluteFile().getParentFile();
+            if(parent != null) parent.mkdirs();
+            mergeToLocal(srcFs, parts, local);
+            return;
+        }
+
+        List<Path> paths = new ArrayList<Path>();
+        for(FileStatus part: parts) paths.add(part.getPath());
+        InputStream in = null;
+        OutputStream out = null;
+        try
+        {
+            if(paths.size() > 1) in = new PrefetchingInputStream(srcFs, paths, threads, bufferSize, true);
+            else if(paths.size() == 1) in = srcFs.open(paths.get(0), bufferSize);
+            else in = new ByteArrayInputStream(new byte[0]);
+            out = dstFs.create(dst, false, bufferSize);
+            copyBytes(in, out);
+        }
+        finally
+        {
+            if(out != null) out.close();
+            if(in != null) in.close();
+        }
+    }
+
+    /**
+     * Merges the given files into a local file, replacing it if it exists.  The destination
+     * is preallocated and each part is copied into its own offset on the thread pool.
+     *
+     * @param srcFs
+     * @param parts
+     * @param dst
+     * @throws IOException
+     */
+    public void mergeToLocal(final FileSystem srcFs, List<FileStatus> parts, File dst) throws IOException {
+        long total = 0;
+        long[] offsets = new long[parts.size()];
+        for(int i = 0; i < parts.size(); i++)
+        {
+            offsets[i] = total;
+            total += parts.get(i).getLen();
+        }
+
+        RandomAccessFile file = new RandomAccessFile(dst, "rw");
+        try
+        {
+            file.setLength(0);
+            file.setLength(total);
+            final FileChannel out = file.getChannel();
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for(int i = 0; i < parts.size(); i++)
+            {
+                final FileStatus part = parts.get(i);
+                final long offset = offsets[i];
+                tasks.add(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        copyPart(srcFs, part, out, offset);
+                        return null;
+                    }
+                });
+            }
+            run(tasks);
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Copies a local file, or each of the files under a local directory, to a path that
+     * must not already exist.
+     *
+     * @param src
+     * @param dstFs
+     * @param dst
+     * @throws IOException
+     */
+    public void copyFromLocal(File src, final FileSystem dstFs, Path dst) throws IOException {
+        if(!src.exists()) throw new FileNotFoundException("File " + src + " doesn't exist");
+        if(dstFs.exists(dst)) throw new IOException("Path " + dst + " already exists");
+        if(!src.isDirectory())
+        {
+            copyFile(src, dstFs, dst);
+            return;
+        }
+
+        Map<File, Path> files = new LinkedHashMap<File, Path>();
+        listLocal(src, dst, files);
+        dstFs.mkdirs(dst);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for(final Map.Entry<File, Path> file: files.entrySet())
+        {
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    copyFile(file.getKey(), dstFs, file.getValue());
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+    }
+
+    private void listLocal(File dir, Path dst, Map<File, Path> files) {
+        File[] children = dir.listFiles();
+        if(children == null) return;
+        Arrays.sort(children);
+        for(File child: children)
+        {
+            Path target = new Path(dst, child.getName());
+            if(child.isDirectory()) listLocal(child, target, files);
+            else files.put(child, target);
+        }
+    }
+
+    private void copyFile(File src, FileSystem dstFs, Path dst) throws IOException {
+        File local = localFile(dstFs, dst);
+        FileInputStream in = new FileInputStream(src);
+        try
+        {
+            if(local != null)
+            {
+                if(local.exists()) throw new IOException("File " + dst + " already exists");
+                File parent = local.getAbsoluteFile().getParentFile();
+                if(parent != null) parent.mkdirs();
+                FileOutputStream out = new FileOutputStream(local);
+                try
+                {
+                    FileChannel channel = in.getChannel();
+                    long size = channel.size();
+                    long position = 0;
+                    while(position < size) position += channel.transferTo(position, size - position, out.getChannel());
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            else
+            {
+                OutputStream out = dstFs.create(dst, false, bufferSize);
+                try
+                {
+                    copyBytes(in, out);
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void copyPart(FileSystem srcFs, FileStatus part, FileChannel out, long offset) throws IOException {
+        long length = part.getLen();
+        long end = offset + length;
+        File local = localFile(srcFs, part.getPath());
+        if(local != null)
+        {
+            FileInputStream in = new FileInputStream(local);
+            try
+            {
+                FileChannel channel = in.getChannel();
+                long position = offset;
+                while(position < end)
+                {
+                    long n = out.transferFrom(channel, position, end - position);
+                    if(n <= 0) throw new IOException("File " + part.getPath() + " changed size during copy");
+                    position += n;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            return;
+        }
+
+        InputStream in = srcFs.open(part.getPath(), bufferSize);
+        try
+        {
+            byte[] buffer = new byte[(int) Math.max(1, Math.min(bufferSize, length))];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long position = offset;
+            int read;
+            while((read = in.read(buffer)) != -1)
+            {
+                if(position + read > end) throw new IOException("File " + part.getPath() + " changed size during copy");
+                wrapped.clear();
+                wrapped.limit(read);
+                while(wrapped.hasRemaining()) position += out.write(wrapped, position);
+            }
+            if(position != end) throw new IOException("File " + part.getPath() + " changed size during copy");
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void copyBytes(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        int read;
+        while((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+    }
+
+    private void run(List<Callable<Object>> tasks) throws IOException {
+        if(tasks.size() == 0) return;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()), new DaemonThreadFactory("happy-copy"));
+        try
+        {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for(Callable<Object> task: tasks) futures.add(executor.submit(task));
+            for(Future<Object> future: futures) future.get();
+        }
+        catch(InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted copying files");
+        }
+        catch(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) throw (IOException) cause;
+            IOException ioe = new IOException("Error copying files: " + cause);
+            ioe.initCause(cause);
+            throw ioe;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the java.io.File for a path on the local filesystem, or null for other filesystems.
+     */
+    private static File localFile(FileSystem fs, Path path) {
+        if(!"file".equals(fs.getUri().getScheme())) return null;
+        return new File(fs.makeQualified(path).toUri().getPath());
+    }
+}
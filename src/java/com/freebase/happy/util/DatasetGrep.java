@@ -0,0 +1,445 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.util;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the lines matching a regex in a list of files, scanning the files in parallel.
+ *
+ * When the regex contains a literal string that every match must include, each file is
+ * scanned as raw UTF-8 bytes for that literal and only the lines containing it are decoded
+ * and matched against the regex.  Matches are returned in file order, or file by file in
+ * whichever order the files finish.
+ */
+public class DatasetGrep
+{
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    private final FileSystem fileSystem;
+    private final Pattern pattern;
+    private final byte[] literal;
+    private final int[] skips;
+    private final int threads;
+    private final int bufferSize;
+
+    public DatasetGrep(FileSystem fileSystem, String regex, int threads, int bufferSize) {
+        if(threads < 1) throw new IllegalArgumentException("Invalid number of grep threads " + threads);
+        if(bufferSize < 1) throw new IllegalArgumentException("Invalid grep buffer size " + bufferSize);
+        this.fileSystem = fileSystem;
+        this.pattern = Pattern.compile(regex);
+        this.threads = threads;
+        this.bufferSize = bufferSize;
+        String required = requiredLiteral(regex);
+        try
+        {
+            literal = required == null ? null : required.getBytes("utf-8");
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+        skips = literal == null ? null : skipTable(literal);
+    }
+
+    /**
+     * Returns an iterator over the matching lines in the given files.
+     *
+     * @param paths
+     * @param ordered true to return the lines in file order
+     * @return
+     */
+    public Iterator<String> grep(List<Path> paths, boolean ordered) {
+        return new MatchIterator(paths, ordered);
+    }
+
+    /**
+     * Returns the longest literal string that must appear in every match of a regex,
+     * or null if one can't be found.  Only the top level of the regex is examined, and
+     * anything that isn't plainly literal ends the current run.
+     *
+     * @param regex
+     * @return
+     */
+    public static String requiredLiteral(String regex) {
+        // embedded flags such as (?i) change how literals match:
+        if(regex.indexOf("(?") != -1) return null;
+
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        for(int i = 0; i < regex.length(); i++)
+        {
+            char c = regex.charAt(i);
+            if(c == '\\')
+            {
+                if(i + 1 >= regex.length()) return null;
+                char next = regex.charAt(i + 1);
+                if(depth == 0 && !Character.isLetterOrDigit(next))
+                {
+                    // an escaped metacharacter:
+                    run.append(next);
+                    i++;
+                }
+                else
+                {
+                    // classes like \d, hex and octal escapes, back references and \Q...\E aren't
+                    // taken as literals, and their arguments mustn't be either:
+                    longest = longer(longest, run);
+                    run.setLength(0);
+                    i = skipEscape(regex, i);
+                }
+            }
+            else if(c == '[')
+            {
+                // skip the class, including escapes and nested classes:
+                longest = longer(longest, run);
+                run.setLength(0);
+                i++;
+                if(i < regex.length() && regex.charAt(i) == '^') i++;
+                if(i < regex.length() && regex.charAt(i) == ']') i++;
+                int classDepth = 1;
+                while(i < regex.length())
+                {
+                    char d = regex.charAt(i);
+                    if(d == '\\') i = skipEscape(regex, i);
+                    else if(d == '[') classDepth++;
+                    else if(d == ']' && --classDepth == 0) break;
+                    i++;
+                }
+            }
+            else if(c == '(')
+            {
+                longest = longer(longest, run);
+                run.setLength(0);
+                depth++;
+            }
+            else if(c == ')')
+            {
+                depth--;
+            }
+            else if(c == '|')
+            {
+                // an alternative at the top level means no literal is required:
+                if(depth == 0) return null;
+            }
+            else if(c == '?' || c == '*' || c == '{')
+            {
+                // the previous character is optional:
+                if(run.length() > 0) run.setLength(run.length() - 1);
+                if(run.length() > 0 && Character.isHighSurrogate(run.charAt(run.length() - 1))) run.setLength(run.length() - 1);
+                longest = longer(longest, run);
+                run.setLength(0);
+                if(c == '{')
+                {
+                    while(i < regex.length() && regex.charAt(i) != '}') i++;
+                }
+            }
+            else if(depth > 0 || METACHARACTERS.indexOf(c) != -1)
+            {
+                longest = longer(longest, run);
+                run.setLength(0);
+            }
+            else run.append(c);
+        }
+        longest = longer(longest, run);
+        return longest.length() > 0 ? longest : null;
+    }
+
+    /**
+     * Returns the index of the last character of the escape starting with the backslash at i.
+     */
+    private static int skipEscape(String regex, int i) {
+        int length = regex.length();
+        if(i + 1 >= length) return length - 1;
+        char c = regex.charAt(++i);
+        switch(c)
+        {
+            case 'Q':
+            {
+                int end = regex.indexOf("\\E", i + 1);
+                return end == -1 ? length - 1 : end + 1;
+            }
+            case 'x':
+                if(i + 1 < length && regex.charAt(i + 1) == '{') return skipTo(regex, i + 1, '}');
+                return Math.min(i + 2, length - 1);
+            case 'u':
+                return Math.min(i + 4, length - 1);
+            case '0':
+            {
+                // \0n, \0nn or \0mnn where m is at most 3:
+                int digits = i + 1 < length && regex.charAt(i + 1) <= '3' ? 3 : 2;
+                int end = i;
+                while(end + 1 < length && end - i < digits && regex.charAt(end + 1) >= '0' && regex.charAt(end + 1) <= '7') end++;
+                return end;
+            }
+            case 'c':
+                return Math.min(i + 1, length - 1);
+            case 'p':
+            case 'P':
+            case 'N':
+                if(i + 1 < length && regex.charAt(i + 1) == '{') return skipTo(regex, i + 1, '}');
+                return Math.min(i + 1, length - 1);
+            case 'k':
+                if(i + 1 < length && regex.charAt(i + 1) == '<') return skipTo(regex, i + 1, '>');
+                return i;
+            default:
+                // back references take all the digits that follow:
+                if(c >= '1' && c <= '9')
+                {
+                    while(i + 1 < length && Character.isDigit(regex.charAt(i + 1))) i++;
+                }
+                return i;
+        }
+    }
+
+    private static int skipTo(String regex, int i, char end) {
+        int found = regex.indexOf(end, i);
+        return found == -1 ? regex.length() - 1 : found;
+    }
+
+    private static String longer(String longest, StringBuilder run) {
+        return run.length() > longest.length() ? run.toString() : longest;
+    }
+
+    /**
+     * Scans one file and returns its matching lines.
+     */
+    private List<String> grepFile(Path path) throws IOException {
+        List<String> matches = new ArrayList<String>();
+        InputStream in = fileSystem.open(path, bufferSize);
+        try
+        {
+            byte[] buffer = new byte[bufferSize];
+            // bytes [0, length) are in the buffer and [0, scanned) have been searched:
+            int length = 0;
+            boolean eof = false;
+            while(!eof)
+            {
+                if(length == buffer.length)
+                {
+                    // a line longer than the buffer, make room for it:
+                    byte[] larger = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, larger, 0, length);
+                    buffer = larger;
+                }
+                int read = in.read(buffer, length, buffer.length - length);
+                if(read == -1) eof = true;
+                else length += read;
+
+                // only whole lines are searched until the end of the file:
+                int end = eof ? length : lastIndexOf(buffer, (byte) '\n', 0, length) + 1;
+                if(end <= 0) continue;
+                scan(buffer, 0, end, matches);
+
+                // keep the partial last line:
+                System.arraycopy(buffer, end, buffer, 0, length - end);
+                length -= end;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the matching lines in buffer[start, end), which holds whole lines.
+     */
+    private void scan(byte[] buffer, int start, int end, List<String> matches) throws UnsupportedEncodingException {
+        int position = start;
+        while(position < end)
+        {
+            int lineStart;
+            if(literal != null)
+            {
+                int found = indexOf(buffer, position, end);
+                if(found == -1) return;
+                lineStart = lastIndexOf(buffer, (byte) '\n', position, found) + 1;
+                if(lineStart < position) lineStart = position;
+            }
+            else lineStart = position;
+
+            int lineEnd = indexOf(buffer, (byte) '\n', lineStart, end);
+            int next = lineEnd == -1 ? end : lineEnd + 1;
+            if(lineEnd == -1) lineEnd = end;
+            if(lineEnd > lineStart && buffer[lineEnd - 1] == '\r') lineEnd--;
+            String line = new String(buffer, lineStart, lineEnd - lineStart, "utf-8");
+            if(pattern.matcher(line).find()) matches.add(line);
+            position = next;
+        }
+    }
+
+    private static int indexOf(byte[] buffer, byte b, int start, int end) {
+        for(int i = start; i < end; i++)
+        {
+            if(buffer[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] buffer, byte b, int start, int end) {
+        for(int i = end - 1; i >= start; i--)
+        {
+            if(buffer[i] == b) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the literal in buffer[start, end), skipping ahead on the last byte of the
+     * window as in Boyer-Moore-Horspool.
+     */
+    private int indexOf(byte[] buffer, int start, int end) {
+        byte[] target = literal;
+        int n = target.length;
+        if(n == 1) return indexOf(buffer, target[0], start, end);
+        byte last = target[n - 1];
+        int i = start + n - 1;
+        while(i < end)
+        {
+            byte b = buffer[i];
+            if(b == last)
+            {
+                int j = n - 2;
+                int k = i - 1;
+                while(j >= 0 && buffer[k] == target[j])
+                {
+                    j--;
+                    k--;
+                }
+                if(j < 0) return k + 1;
+            }
+            i += skips[b & 0xff];
+        }
+        return -1;
+    }
+
+    private static int[] skipTable(byte[] target) {
+        int n = target.length;
+        int[] skips = new int[256];
+        Arrays.fill(skips, n);
+        for(int j = 0; j < n - 1; j++) skips[target[j] & 0xff] = n - 1 - j;
+        return skips;
+    }
+
+    private class MatchIterator implements Iterator<String>
+    {
+        private final List<Path> paths;
+        private final boolean ordered;
+        private final int window;
+        private ExecutorService executor;
+        private CompletionService<List<String>> completion;
+        private final LinkedList<Future<List<String>>> pending = new LinkedList<Future<List<String>>>();
+        private int nextPath = 0;
+        private int outstanding = 0;
+        private Iterator<String> current;
+
+        private MatchIterator(List<Path> paths, boolean ordered) {
+            this.paths = new ArrayList<Path>(paths);
+            this.ordered = ordered;
+            // matches are held per file, so bound the number of files in flight:
+            window = threads * 2;
+            if(this.paths.size() > 0)
+            {
+                executor = Executors.newFixedThreadPool(Math.min(threads, this.paths.size()), new DaemonThreadFactory("happy-grep"));
+                if(!ordered) completion = new ExecutorCompletionService<List<String>>(executor);
+                while(outstanding < window && nextPath < this.paths.size()) submit();
+            }
+        }
+
+        public boolean hasNext() {
+            while(current == null || !current.hasNext())
+            {
+                if(outstanding == 0)
+                {
+                    if(executor != null) executor.shutdown();
+                    return false;
+                }
+                current = nextFile().iterator();
+            }
+            return true;
+        }
+
+        public String next() {
+            if(hasNext()) return current.next();
+            throw new NoSuchElementException();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void submit() {
+            final Path path = paths.get(nextPath++);
+            Callable<List<String>> task = new Callable<List<String>>() {
+                public List<String> call() throws Exception {
+                    return grepFile(path);
+                }
+            };
+            if(ordered) pending.add(executor.submit(task));
+            else completion.submit(task);
+            outstanding++;
+        }
+
+        private List<String> nextFile() {
+            try
+            {
+                Future<List<String>> future = ordered ? pending.removeFirst() : completion.take();
+                outstanding--;
+                if(nextPath < paths.size()) submit();
+                return future.get();
+            }
+            catch(InterruptedException e)
+            {
+                executor.shutdownNow();
+                throw new RuntimeException(new InterruptedIOException("Interrupted waiting for grep results"));
+            }
+            catch(ExecutionException e)
+            {
+                executor.shutdownNow();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+}
@@ -30,6 +30,7 @@
 
 package com.freebase.happy.util;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileUtil;
@@ -41,12 +42,32 @@ import org.apache.hadoop.mapred.JobConf;
 
 import java.io.*;
 import java.util.*;
-import java.util.regex.Pattern;
 
 /**
  * A wrapper for a dataset path that allows some common actions.
  */
 public class DatasetPath {
+    /**
+     * The number of files to open and buffer ahead of the file being read, or 0 to read files one at a time.
+     */
+    public static final String PREFETCH_FILES_KEY = "happy.dfs.prefetch.files";
+    /**
+     * The number of bytes to buffer from the start of each prefetched file.
+     */
+    public static final String PREFETCH_BUFFER_KEY = "happy.dfs.prefetch.buffer";
+    /**
+     * The number of threads used to copy files.
+     */
+    public static final String COPY_THREADS_KEY = "happy.dfs.copy.threads";
+    /**
+     * The buffer size used to copy files.
+     */
+    public static final String COPY_BUFFER_KEY = "happy.dfs.copy.buffer";
+    /**
+     * The number of threads used to scan files in grepLines.
+     */
+    public static final String GREP_THREADS_KEY = "happy.dfs.grep.threads";
+
     private Path path;
     private FileSystem fileSystem;
 
@@ -80,21 +101,73 @@ public class DatasetPath {
      * @throws IOException
      */
     public InputStream getInputStream() throws IOException {
+        return getInputStream(true);
+    }
+
+    /**
+     * Returns an inputstream for this file or all the files in this path.  The next files
+     * are opened and buffered in the background while the current one is read.  If ordered
+     * is false, each file is returned whole as soon as it is ready rather than in path order.
+     *
+     * @param ordered
+     * @return
+     * @throws IOException
+     */
+    public InputStream getInputStream(boolean ordered) throws IOException {
+        List<Path> paths = listFiles();
+        Configuration conf = fileSystem.getConf();
+        int files = PrefetchingInputStream.DEFAULT_FILES;
+        int bufferSize = PrefetchingInputStream.DEFAULT_BUFFER_SIZE;
+        if(conf != null)
+        {
+            files = conf.getInt(PREFETCH_FILES_KEY, files);
+            bufferSize = conf.getInt(PREFETCH_BUFFER_KEY, bufferSize);
+        }
+        if(files > 0 && paths.size() > 1) return new PrefetchingInputStream(fileSystem, paths, files, bufferSize, ordered);
+        else return new MultiFileInputStream(paths);
+    }
+
+    /**
+     * Returns the files in this path: the path itself if it is a file, or its child files if it is a directory.
+     *
+     * @return
+     * @throws IOException
+     */
+    private List<Path> listFiles() throws IOException {
         List<Path> paths = new LinkedList<Path>();
+        for(FileStatus file: listFileStatuses()) paths.add(file.getPath());
+        return paths;
+    }
+
+    private List<FileStatus> listFileStatuses() throws IOException {
+        List<FileStatus> files = new ArrayList<FileStatus>();
         if(fileSystem.exists(path))
         {
-            if(fileSystem.getFileStatus(path).isDir())
+            FileStatus status = fileSystem.getFileStatus(path);
+            if(status.isDir())
             {
                 FileStatus[] children = fileSystem.listStatus(path);
                 for(FileStatus child: children)
                 {
-                    if(!child.isDir()) paths.add(child.getPath());
+                    if(!child.isDir()) files.add(child);
                 }
             }
-            else paths.add(path);
+            else files.add(status);
         }
         else throw new IOException("Path " + path + " doesn't exist");
-        return new MultiFileInputStream(paths);
+        return files;
+    }
+
+    private DatasetCopier getCopier() {
+        Configuration conf = fileSystem.getConf();
+        int threads = DatasetCopier.DEFAULT_THREADS;
+        int bufferSize = DatasetCopier.DEFAULT_BUFFER_SIZE;
+        if(conf != null)
+        {
+            threads = conf.getInt(COPY_THREADS_KEY, threads);
+            bufferSize = conf.getInt(COPY_BUFFER_KEY, bufferSize);
+        }
+        return new DatasetCopier(threads, bufferSize);
     }
 
     /**
@@ -105,7 +178,20 @@ public class DatasetPath {
      */
     public BufferedReader getReader() throws IOException
     {
-        return new BufferedReader(new InputStreamReader(getInputStream(), "utf-8"));
+        return getReader(true);
+    }
+
+    /**
+     * Returns an open BufferedReader for reading from this file.  If ordered is false, the
+     * files in a directory are read whole in whichever order they become ready.
+     *
+     * @param ordered
+     * @return
+     * @throws IOException
+     */
+    public BufferedReader getReader(boolean ordered) throws IOException
+    {
+        return new BufferedReader(new InputStreamReader(getInputStream(ordered), "utf-8"));
     }
 
     /**
@@ -175,7 +261,19 @@ public class DatasetPath {
      * @throws IOException
      */
     public Iterator<String> iterateLines() throws IOException {
-        return new DirectoryLineIterator(getInputStream());
+        return iterateLines(true);
+    }
+
+    /**
+     * Iterate through the lines in the file or files in this path.  If ordered is false,
+     * the lines of each file are still returned together, but files may come in any order.
+     *
+     * @param ordered
+     * @return
+     * @throws IOException
+     */
+    public Iterator<String> iterateLines(boolean ordered) throws IOException {
+        return new DirectoryLineIterator(getInputStream(ordered));
     }
 
     /**
@@ -187,7 +285,25 @@ public class DatasetPath {
      * @throws IOException
      */
     public Iterator<String> grepLines(String regex) throws IOException {
-        return new RegexLineIterator(getInputStream(), regex);
+        return grepLines(regex, true);
+    }
+
+    /**
+     * Iterate through the lines in the file or files in this path that contain
+     * a match with the given regex.  The files are scanned in parallel, and if ordered
+     * is false the lines of each file are returned as soon as that file is done.
+     *
+     * @param regex
+     * @param ordered
+     * @return
+     * @throws IOException
+     */
+    public Iterator<String> grepLines(String regex, boolean ordered) throws IOException {
+        Configuration conf = fileSystem.getConf();
+        int threads = Runtime.getRuntime().availableProcessors();
+        if(conf != null) threads = conf.getInt(GREP_THREADS_KEY, threads);
+        DatasetGrep grep = new DatasetGrep(fileSystem, regex, threads, DatasetGrep.DEFAULT_BUFFER_SIZE);
+        return grep.grep(listFiles(), ordered);
     }
 
     /**
@@ -244,75 +360,34 @@ public class DatasetPath {
     }
 
     /**
-     * Copies a path to another path.
+     * Copies a path to another path.  The files in a directory are merged into a single file.
      *
      * @param path
      * @throws IOException
      */
     public void copyTo(DatasetPath path) throws IOException {
-        InputStream in = null;
-        OutputStream out = null;
-        try
-        {
-            in = getInputStream();
-            out = path.getOutputStream();
-            byte[] buffer = new byte[4096];
-            int read;
-            while((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
-        }
-        finally
-        {
-            if(out != null) out.close();
-            if(in != null) in.close();
-        }
+        getCopier().merge(fileSystem, listFileStatuses(), path.fileSystem, path.path);
     }
 
     /**
-     * Copies a path to a local path.
+     * Copies a path to a local path.  The files in a directory are merged into a single file,
+     * with each file copied in parallel into its place in the output.
      *
      * @param path
      * @throws IOException
      */
     public void copyToLocal(String path) throws IOException {
-        InputStream in = null;
-        OutputStream out = null;
-        try
-        {
-            in = getInputStream();
-            out = new FileOutputStream(path, false);
-            byte[] buffer = new byte[4096];
-            int read;
-            while((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
-        }
-        finally
-        {
-            if(out != null) out.close();
-            if(in != null) in.close();
-        }
+        getCopier().mergeToLocal(fileSystem, listFileStatuses(), new File(path));
     }
 
     /**
-     * Copies from a local path.
+     * Copies from a local path.  A local directory is copied file by file in parallel.
      *
      * @param path
      * @throws IOException
      */
     public void copyFromLocal(String path) throws IOException {
-        InputStream in = null;
-        OutputStream out = null;
-        try
-        {
-            in = new FileInputStream(path);
-            out = getOutputStream();
-            byte[] buffer = new byte[4096];
-            int read;
-            while((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
-        }
-        finally
-        {
-            if(out != null) out.close();
-            if(in != null) in.close();
-        }
+        getCopier().copyFromLocal(new File(path), fileSystem, this.path);
     }
 
     /**
@@ -424,7 +499,7 @@ public class DatasetPath {
 
     private class DirectoryLineIterator implements Iterator<String>
     {
-        protected String currentLine;
+        private String currentLine;
         private BufferedReader reader;
 
         private DirectoryLineIterator(InputStream in) throws UnsupportedEncodingException {
@@ -464,36 +539,4 @@ public class DatasetPath {
             throw new UnsupportedOperationException();
         }
     }
-
-    private class RegexLineIterator extends DirectoryLineIterator
-    {
-        private Pattern pattern;
-        private boolean done = false;
-
-        public RegexLineIterator(InputStream in, String regex) throws UnsupportedEncodingException {
-            super(in);
-            pattern = Pattern.compile(regex);
-        }
-
-        public boolean hasNext() {
-            if(done) return false;
-            while(true)
-            {
-                // check if we are done:
-                if(!super.hasNext())
-                {
-                    done = true;
-                    return false;
-                }
-                // a match:
-                if(pattern.matcher(super.currentLine).find()) return true;
-                // next line:
-                super.currentLine = null;
-            }
-        }
-
-        public String next() {
-            return super.next();
-        }
-    }
 }
\ No newline at end of file
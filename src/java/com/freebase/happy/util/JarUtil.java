@@ -37,17 +37,35 @@ import org.apache.commons.logging.LogFactory;
 import java.io.*;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
+import java.util.zip.Deflater;
 
 /**
+ * Builds job jars.  Python sources are compiled to $py.class files on the way in.
+ *
+ * Built jars and compiled modules are cached under the directory named by the happy.cache.dir system
+ * property, ~/.happy/cache by default, so a job whose jars and files haven't changed reuses its last jar
+ * and only changed modules are recompiled.  Setting happy.cache.dir to an empty string turns caching off.
  */
 public class JarUtil {
+    public static final String CACHE_DIR_PROPERTY = "happy.cache.dir";
+    public static final int MAX_CACHED_JARS = 16;
 
     private static final Log log = LogFactory.getLog(JarUtil.class);
 
@@ -88,7 +106,8 @@ public class JarUtil {
     }
 
     /**
-     * Builds a new jar from a set of existing jars and files.
+     * Builds a new jar from a set of existing jars and files, or copies the cached jar built from the same
+     * inputs.  Jars are identified by their path, size and modification time, and files by their content.
      * Compiles Python sources found along the way.
      *
      * @param inputJars
@@ -97,10 +116,49 @@ public class JarUtil {
      * @throws IOException
      */
     public static void buildJar(List<String> inputJars, List<String> inputFiles, String outputJar) throws IOException {
+        File cacheDir = getCacheDir();
+        File cachedJar = null;
+        if(cacheDir != null)
+        {
+            File jarDir = new File(cacheDir, "jars");
+            jarDir.mkdirs();
+            cachedJar = new File(jarDir, hashInputs(inputJars, inputFiles) + ".jar");
+            if(cachedJar.isFile())
+            {
+                log.info("Reusing cached job jar " + cachedJar);
+                copyFile(cachedJar, new File(outputJar));
+                cachedJar.setLastModified(System.currentTimeMillis());
+                return;
+            }
+        }
+
+        ExecutorService compilers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try
+        {
+            buildJar(inputJars, inputFiles, outputJar, cacheDir, compilers);
+        }
+        finally
+        {
+            compilers.shutdownNow();
+        }
+
+        if(cachedJar != null)
+        {
+            // rename into place, so a concurrent build never sees a partial jar:
+            File tempJar = File.createTempFile("happy-", ".jar", cachedJar.getParentFile());
+            copyFile(new File(outputJar), tempJar);
+            if(!tempJar.renameTo(cachedJar)) tempJar.delete();
+            pruneJars(cachedJar.getParentFile());
+        }
+    }
+
+    private static void buildJar(List<String> inputJars, List<String> inputFiles, String outputJar, File cacheDir,
+                                 ExecutorService compilers) throws IOException {
         JarOutputStream out = new JarOutputStream(new FileOutputStream(outputJar));
-        out.setLevel(9);
-        byte[] buffer = new byte[4096];
+        out.setLevel(Deflater.DEFAULT_COMPRESSION);
+        byte[] buffer = new byte[65536];
         Set loadedEntries = new HashSet();
+        List<CompiledEntry> compiledEntries = new ArrayList<CompiledEntry>();
 
         // copy over the jars:
         for(String jarFile: inputJars)
@@ -113,21 +171,13 @@ public class JarUtil {
                 newEntry.setCompressedSize(-1);
                 String name = newEntry.getName();
                 // compile python source:
-                if(isPython(name))
+                if(isPython(name) && !loadedEntries.contains(name))
                 {
                     // buffer the src:
-                    ByteArrayOutputStream srcbuffer = new ByteArrayOutputStream();
-                    int read;
-                    while((read = in.read(buffer)) != -1) srcbuffer.write(buffer, 0, read);
-                    byte[] src = srcbuffer.toByteArray();
-                    // save the src:
+                    byte[] src = readFully(in, buffer);
                     // # don't include .py files to work around Hadoop compilation race condition:
-                    //out.putNextEntry(newEntry);
-                    //out.write(src);
                     loadedEntries.add(name);
-                    // save the compiled file:
-                    log.debug("Compiling " + name);
-                    compile(name, src, out);
+                    compiledEntries.add(compile(name, src, cacheDir, compilers));
                 }
                 else if(!loadedEntries.contains(name) && !isCompiledPython(name))
                 {
@@ -145,7 +195,18 @@ public class JarUtil {
         {
             File file = new File(fileName);
             if(!file.exists()) throw new IOException("Path " + file.getAbsolutePath() + " doesn't exist!");
-            buildJar("", file, out, buffer, loadedEntries);
+            buildJar("", file, out, buffer, loadedEntries, compiledEntries, cacheDir, compilers);
+        }
+
+        // the compiled modules go last, once their compilers are done:
+        for(CompiledEntry compiledEntry: compiledEntries)
+        {
+            byte[] compiled = compiledEntry.get();
+            if(compiled == null) continue;
+            JarEntry entry = new JarEntry(compiledEntry.name);
+            entry.setTime(System.currentTimeMillis());
+            out.putNextEntry(entry);
+            out.write(compiled);
         }
         out.close();
     }
@@ -160,29 +221,20 @@ public class JarUtil {
      * @param buffer
      * @throws IOException
      */
-    private static void buildJar(String entryPath, File file, JarOutputStream out, byte[] buffer, Set loadedEntries) throws IOException {
+    private static void buildJar(String entryPath, File file, JarOutputStream out, byte[] buffer, Set loadedEntries,
+                                 List<CompiledEntry> compiledEntries, File cacheDir, ExecutorService compilers) throws IOException {
         if(file.isFile())
         {
             String name = entryPath + file.getName();
-            if(isPython(name))
+            if(isPython(name) && !loadedEntries.contains(name))
             {
                 // buffer the src:
                 InputStream in = new FileInputStream(file);
-                ByteArrayOutputStream srcbuffer = new ByteArrayOutputStream();
-                int read;
-                while((read = in.read(buffer)) != -1) srcbuffer.write(buffer, 0, read);
+                byte[] src = readFully(in, buffer);
                 in.close();
-                byte[] src = srcbuffer.toByteArray();
-                // save the src:
                 // # don't include .py files to work around Hadoop compilation race condition:
-                //JarEntry nextEntry = new JarEntry(name);
-                //nextEntry.setTime(file.lastModified());
-                //out.putNextEntry(nextEntry);
-                //out.write(src);
                 loadedEntries.add(name);
-                // save the compiled file:
-                log.debug("Compiling " + name);
-                compile(name, src, out);
+                compiledEntries.add(compile(name, src, cacheDir, compilers));
             }
             else if(!loadedEntries.contains(name) && !isCompiledPython(name))
             {
@@ -192,16 +244,16 @@ public class JarUtil {
                 out.putNextEntry(nextEntry);
                 int read;
                 while((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+                in.close();
                 loadedEntries.add(name);
             }
         }
         else if(file.isDirectory())
         {
             String newEntryPath = entryPath + file.getName() + "/";
-            File[] children = file.listFiles();
-            for(File child: children)
+            for(File child: listFiles(file))
             {
-                buildJar(newEntryPath, child, out, buffer, loadedEntries);
+                buildJar(newEntryPath, child, out, buffer, loadedEntries, compiledEntries, cacheDir, compilers);
             }
         }
     }
@@ -216,7 +268,55 @@ public class JarUtil {
         return name.endsWith("$py.class");
     }
 
-    private static void compile(String filename, byte[] source, JarOutputStream out) throws IOException {
+    /**
+     * Looks up a compiled module in the cache, or starts compiling it.
+     *
+     * @return the entry for the compiled module.
+     */
+    private static CompiledEntry compile(final String filename, final byte[] source, File cacheDir, ExecutorService compilers) throws IOException {
+        final String name = filename.substring(filename.lastIndexOf("/") + 1, filename.lastIndexOf("."));
+        String newFileName = filename.substring(0, filename.lastIndexOf("/") + 1) + name + "$py.class";
+        final File cachedFile;
+        if(cacheDir != null)
+        {
+            File moduleDir = new File(cacheDir, "modules");
+            moduleDir.mkdirs();
+            MessageDigest digest = getDigest();
+            digest.update(getCompilerVersion().getBytes("UTF-8"));
+            digest.update(filename.getBytes("UTF-8"));
+            digest.update((byte)0);
+            digest.update(source);
+            cachedFile = new File(moduleDir, toHex(digest.digest()) + ".class");
+            if(cachedFile.isFile())
+            {
+                log.debug("Using cached " + name + " for " + filename);
+                InputStream in = new FileInputStream(cachedFile);
+                byte[] compiled = readFully(in, new byte[4096]);
+                in.close();
+                return new CompiledEntry(newFileName, compiled, null);
+            }
+        }
+        else cachedFile = null;
+
+        Future<byte[]> future = compilers.submit(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                log.debug("Compiling " + filename);
+                byte[] compiled = compile(name, filename, source);
+                if(compiled != null && cachedFile != null)
+                {
+                    File tempFile = File.createTempFile("module-", ".class", cachedFile.getParentFile());
+                    FileOutputStream cacheOut = new FileOutputStream(tempFile);
+                    cacheOut.write(compiled);
+                    cacheOut.close();
+                    if(!tempFile.renameTo(cachedFile)) tempFile.delete();
+                }
+                return compiled;
+            }
+        });
+        return new CompiledEntry(newFileName, null, future);
+    }
+
+    private static byte[] compile(String name, String filename, byte[] source) {
         try
         {
             File tempfile = File.createTempFile("source", ".py");
@@ -224,18 +324,182 @@ public class JarUtil {
             FileOutputStream tempOut = new FileOutputStream(tempfile);
             tempOut.write(source);
             tempOut.close();
-            String name = filename.substring(filename.lastIndexOf("/") + 1, filename.lastIndexOf("."));
             byte[] compiled = imp.compileSource(name, tempfile, filename, null);
-            String newFileName = filename.substring(0, filename.lastIndexOf("/") + 1) + name + "$py.class";
-            JarEntry entry = new JarEntry(newFileName);
-            entry.setTime(System.currentTimeMillis());
-            out.putNextEntry(entry);
-            out.write(compiled);
             tempfile.delete();
+            return compiled;
         }
         catch(Exception e)
         {
             log.error("Error compiling " + filename + ", skipping compilation", e);
+            return null;
+        }
+    }
+
+    /**
+     * A compiled module, either loaded from the cache or still being compiled.
+     */
+    private static class CompiledEntry
+    {
+        private final String name;
+        private final byte[] compiled;
+        private final Future<byte[]> future;
+
+        private CompiledEntry(String name, byte[] compiled, Future<byte[]> future) {
+            this.name = name;
+            this.compiled = compiled;
+            this.future = future;
+        }
+
+        private byte[] get() throws IOException {
+            if(future == null) return compiled;
+            try
+            {
+                return future.get();
+            }
+            catch(InterruptedException e)
+            {
+                throw new InterruptedIOException("Interrupted compiling " + name);
+            }
+            catch(ExecutionException e)
+            {
+                IOException ioe = new IOException("Error compiling " + name);
+                ioe.initCause(e.getCause());
+                throw ioe;
+            }
+        }
+    }
+
+    /**
+     * @return the cache directory, or null if caching is turned off or the directory can't be created.
+     */
+    private static File getCacheDir() {
+        String cacheDir = System.getProperty(CACHE_DIR_PROPERTY, System.getProperty("user.home") + "/.happy/cache");
+        if(cacheDir.length() == 0) return null;
+        File dir = new File(cacheDir);
+        if(!dir.isDirectory() && !dir.mkdirs())
+        {
+            log.warn("Can't create cache directory " + dir + ", building without a cache");
+            return null;
+        }
+        return dir;
+    }
+
+    /**
+     * Hashes everything that goes into a job jar: the path, size and modification time of each jar, and the
+     * name and content of each file, in the order they are added.
+     */
+    private static String hashInputs(List<String> inputJars, List<String> inputFiles) throws IOException {
+        MessageDigest digest = getDigest();
+        digest.update(getCompilerVersion().getBytes("UTF-8"));
+        for(String jarFile: inputJars)
+        {
+            File file = new File(jarFile);
+            digest.update((file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified() + "\n").getBytes("UTF-8"));
+        }
+        byte[] buffer = new byte[65536];
+        for(String fileName: inputFiles)
+        {
+            File file = new File(fileName);
+            if(!file.exists()) throw new IOException("Path " + file.getAbsolutePath() + " doesn't exist!");
+            hashFile("", file, digest, buffer);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void hashFile(String entryPath, File file, MessageDigest digest, byte[] buffer) throws IOException {
+        if(file.isFile())
+        {
+            digest.update((entryPath + file.getName() + ":" + file.length() + "\n").getBytes("UTF-8"));
+            InputStream in = new FileInputStream(file);
+            int read;
+            while((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+            in.close();
+        }
+        else if(file.isDirectory())
+        {
+            String newEntryPath = entryPath + file.getName() + "/";
+            for(File child: listFiles(file)) hashFile(newEntryPath, child, digest, buffer);
+        }
+    }
+
+    /**
+     * Identifies the Jython compiler, so modules are recompiled when it changes.
+     */
+    private static String getCompilerVersion() {
+        File jythonJar = new File(String.valueOf(findContainingPath(imp.class)));
+        return jythonJar.getAbsolutePath() + ":" + jythonJar.length() + ":" + jythonJar.lastModified() + "\n";
+    }
+
+    /**
+     * Deletes the least recently used jars past MAX_CACHED_JARS.
+     */
+    private static void pruneJars(File jarDir) {
+        File[] jars = jarDir.listFiles();
+        if(jars == null || jars.length <= MAX_CACHED_JARS) return;
+        Arrays.sort(jars, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = b.lastModified() - a.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        for(int i = MAX_CACHED_JARS; i < jars.length; i++) jars[i].delete();
+    }
+
+    private static File[] listFiles(File dir) {
+        // sorted, so the same tree always hashes and packs the same way:
+        File[] children = dir.listFiles();
+        if(children == null) return new File[0];
+        Arrays.sort(children);
+        return children;
+    }
+
+    private static MessageDigest getDigest() {
+        try
+        {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b: bytes)
+        {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] readFully(InputStream in, byte[] buffer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int read;
+        while((read = in.read(buffer)) != -1) bytes.write(buffer, 0, read);
+        return bytes.toByteArray();
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try
+        {
+            OutputStream out = new FileOutputStream(to);
+            try
+            {
+                byte[] buffer = new byte[65536];
+                int read;
+                while((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
         }
     }
 }
@@ -0,0 +1,275 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.util;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * An InputStream over a list of files that opens and buffers the next few files
+ * on a small thread pool while the current file is being read.
+ *
+ * In ordered mode the files are returned in list order.  In unordered mode each
+ * file is returned whole as soon as its buffer has been filled, so files are never
+ * interleaved with each other but may be returned in any order.
+ */
+public class PrefetchingInputStream extends InputStream
+{
+    public static final int DEFAULT_FILES = 4;
+    public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final FileSystem fileSystem;
+    private final List<Path> paths;
+    private final int bufferSize;
+    private final boolean ordered;
+
+    private ExecutorService executor;
+    private CompletionService<PrefetchedFile> completion;
+    private final LinkedList<Future<PrefetchedFile>> pending = new LinkedList<Future<PrefetchedFile>>();
+    private final Set<InputStream> openStreams = new HashSet<InputStream>();
+    private int nextPath = 0;
+    private int outstanding = 0;
+    private PrefetchedFile current;
+    private volatile boolean closed = false;
+
+    /**
+     * @param fileSystem the filesystem to read from
+     * @param paths the files to read
+     * @param files the number of files to open ahead of the current one
+     * @param bufferSize the number of bytes to buffer from the start of each file
+     * @param ordered true to return the files in list order
+     */
+    public PrefetchingInputStream(FileSystem fileSystem, List<Path> paths, int files, int bufferSize, boolean ordered) {
+        if(files < 1) throw new IllegalArgumentException("Invalid number of prefetched files " + files);
+        if(bufferSize < 1) throw new IllegalArgumentException("Invalid prefetch buffer size " + bufferSize);
+        this.fileSystem = fileSystem;
+        this.paths = new ArrayList<Path>(paths);
+        this.bufferSize = bufferSize;
+        this.ordered = ordered;
+
+        int threads = Math.min(files, this.paths.size());
+        if(threads > 0)
+        {
+            executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("happy-prefetch"));
+            if(!ordered) completion = new ExecutorCompletionService<PrefetchedFile>(executor);
+            while(outstanding < files && nextPath < this.paths.size()) submit(this.paths.get(nextPath++));
+        }
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        if(read(b, 0, 1) < 0) return -1;
+        return b[0] & 0xff;
+    }
+
+    public int read(byte[] bytes) throws IOException {
+        return read(bytes, 0, bytes.length);
+    }
+
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        if(closed) throw new IOException("Stream closed");
+        if(len == 0) return 0;
+        while(true)
+        {
+            if(current == null && !nextFile()) return -1;
+
+            // serve the prefetched buffer first:
+            if(current.position < current.length)
+            {
+                int n = Math.min(len, current.length - current.position);
+                System.arraycopy(current.buffer, current.position, bytes, off, n);
+                current.position += n;
+                return n;
+            }
+
+            // then the remainder of a file that didn't fit in the buffer:
+            if(current.in != null)
+            {
+                int n = current.in.read(bytes, off, len);
+                if(n > 0) return n;
+            }
+
+            closeCurrent();
+        }
+    }
+
+    public int available() throws IOException {
+        if(current == null) return 0;
+        return current.length - current.position;
+    }
+
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        current = null;
+        pending.clear();
+        if(executor != null) executor.shutdownNow();
+
+        // close anything the prefetch threads had already opened:
+        List<InputStream> streams;
+        synchronized(openStreams)
+        {
+            streams = new ArrayList<InputStream>(openStreams);
+            openStreams.clear();
+        }
+        IOException error = null;
+        for(InputStream in: streams)
+        {
+            try
+            {
+                in.close();
+            }
+            catch(IOException e)
+            {
+                if(error == null) error = e;
+            }
+        }
+        if(error != null) throw error;
+    }
+
+    private void submit(Path path) {
+        Callable<PrefetchedFile> task = new Prefetch(path);
+        if(ordered) pending.add(executor.submit(task));
+        else completion.submit(task);
+        outstanding++;
+    }
+
+    private boolean nextFile() throws IOException {
+        if(outstanding == 0)
+        {
+            if(executor != null) executor.shutdown();
+            return false;
+        }
+        try
+        {
+            Future<PrefetchedFile> future = ordered ? pending.removeFirst() : completion.take();
+            outstanding--;
+            // keep the pool busy while this file is read:
+            if(nextPath < paths.size()) submit(paths.get(nextPath++));
+            current = future.get();
+            return true;
+        }
+        catch(InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted waiting for a prefetched file");
+        }
+        catch(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) throw (IOException) cause;
+            IOException ioe = new IOException("Error prefetching file: " + cause);
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    private void closeCurrent() throws IOException {
+        InputStream in = current.in;
+        current = null;
+        if(in != null)
+        {
+            synchronized(openStreams)
+            {
+                openStreams.remove(in);
+            }
+            in.close();
+        }
+    }
+
+    private static class PrefetchedFile
+    {
+        private final byte[] buffer;
+        private final int length;
+        private int position = 0;
+        // the open stream if the file is longer than the buffer, otherwise null:
+        private final InputStream in;
+
+        private PrefetchedFile(byte[] buffer, int length, InputStream in) {
+            this.buffer = buffer;
+            this.length = length;
+            this.in = in;
+        }
+    }
+
+    private class Prefetch implements Callable<PrefetchedFile>
+    {
+        private final Path path;
+
+        private Prefetch(Path path) {
+            this.path = path;
+        }
+
+        public PrefetchedFile call() throws Exception {
+            InputStream in = fileSystem.open(path);
+            synchronized(openStreams)
+            {
+                if(closed)
+                {
+                    in.close();
+                    throw new IOException("Stream closed");
+                }
+                openStreams.add(in);
+            }
+
+            byte[] buffer = new byte[bufferSize];
+            int length = 0;
+            int read = 0;
+            while(length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1)
+            {
+                length += read;
+            }
+
+            // the whole file fit, so it doesn't need to stay open:
+            if(read == -1)
+            {
+                synchronized(openStreams)
+                {
+                    openStreams.remove(in);
+                }
+                in.close();
+                in = null;
+                if(length < buffer.length / 2)
+                {
+                    byte[] trimmed = new byte[length];
+                    System.arraycopy(buffer, 0, trimmed, 0, length);
+                    buffer = trimmed;
+                }
+            }
+            return new PrefetchedFile(buffer, length, in);
+        }
+    }
+}
@@ -30,10 +30,12 @@
 
 package com.freebase.happy.util;
 
+import com.freebase.happy.Broadcast;
 import org.python.core.*;
 import org.python.util.PythonObjectInputStream;
 
 import java.io.*;
+import java.util.Collection;
 import java.util.Iterator;
 
 /**
@@ -56,6 +58,26 @@ public class PyObjectSerializer {
         return tempfile;
     }
 
+    /**
+     * Serializes a Jython object to a file, collecting the broadcasts it refers to.
+     *
+     * @param o
+     * @param broadcasts receives the broadcasts found in the object.
+     * @return
+     * @throws IOException
+     */
+    public static File serialize(PyObject o, Collection<Broadcast> broadcasts) throws IOException {
+        Broadcast.collect(broadcasts);
+        try
+        {
+            return serialize(o);
+        }
+        finally
+        {
+            Broadcast.collect(null);
+        }
+    }
+
     /**
      * Deserializes a Jython object from a file.
      *
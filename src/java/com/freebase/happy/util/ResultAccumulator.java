@@ -0,0 +1,252 @@
+/**
+ * ========================================================================
+ * Copyright (c) 2008, Metaweb Technologies, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY METAWEB TECHNOLOGIES ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL METAWEB TECHNOLOGIES BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * ========================================================================
+ *
+ */
+
+package com.freebase.happy.util;
+
+import org.python.core.*;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A typed value in happy.results that is merged in Java instead of being returned as a list of per-task values.
+ * Each task adds to its own accumulators, and the client merges the accumulators of all tasks and returns
+ * the merged value for each key.
+ */
+public abstract class ResultAccumulator implements Serializable {
+
+    /**
+     * Merges another accumulator of the same type into this one.
+     *
+     * @param other
+     */
+    public abstract void merge(ResultAccumulator other);
+
+    /**
+     * @return the merged value returned to the client.
+     */
+    public abstract PyObject getValue();
+
+    /**
+     * Adds up numbers.
+     */
+    public static class Sum extends ResultAccumulator {
+        private PyObject total = Py.newInteger(0);
+
+        public synchronized void add(PyObject value) {
+            total = total._add(value);
+        }
+
+        public synchronized void merge(ResultAccumulator other) {
+            total = total._add(((Sum)other).total);
+        }
+
+        public synchronized PyObject getValue() {
+            return total;
+        }
+    }
+
+    /**
+     * Keeps the largest value.
+     */
+    public static class Max extends ResultAccumulator {
+        private PyObject max;
+
+        public synchronized void add(PyObject value) {
+            if(max == null || value._cmp(max) > 0) max = value;
+        }
+
+        public void merge(ResultAccumulator other) {
+            PyObject value = other.getValue();
+            if(value != Py.None) add(value);
+        }
+
+        public synchronized PyObject getValue() {
+            return max == null ? Py.None : max;
+        }
+    }
+
+    /**
+     * Keeps the smallest value.
+     */
+    public static class Min extends ResultAccumulator {
+        private PyObject min;
+
+        public synchronized void add(PyObject value) {
+            if(min == null || value._cmp(min) < 0) min = value;
+        }
+
+        public void merge(ResultAccumulator other) {
+            PyObject value = other.getValue();
+            if(value != Py.None) add(value);
+        }
+
+        public synchronized PyObject getValue() {
+            return min == null ? Py.None : min;
+        }
+    }
+
+    /**
+     * Estimates the number of distinct values with a HyperLogLog sketch of 2^14 registers, which has a
+     * standard error of about 0.8%.  Values are hashed by their string form, so 1 and "1" count as one value.
+     */
+    public static class HyperLogLog extends ResultAccumulator {
+        private static final int PRECISION = 14;
+        private static final int REGISTERS = 1 << PRECISION;
+
+        private final byte[] registers = new byte[REGISTERS];
+
+        public synchronized void add(PyObject value) {
+            long hash = hash(value.toString());
+            int index = (int)(hash >>> (64 - PRECISION));
+            // the rank of the first set bit in the remaining bits, capped by the marker bit:
+            int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+            if(rank > registers[index]) registers[index] = (byte)rank;
+        }
+
+        public void merge(ResultAccumulator other) {
+            byte[] otherRegisters = ((HyperLogLog)other).registers;
+            synchronized(this)
+            {
+                for(int i = 0; i < REGISTERS; i++)
+                {
+                    if(otherRegisters[i] > registers[i]) registers[i] = otherRegisters[i];
+                }
+            }
+        }
+
+        public synchronized PyObject getValue() {
+            double sum = 0;
+            int zeros = 0;
+            for(byte register: registers)
+            {
+                sum += 1.0 / (1L << register);
+                if(register == 0) zeros++;
+            }
+            double m = REGISTERS;
+            double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+            // linear counting is more accurate for small cardinalities:
+            if(estimate <= 2.5 * m && zeros > 0) estimate = m * Math.log(m / zeros);
+            return Py.newLong(Math.round(estimate));
+        }
+
+        private static long hash(String s) {
+            // 64 bit FNV-1a over the UTF-8 bytes, with a final mix to spread the high bits:
+            byte[] bytes;
+            try
+            {
+                bytes = s.getBytes("UTF-8");
+            }
+            catch(UnsupportedEncodingException e)
+            {
+                throw new RuntimeException(e);
+            }
+            long hash = 0xcbf29ce484222325L;
+            for(byte b: bytes)
+            {
+                hash ^= b & 0xFF;
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+
+    /**
+     * Counts items and keeps the k most frequent.  Up to 10 * k items are tracked, and the least frequent
+     * half is dropped when that fills up, so counts are exact when there are few distinct items and
+     * approximate otherwise.
+     */
+    public static class TopK extends ResultAccumulator {
+        private final int k;
+        private final int capacity;
+        private final Map<PyObject, long[]> counts = new HashMap<PyObject, long[]>();
+
+        public TopK(int k) {
+            this.k = k;
+            this.capacity = Math.max(10 * k, 100);
+        }
+
+        public synchronized void add(PyObject item, long count) {
+            long[] current = counts.get(item);
+            if(current != null) current[0] += count;
+            else
+            {
+                counts.put(item, new long[]{count});
+                if(counts.size() > capacity) prune();
+            }
+        }
+
+        public void merge(ResultAccumulator other) {
+            TopK otherTopK = (TopK)other;
+            synchronized(otherTopK)
+            {
+                for(Map.Entry<PyObject, long[]> entry: otherTopK.counts.entrySet()) add(entry.getKey(), entry.getValue()[0]);
+            }
+        }
+
+        public synchronized PyObject getValue() {
+            List<Map.Entry<PyObject, long[]>> entries = sortedEntries();
+            PyList top = new PyList();
+            for(int i = 0; i < Math.min(k, entries.size()); i++)
+            {
+                Map.Entry<PyObject, long[]> entry = entries.get(i);
+                top.append(new PyTuple(new PyObject[]{entry.getKey(), Py.newLong(entry.getValue()[0])}));
+            }
+            return top;
+        }
+
+        private void prune() {
+            List<Map.Entry<PyObject, long[]>> entries = sortedEntries();
+            for(int i = capacity / 2; i < entries.size(); i++) counts.remove(entries.get(i).getKey());
+        }
+
+        private List<Map.Entry<PyObject, long[]>> sortedEntries() {
+            List<Map.Entry<PyObject, long[]>> entries = new ArrayList<Map.Entry<PyObject, long[]>>(counts.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<PyObject, long[]>>() {
+                public int compare(Map.Entry<PyObject, long[]> a, Map.Entry<PyObject, long[]> b) {
+                    long diff = b.getValue()[0] - a.getValue()[0];
+                    return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+                }
+            });
+            return entries;
+        }
+    }
+}
@@ -39,78 +39,258 @@ import org.python.core.Py;
 import org.python.core.PyDictionary;
 import org.python.core.PyList;
 import org.python.core.PyObject;
+import org.python.core.PyTuple;
 import org.python.util.PythonInterpreter;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Serialized and deserialized Happy results for a job.
+ *
+ * Each task writes its results to a file.  Values that are ResultAccumulators are merged on the client,
+ * and other values are returned as a list of the values set by each task.
  */
 public class ResultSerializer {
+    private static final AtomicInteger sequence = new AtomicInteger();
+    private static final int MAX_THREADS = 16;
 
     /**
-     * Saves happy.results to dfs if any results are set.
+     * Saves happy.results to dfs if any results are set.  When a task runs several interpreters,
+     * their results are combined into the task's single entry: accumulators are merged, and
+     * other values are kept for every interpreter that set them, as if each had been a task.
      *
      * @param jobConf
-     * @param interpreter
+     * @param interpreters
      */
-    public static void serialize(JobConf jobConf, PythonInterpreter interpreter) throws IOException {
-        // store results:
-        PyDictionary results = (PyDictionary) interpreter.get("happy").__getattr__("results");
-        if(results != null && !results.equals(Py.None) && results.__len__() > 0)
+    public static void serialize(JobConf jobConf, PythonInterpreter... interpreters) throws IOException {
+        // accumulators are stored as java objects, everything else as python objects:
+        Map<PyObject, Object> taskResults = new HashMap<PyObject, Object>();
+        for(PythonInterpreter interpreter: interpreters)
+        {
+            PyObject results = interpreter.get("happy").__getattr__("results");
+            if(results == null || results == Py.None) continue;
+            PyObject iterator = ((PyDictionary) results).iteritems();
+            PyTuple tuple;
+            while((tuple = (PyTuple) iterator.__iternext__()) != null)
+            {
+                PyObject key = tuple.pyget(0);
+                PyObject value = tuple.pyget(1);
+                Object accumulator = value.__tojava__(ResultAccumulator.class);
+                Object current = taskResults.get(key);
+                if(current == null) taskResults.put(key, accumulator != Py.NoConversion ? accumulator : value);
+                else if(current instanceof ResultAccumulator && accumulator != Py.NoConversion)
+                {
+                    if(!current.getClass().equals(accumulator.getClass())) throw new IOException("Result " + key + " mixes " + current.getClass().getSimpleName() + " and " + accumulator.getClass().getSimpleName() + " accumulators");
+                    ((ResultAccumulator) current).merge((ResultAccumulator) accumulator);
+                }
+                else if(current instanceof ResultAccumulator || accumulator != Py.NoConversion)
+                {
+                    throw new IOException("Result " + key + " mixes accumulators and plain values");
+                }
+                else if(current instanceof TaskValues) ((TaskValues) current).values.add(value);
+                else
+                {
+                    TaskValues values = new TaskValues();
+                    values.values.add((PyObject) current);
+                    values.values.add(value);
+                    taskResults.put(key, values);
+                }
+            }
+        }
+
+        if(taskResults.size() > 0)
         {
             FileSystem fs = FileSystem.get(jobConf);
             Path workPath = FileOutputFormat.getWorkOutputPath(jobConf);
             Path resultPath = new Path(workPath,
-                    "_hresult/result-" + jobConf.get("mapred.task.partition") + "-" + System.currentTimeMillis() + ".bin");
+                    "_hresult/result-" + jobConf.get("mapred.task.partition") + "-" + System.currentTimeMillis() +
+                    "-" + sequence.getAndIncrement() + ".bin");
             OutputStream resultOut = fs.create(resultPath);
-            PyObjectSerializer.serialize(results, resultOut);
+            ObjectOutputStream objectOut = new PyObjectSerializer.JythonObjectOutputStream(resultOut);
+            objectOut.writeObject(taskResults);
+            objectOut.flush();
             resultOut.close();
         }
     }
 
     /**
      * Deserializes results from happy.results and combines all of them into a single dictionary.
+     * Result files are read and merged on several threads.
      *
      * @param jobConf
      * @return
      */
     public static PyDictionary deserialize(JobConf jobConf) throws IOException, ClassNotFoundException {
-        PyDictionary results = new PyDictionary();
-        FileSystem fs = FileSystem.get(jobConf);
+        return deserialize(jobConf, null);
+    }
+
+    /**
+     * Deserializes results like deserialize(jobConf), and also puts the merged accumulator of each
+     * accumulator result into a dictionary, so results of several jobs can be merged in turn.
+     *
+     * @param jobConf
+     * @param accumulators the dictionary that accumulators are added to, or null.
+     * @return
+     */
+    public static PyDictionary deserialize(JobConf jobConf, PyDictionary accumulators) throws IOException, ClassNotFoundException {
+        final FileSystem fs = FileSystem.get(jobConf);
         Path outputPath = FileOutputFormat.getOutputPath(jobConf);
         // look for a result dir:
         Path resultPath = new Path(outputPath, "_hresult");
-        if(fs.exists(resultPath))
+        if(!fs.exists(resultPath)) return new PyDictionary();
+
+        final List<Path> files = new ArrayList<Path>();
+        for(FileStatus file: fs.listStatus(resultPath))
         {
-            FileStatus[] files = fs.listStatus(resultPath);
-            for(FileStatus file: files)
+            if(!file.isDir() && file.getPath().getName().endsWith(".bin")) files.add(file.getPath());
+        }
+
+        // each thread merges a share of the files, then the shares are merged:
+        Map<PyObject, Object> merged = new LinkedHashMap<PyObject, Object>();
+        if(files.size() > 0)
+        {
+            final AtomicInteger nextFile = new AtomicInteger();
+            int threads = Math.min(files.size(), MAX_THREADS);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try
             {
-                // load result files into a dictionary:
-                if(!file.isDir() && file.getPath().getName().endsWith(".bin"))
+                List<Future<Map<PyObject, Object>>> shares = new ArrayList<Future<Map<PyObject, Object>>>();
+                for(int i = 0; i < threads; i++)
                 {
-                    InputStream in = fs.open(file.getPath());
-                    PyDictionary result = (PyDictionary) PyObjectSerializer.deserialize(in);
-                    in.close();
-                    PyList keys = result.keys();
-                    for(int i = 0; i < keys.size(); i++)
-                    {
-                        PyObject key = keys.pyget(i);
-                        PyObject value = result.get(key);
-                        PyList list = (PyList) results.__finditem__(key);
-                        if(list == null)
-                        {
-                            list = new PyList();
-                            results.__setitem__(key, list);
+                    shares.add(executor.submit(new Callable<Map<PyObject, Object>>() {
+                        public Map<PyObject, Object> call() throws Exception {
+                            Map<PyObject, Object> share = new LinkedHashMap<PyObject, Object>();
+                            int index;
+                            while((index = nextFile.getAndIncrement()) < files.size())
+                            {
+                                merge(share, readResults(fs, files.get(index)));
+                            }
+                            return share;
                         }
-                        list.pyadd(value);
-                    }
+                    }));
                 }
+                for(Future<Map<PyObject, Object>> share: shares) merge(merged, share.get());
+            }
+            catch(InterruptedException e)
+            {
+                throw new IOException("Interrupted reading results");
+            }
+            catch(ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                if(cause instanceof IOException) throw (IOException) cause;
+                if(cause instanceof ClassNotFoundException) throw (ClassNotFoundException) cause;
+                IOException ioe = new IOException("Error reading results");
+                ioe.initCause(cause);
+                throw ioe;
+            }
+            finally
+            {
+                executor.shutdownNow();
             }
-            fs.delete(resultPath, true);
+        }
+        fs.delete(resultPath, true);
+
+        PyDictionary results = new PyDictionary();
+        for(Map.Entry<PyObject, Object> entry: merged.entrySet())
+        {
+            Object value = entry.getValue();
+            if(value instanceof ResultAccumulator)
+            {
+                results.__setitem__(entry.getKey(), ((ResultAccumulator) value).getValue());
+                if(accumulators != null) accumulators.__setitem__(entry.getKey(), Py.java2py(value));
+            }
+            else results.__setitem__(entry.getKey(), (PyList) value);
         }
         return results;
     }
+
+    /**
+     * Reads the results of one task.  Accumulators are returned as they are, and other values are wrapped
+     * in lists with one value for each interpreter that set them.
+     */
+    private static Map<PyObject, Object> readResults(FileSystem fs, Path path) throws IOException, ClassNotFoundException {
+        InputStream in = fs.open(path);
+        Object result;
+        try
+        {
+            result = new PyObjectSerializer.JythonObjectInputStream(in).readObject();
+        }
+        finally
+        {
+            in.close();
+        }
+        Map<PyObject, Object> taskResults = new HashMap<PyObject, Object>();
+        if(result instanceof PyDictionary)
+        {
+            // written before accumulators were added:
+            PyDictionary dictionary = (PyDictionary) result;
+            PyList keys = dictionary.keys();
+            for(int i = 0; i < keys.size(); i++)
+            {
+                PyObject key = keys.pyget(i);
+                taskResults.put(key, new PyList(new PyObject[]{dictionary.get(key)}));
+            }
+        }
+        else
+        {
+            for(Map.Entry<PyObject, Object> entry: ((Map<PyObject, Object>) result).entrySet())
+            {
+                Object value = entry.getValue();
+                if(value instanceof ResultAccumulator) taskResults.put(entry.getKey(), value);
+                else if(value instanceof TaskValues)
+                {
+                    List<PyObject> values = ((TaskValues) value).values;
+                    taskResults.put(entry.getKey(), new PyList(values.toArray(new PyObject[values.size()])));
+                }
+                else taskResults.put(entry.getKey(), new PyList(new PyObject[]{(PyObject) value}));
+            }
+        }
+        return taskResults;
+    }
+
+    /**
+     * Merges results into a running total, merging accumulators and concatenating lists.
+     */
+    private static void merge(Map<PyObject, Object> total, Map<PyObject, Object> results) throws IOException {
+        for(Map.Entry<PyObject, Object> entry: results.entrySet())
+        {
+            PyObject key = entry.getKey();
+            Object value = entry.getValue();
+            Object current = total.get(key);
+            if(current == null) total.put(key, value);
+            else if(current instanceof ResultAccumulator && value instanceof ResultAccumulator)
+            {
+                if(!current.getClass().equals(value.getClass())) throw new IOException("Result " + key + " mixes " + current.getClass().getSimpleName() + " and " + value.getClass().getSimpleName() + " accumulators");
+                ((ResultAccumulator) current).merge((ResultAccumulator) value);
+            }
+            else if(current instanceof PyList && value instanceof PyList) ((PyList) current).extend((PyList) value);
+            else throw new IOException("Result " + key + " mixes accumulators and plain values");
+        }
+    }
+
+    /**
+     * The plain values that several interpreters of one task set for the same key.
+     */
+    private static class TaskValues implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<PyObject> values = new ArrayList<PyObject>();
+    }
 }
@@ -50,14 +50,14 @@ public class TextFileCollector implements OutputCollector<String, String> {
         writer = new BufferedWriter(new OutputStreamWriter(fileSystem.create(path, false), "utf-8"));
     }
 
-    public void collect(String key, String value) throws IOException {
+    public synchronized void collect(String key, String value) throws IOException {
         writer.write(key);
         writer.write("\t");
         writer.write(value);
         writer.write("\n");
     }
 
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         writer.flush();
         writer.close();
     }
@@ -30,6 +30,7 @@
 
 package com.freebase.happy.util;
 
+import com.freebase.happy.columnar.ColumnarInputFormat;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FileSystem;
@@ -42,7 +43,7 @@ import java.io.IOException;
 import java.io.InputStream;
 
 /**
- * An InputFormat that handles both Text and KeyValue files.
+ * An InputFormat that handles Text, KeyValue and columnar files.
  */
 public class TextOrSequenceInputFormat extends FileInputFormat implements JobConfigurable {
     public static final Log LOG =
@@ -71,6 +72,11 @@ public class TextOrSequenceInputFormat extends FileInputFormat implements JobCon
             LOG.info("Opening " + fileSplit.getPath() + " as SequenceFile");
             return new SequenceFileRecordReader(job, fileSplit);
         }
+        else if(ColumnarInputFormat.isColumnarFile(fs, fileSplit.getPath()))
+        {
+            LOG.info("Opening " + fileSplit.getPath() + " as columnar file");
+            return new ColumnarInputFormat.ColumnarRecordReader(job, fileSplit);
+        }
         else
         {
             LOG.info("Opening " + fileSplit.getPath() + " as text file");
@@ -54,13 +54,13 @@ public class TextSequenceFileCollector implements OutputCollector<String, String
                 compressionType, compressionCodec);
     }
 
-    public void collect(String key, String value) throws IOException {
+    public synchronized void collect(String key, String value) throws IOException {
         keyWritable.set(key);
         valueWritable.set(value);
         writer.append(keyWritable, valueWritable);
     }
 
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         writer.close();
     }
 }
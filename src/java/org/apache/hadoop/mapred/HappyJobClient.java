@@ -131,6 +131,9 @@ public class HappyJobClient extends Configured implements MRConstants, Tool  {
   private TaskStatusFilter taskOutputFilter = TaskStatusFilter.FAILED;
   private static Configuration commandLineConfig;
   static long MAX_JOBPROFILE_AGE = 1000 * 2;
+  /** How often, in milliseconds, user counters are logged while a job runs; 0 turns it off. */
+  public static final String COUNTER_INTERVAL_KEY = "happy.counters.interval";
+  public static final long DEFAULT_COUNTER_INTERVAL = 10000;
 
   /**
    * A NetworkedJob is an implementation of RunningJob.  It holds
@@ -1141,6 +1144,9 @@ public class HappyJobClient extends Configured implements MRConstants, Tool  {
       boolean profiling = job.getProfileEnabled();
       Configuration.IntegerRanges mapRanges = job.getProfileTaskRange(true);
       Configuration.IntegerRanges reduceRanges = job.getProfileTaskRange(false);
+      long counterInterval = job.getLong(COUNTER_INTERVAL_KEY, DEFAULT_COUNTER_INTERVAL);
+      long lastCounterTime = System.currentTimeMillis();
+      String lastCounterReport = null;
 
       while (true) {
         try {
@@ -1215,6 +1221,16 @@ public class HappyJobClient extends Configured implements MRConstants, Tool  {
               break;
             }
           }
+          // show user counters while the job runs:
+          if (counterInterval > 0 &&
+              System.currentTimeMillis() - lastCounterTime >= counterInterval) {
+            lastCounterTime = System.currentTimeMillis();
+            String counterReport = formatUserCounters(running.getCounters());
+            if (counterReport != null && !counterReport.equals(lastCounterReport)) {
+              LOG.info(counterReport);
+              lastCounterReport = counterReport;
+            }
+          }
           retries = MAX_RETRIES;
         } catch (IOException ie) {
           if (--retries == 0) {
@@ -1229,7 +1245,9 @@ public class HappyJobClient extends Configured implements MRConstants, Tool  {
         throw new IOException("Job failed!");
       }
       LOG.info("Job complete: " + jobId);
-      running.getCounters().log(LOG);
+      Counters counters = running.getCounters();
+      counters.log(LOG);
+      logHappyCounters(counters);
       error = false;
     } finally {
       if (error && (running != null)) {
@@ -1240,6 +1258,64 @@ public class HappyJobClient extends Configured implements MRConstants, Tool  {
     return running;
   }
 
+  /**
+   * Formats the counters that don't belong to Hadoop or Happy itself, such as those incremented
+   * with task.counter().
+   *
+   * @return a one-line report, or null if there are no user counters.
+   */
+  private static String formatUserCounters(Counters counters) {
+    if (counters == null) {
+      return null;
+    }
+    StringBuilder report = new StringBuilder();
+    for (Group group : counters) {
+      String groupName = group.getName();
+      if (groupName.startsWith("org.apache.hadoop.") ||
+          groupName.equals("FileSystemCounters") || groupName.equals("Happy")) {
+        continue;
+      }
+      report.append(report.length() == 0 ? "Counters: " : "; ");
+      report.append(groupName).append(":");
+      for (Counter counter : group) {
+        report.append(" ").append(counter.getDisplayName()).append("=").append(counter.getCounter());
+      }
+    }
+    return report.length() > 0 ? report.toString() : null;
+  }
+
+  /**
+   * Logs a per-phase time breakdown from the counters published by Happy tasks.
+   */
+  private static void logHappyCounters(Counters counters) {
+    Group group = counters.getGroup("Happy");
+    if (group == null || group.size() == 0) {
+      return;
+    }
+    String[] prefixes = {"MAP", "COMBINE", "REDUCE"};
+    String[] phases = {"READ", "CONVERT", "PYTHON", "COLLECT"};
+    for (String prefix : prefixes) {
+      long total = 0;
+      long[] times = new long[phases.length];
+      for (int i = 0; i < phases.length; i++) {
+        times[i] = group.getCounter(prefix + "_" + phases[i] + "_MS");
+        total += times[i];
+      }
+      if (total == 0) {
+        continue;
+      }
+      StringBuilder sb = new StringBuilder("Happy ");
+      sb.append(prefix.toLowerCase()).append(" time: ");
+      for (int i = 0; i < phases.length; i++) {
+        sb.append(phases[i].toLowerCase()).append(" ").append(times[i]).append("ms (");
+        sb.append(StringUtils.formatPercent((double) times[i] / total, 0)).append(") ");
+      }
+      sb.append("records in ").append(group.getCounter(prefix + "_INPUT_RECORDS"));
+      sb.append(", records out ").append(group.getCounter(prefix + "_OUTPUT_RECORDS"));
+      LOG.info(sb.toString());
+    }
+  }
+
   static String getTaskLogURL(TaskAttemptID taskId, String baseUrl) {
     return (baseUrl + "/tasklog?plaintext=true&taskid=" + taskId);
   }
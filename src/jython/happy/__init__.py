@@ -29,13 +29,16 @@
 import sys, happy.log
 from java.io import File
 from java.lang import System, Class
+from java.util import ArrayList
 from org.apache.hadoop.fs import Path
 from org.apache.hadoop.io import Text
 from org.apache.hadoop.mapred import JobConf, TextInputFormat, KeyValueTextInputFormat, SequenceFileInputFormat, TextOutputFormat, SequenceFileOutputFormat, FileInputFormat, FileOutputFormat
 from org.apache.hadoop.mapred import HappyJobClient
-from com.freebase.happy import HappyBase, HappyMap, HappyCombine, HappyReduce, HappyJobRunner
-from com.freebase.happy.util import JarUtil, PyObjectSerializer, TextOrSequenceInputFormat, ResultSerializer
-from com.freebase.happy.json import JSONWritable, JSONInputFormat
+from com.freebase.happy import Broadcast, HappyBase, HappyMap, HappyMultithreadedMap, HappyCombine, HappyReduce, HappyJobRunner, HappyProfiler, TaskWrapper
+from com.freebase.happy.util import JarUtil, PyObjectSerializer, TextOrSequenceInputFormat, ResultSerializer, ResultAccumulator
+from com.freebase.happy.bjson import BJSON, BJSONPartitioner
+from com.freebase.happy.json import JSONWritable, JSONInputFormat, JSONArrayInputFormat, JSONLInputFormat, StringInterner
+from com.freebase.happy.columnar import ColumnarInputFormat, ColumnarOutputFormat
 
 _log = happy.log.getLogger("HappyJob")
 
@@ -55,8 +58,57 @@ for includepath in System.getProperty("happy.path", "").split(":"):
 job = None
 _jobconf = None
 
+class Results(dict):
+    """
+    The happy.results dictionary.  Plain values are returned to the client as a list of the values set by
+    each task.  Values added with sum(), max(), min(), hll() and topk() are merged across tasks instead, and
+    the client gets back a single merged value for each key.
+    """
+    def sum(self, key, value=1):
+        self._accumulator(key, ResultAccumulator.Sum).add(value)
+
+    def max(self, key, value):
+        self._accumulator(key, ResultAccumulator.Max).add(value)
+
+    def min(self, key, value):
+        self._accumulator(key, ResultAccumulator.Min).add(value)
+
+    def hll(self, key, value):
+        """
+        Estimates the number of distinct values.
+        """
+        self._accumulator(key, ResultAccumulator.HyperLogLog).add(value)
+
+    def topk(self, key, item, count=1, k=10):
+        """
+        Counts items, returning the k most frequent as a list of (item, count) tuples.
+        """
+        self._accumulator(key, ResultAccumulator.TopK, k).add(item, count)
+
+    def _accumulator(self, key, accumulatorClass, *args):
+        accumulator = self.get(key)
+        if accumulator is None:
+            accumulator = accumulatorClass(*args)
+            self[key] = accumulator
+        return accumulator
+
+class JobResults(dict):
+    """
+    The results returned by run(): the happy.results values of all of the tasks, with the job's Hadoop
+    counters as a {group: {name: value}} dictionary in the counters attribute, apart from the result keys.
+    The accumulators attribute holds the merged ResultAccumulator behind each accumulator result, so the
+    results of several jobs can be merged.
+    """
+    def __init__(self, results=None, counters=None, accumulators=None):
+        dict.__init__(self)
+        if results is not None: self.update(results)
+        if counters is None: counters = {}
+        self.counters = counters
+        if accumulators is None: accumulators = {}
+        self.accumulators = accumulators
+
 # This contains result data that will be sent back to the client job.
-results = {}
+results = Results()
 
 # This sets whether all jobs and the filesystem are set to be local - good for debugging:
 allLocalJobs = False
@@ -73,6 +125,16 @@ def getJobConf():
         else: _jobconf = JobConf()
     return _jobconf
 
+def broadcast(value):
+    """
+    Writes a JSON-like value, such as a large lookup table, to a file that is shipped with the job
+    instead of being serialized with the job object.  Set the result as a field of the job object;
+    tasks load the value the first time it is used, once per JVM.  The result can be used like the
+    value itself, or the value can be fetched with .value.  It must be treated as read-only.
+    """
+    if job is not None: raise Exception("broadcast() cannot be called inside of a running job")
+    return Broadcast.create(value)
+
 class HappyJob(object):
     """
     Runner class for Hadoop Map/Reduce classes.
@@ -101,6 +163,16 @@ class HappyJob(object):
         self.mapoutputvalue = "text"
         self.outputkey = "text"
         self.outputvalue = "text"
+        self.warmstart = False
+        self.batchsize = None
+        self.mapthreads = None
+        self.asyncoutput = False
+        self.profile = False
+        self.inputfields = None
+        self.jsontext = False
+        self.bjsonviews = False
+        self.rawunicode = False
+        self.internsize = None
         self.jobargs = {}
 
     def run(self, target=None):
@@ -119,7 +191,7 @@ class HappyJob(object):
         if target is None: target = self
 
         # sanity checking:
-        if not hasattr(target.__class__, "map"): raise Exception("Target is missing map function: " + str(target))
+        if not hasattr(target.__class__, "map") and not hasattr(target.__class__, "map_batches"): raise Exception("Target is missing map function: " + str(target))
         if (self.reducetasks > 0 or self.reducetasks is None) and not hasattr(target.__class__, "reduce"): raise Exception("Target is missing reduce function: " + str(target))
 
         jobconf = JobConf()
@@ -158,14 +230,19 @@ class HappyJob(object):
         if self.inputformat == "text": jobconf.setInputFormat(TextInputFormat)
         elif self.inputformat == "keyvalue": jobconf.setInputFormat(KeyValueTextInputFormat)
         elif self.inputformat == "json": jobconf.setInputFormat(JSONInputFormat)
+        elif self.inputformat == "jsonarray": jobconf.setInputFormat(JSONArrayInputFormat)
+        elif self.inputformat == "jsonl": jobconf.setInputFormat(JSONLInputFormat)
         elif self.inputformat == "sequence": jobconf.setInputFormat(SequenceFileInputFormat)
+        elif self.inputformat == "columnar": jobconf.setInputFormat(ColumnarInputFormat)
         elif self.inputformat == "auto": jobconf.setInputFormat(TextOrSequenceInputFormat)
         else: jobconf.setInputFormat(Class.forName(self.inputformat))
+        if self.inputfields: jobconf.set(JSONInputFormat.FIELDS_KEY, ",".join(self.inputfields))
 
         # output formats:
         if self.outputformat == "text": jobconf.setOutputFormat(TextOutputFormat)
         elif self.outputformat == "sequence":
             jobconf.setOutputFormat(SequenceFileOutputFormat)
+        elif self.outputformat == "columnar": jobconf.setOutputFormat(ColumnarOutputFormat)
         elif self.outputformat == "mapdir": jobconf.setOutputFormat(Class.forName("org.apache.hadoop.mapred.MapFileOutputFormat"))
         else: jobconf.setOutputFormat(Class.forName(self.outputformat))
 
@@ -181,7 +258,10 @@ class HappyJob(object):
             jobconf.set("mapred.output.compression.type", self.sequencetype)
 
         # set the map and reduce runners:
-        jobconf.setMapRunnerClass(HappyMap)
+        if self.mapthreads is not None and self.mapthreads > 1:
+            jobconf.setMapRunnerClass(HappyMultithreadedMap)
+            jobconf.setInt(HappyMultithreadedMap.THREADS_KEY, self.mapthreads)
+        else: jobconf.setMapRunnerClass(HappyMap)
         if hasattr(target.__class__, "combine"): jobconf.setCombinerClass(HappyCombine)
         jobconf.setReducerClass(HappyReduce)
 
@@ -189,17 +269,46 @@ class HappyJob(object):
         def getOutputType(t):
             if t == None or t == "text": return Text
             elif t == "json": return JSONWritable
+            elif t == "bjson": return BJSON
             else: return Class.forName(t)
         jobconf.setOutputKeyClass(getOutputType(self.outputkey))
         jobconf.setOutputValueClass(getOutputType(self.outputvalue))
         jobconf.setMapOutputKeyClass(getOutputType(self.mapoutputkey))
         jobconf.setMapOutputValueClass(getOutputType(self.mapoutputvalue))
+        if self.mapoutputkey == "bjson": jobconf.setPartitionerClass(BJSONPartitioner)
+
+        # map batch size:
+        if self.batchsize is not None: jobconf.setInt(HappyMap.BATCHSIZE_KEY, self.batchsize)
+
+        # serialize output on a background thread:
+        if self.asyncoutput: jobconf.setBoolean(TaskWrapper.ASYNC_KEY, True)
+
+        # write dicts and lists collected as text as JSON:
+        if self.jsontext: jobconf.setBoolean(TaskWrapper.JSON_TEXT_KEY, True)
+
+        # pass bjson dicts and lists to tasks as lazy views:
+        if self.bjsonviews: jobconf.setBoolean(HappyBase.BJSON_VIEWS_KEY, True)
+
+        # write JSON text output as raw UTF-8:
+        if self.rawunicode: jobconf.setBoolean(TaskWrapper.RAW_UNICODE_KEY, True)
+
+        # decoded string cache size:
+        if self.internsize is not None: jobconf.setInt(StringInterner.SIZE_KEY, self.internsize)
+
+        # sample python stacks:
+        if self.profile: jobconf.setBoolean(HappyProfiler.PROFILE_KEY, True)
+
+        # reuse jvms and interpreters between tasks:
+        if self.warmstart:
+            jobconf.setBoolean(HappyBase.WARMSTART_KEY, True)
+            jobconf.set("mapred.job.reuse.jvm.num.tasks", "-1")
 
         # speculative execution off for now:
         jobconf.setSpeculativeExecution(False)
 
         # serialize this object:
-        scriptobject = PyObjectSerializer.serialize(target)
+        broadcasts = ArrayList()
+        scriptobject = PyObjectSerializer.serialize(target, broadcasts)
         scriptobject.deleteOnExit()
         _log.info("Job state serialized to " + scriptobject.getAbsolutePath())
         if localjob: scriptobjectPath = scriptobject.getAbsolutePath()
@@ -216,7 +325,7 @@ class HappyJob(object):
 
         # set up other resources:
         resourcefiles = self.includepaths[:]
-        resourcefiles.append(scriptobject.getAbsolutePath())
+        if localjob: resourcefiles.append(scriptobject.getAbsolutePath())
         if localjob:
             localIncludePaths = [includepath for includepath in resourcefiles if not includepath.endswith(".jar")]
         else:
@@ -226,7 +335,7 @@ class HappyJob(object):
         # sort all of the paths into jars and files:
         allpaths = path + self.includepaths
         includeJars = [JarUtil.findContainingPath(HappyJobRunner)]
-        includeFiles = [scriptobject.getAbsolutePath()]
+        includeFiles = []
         for includepath in allpaths:
             if includepath.endswith(".jar"): includeJars.append(includepath)
             else: includeFiles.append(includepath)
@@ -237,20 +346,40 @@ class HappyJob(object):
             jobJar = File.createTempFile("happy-", ".jar")
             jobJar.deleteOnExit()
             jobJarPath = jobJar.getAbsolutePath()
-            # package it up:
+            # package it up, reusing the cached jar if nothing changed:
             JarUtil.buildJar(includeJars, includeFiles, jobJar.getAbsolutePath())
             jobconf.setJar(jobJarPath)
 
         # add additional job arguments:
         for key, value in self.jobargs.iteritems(): jobconf.set(key, value)
 
+        # ship the job object and broadcast values outside of the jar, so the jar stays the same between runs:
+        if not localjob:
+            shipfiles = scriptobject.toURI().toString()
+            if broadcasts.size() > 0:
+                shipfiles += "," + Broadcast.getURIs(broadcasts)
+                _log.info("Shipping " + str(broadcasts.size()) + " broadcast value(s) with the job")
+            tmpfiles = jobconf.get("tmpfiles")
+            if tmpfiles: jobconf.set("tmpfiles", tmpfiles + "," + shipfiles)
+            else: jobconf.set("tmpfiles", shipfiles)
+
         # run the job:
         finishedJob = HappyJobClient.runJob(jobconf)
         if not finishedJob.isSuccessful():
             raise Exception("Job " + jobname + " failed")
 
-        # return results:
-        return ResultSerializer.deserialize(jobconf)
+        # merge profiles:
+        if self.profile:
+            profilepath = HappyProfiler.merge(jobconf)
+            if profilepath is not None: _log.info("Python profile written to " + profilepath)
+
+        # return results, with the job's counters as a {group: {name: value}} dictionary:
+        counters = {}
+        for group in finishedJob.getCounters():
+            groupCounters = counters[group.getName()] = {}
+            for counter in group: groupCounters[counter.getName()] = counter.getCounter()
+        accumulators = {}
+        return JobResults(ResultSerializer.deserialize(jobconf, accumulators), counters, accumulators)
 
 
 
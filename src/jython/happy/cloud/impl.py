@@ -35,6 +35,7 @@ from java.text import SimpleDateFormat
 from org.apache.hadoop.fs import Path
 from com.freebase.happy.util import TextInt
 from com.freebase.happy.cloud import FunctionChain, DataException
+from com.freebase.happy.json import JSONInputFormat
 
 _log = happy.log.getLogger("HappyCloud")
 _workdirDateFormat = SimpleDateFormat("yyMMdd-HHmmss")
@@ -78,17 +79,25 @@ class Session:
     """
     Session is central class for specifying a series of Pipes.
     """
-    def __init__(self, workpath=None):
+    def __init__(self, workpath=None, intermediateformat="sequence"):
         if workpath is None: self.workpath = self._getWorkPath()
         else: self.workpath = workpath
+        # the output format of jobs that feed other jobs, "sequence" or "columnar":
+        self.intermediateformat = intermediateformat
         self.sources = []
         self.pipes = []
         self.sinks = []
         self.pipecounter = 0
         self.jobcounter = 0
 
-    def source(self, srcpaths, inputformat="auto", json=True, jobargs={}):
+    def source(self, srcpaths, inputformat="auto", json=True, jobargs={}, inputfields=None):
         if isinstance(srcpaths, basestring): srcpaths = [srcpaths]
+        # jsonl and columnar records are already decoded by the input format:
+        if inputformat == "jsonl" or inputformat == "columnar": json = False
+        # only read these fields from columnar and json inputs:
+        if inputfields:
+            jobargs = jobargs.copy()
+            jobargs[JSONInputFormat.FIELDS_KEY] = ",".join(inputfields)
         source = PipeSource(srcpaths, self, inputformat, json, jobargs=jobargs)
         self.sources.append(source)
         return source
@@ -137,15 +146,29 @@ class Session:
             time.sleep(1)
         # compile results:
         results = {}
+        counters = {}
+        accumulators = {}
         for result in jobResults:
+            # counters are added up over all of the jobs:
+            for group, groupCounters in getattr(result, "counters", {}).iteritems():
+                totals = counters.setdefault(group, {})
+                for name, count in groupCounters.iteritems(): totals[name] = totals.get(name, 0) + count
+            jobAccumulators = getattr(result, "accumulators", {})
             for key, value in result.iteritems():
-                results.setdefault(key, []).extend(value)
+                accumulator = jobAccumulators.get(key)
+                if (key in results or key in accumulators) and (accumulator is None) != (key not in accumulators):
+                    raise Exception("Result " + key + " mixes accumulators and plain values across jobs")
+                # accumulators are merged over all of the jobs, and the plain values of each task are concatenated:
+                if accumulator is None: results.setdefault(key, []).extend(value)
+                elif key in accumulators: accumulators[key].merge(accumulator)
+                else: accumulators[key] = accumulator
+        for key, accumulator in accumulators.iteritems(): results[key] = accumulator.getValue()
         # check for errors:
         if self.hasErrors():
             totalErrors = sum(results["happy.cloud.dataerrors"])
             _log.error("*** " + str(totalErrors) + " DataException errors were caught during this run, look in " + \
                 self.workpath + "/errors to see details ***")
-        return results
+        return happy.JobResults(results, counters, accumulators)
 
 
     def hasErrors(self):
@@ -178,9 +201,11 @@ class Session:
         for spec in specs:
             if spec.outputpath is None:
                 spec.outputpath = self.workpath + "/job-" + str(spec.id)
+                spec.outputformat = self.intermediateformat
             for child in spec.children:
                 if spec.outputpath not in child.inputpaths:
                     child.inputpaths.append(spec.outputpath)
+                    if spec.outputformat == "columnar": child.decodedInputs.append(spec.outputpath)
 
     def _walkPipe(self, spec, pipe, specs, pipemap):
         # there already is a job for this pipe:
@@ -354,6 +379,7 @@ class JobSpec:
         self.inputpaths = []
         self.inputformat = "auto"
         self.inputJson = True
+        self.decodedInputs = []
         self.outputformat = "sequence"
         self.outputJson = True
         self.compressoutput = True
@@ -389,12 +415,16 @@ class PipeJob(happy.HappyJob):
         self.inputpaths = spec.inputpaths
         self.inputformat = spec.inputformat
         self.inputJson = spec.inputJson
+        self.decodedInputs = spec.decodedInputs[:]
         self.outputpath = spec.outputpath
         self.outputformat = spec.outputformat
         self.compressoutput = spec.compressoutput
         if spec.compressiontype is not None: self.compressiontype = spec.compressiontype
         self.jobargs = spec.jobargs
         self.outputJson = spec.outputJson
+        # columnar files store decoded values:
+        self.outputColumnar = spec.outputformat == "columnar"
+        if self.outputColumnar: self.outputvalue = "json"
         self.preMappers = spec.preMappers[:]
         self.reducer = spec.reducer
         if self.reducer is None: self.reducetasks = 0
@@ -421,19 +451,33 @@ class PipeJob(happy.HappyJob):
         self.jobstage = "map"
 
     def map(self, records, task):
+        # values from columnar parent jobs are already decoded:
+        self.inputDecoded = self._isDecodedInput(task)
         if len(self.preMappers) == 0 and not self.secondsort:
-            for key, record in records: task.collect(key, record)
+            if self.reducetasks == 0 and self.outputColumnar:
+                if self.inputJson and not self.inputDecoded:
+                    for key, record in records: task.collect(key, happy.json.decode(record))
+                else:
+                    for key, record in records: task.collect(key, record)
+            # decoded values go to the reducers and text files as json, like records read from text:
+            elif self.inputDecoded:
+                for key, record in records: task.collect(key, happy.json.encode(record))
+            else:
+                for key, record in records: task.collect(key, record)
         else:
             if self.mapFunctionChain is None:
                 # set up mapper input fn:
                 if self.inputJson:
                     def mapperfn(_, records):
-                        for key, value in records: yield key, happy.json.decode(value)
+                        if self.inputDecoded:
+                            for key, value in records: yield key, value
+                        else:
+                            for key, value in records: yield key, happy.json.decode(value)
                 else:
                     def mapperfn(_, records):
                         return records
-                # emitting raw text:
-                if self.reducetasks == 0 and not self.outputJson:
+                # emitting raw text or columnar values:
+                if self.reducetasks == 0 and (not self.outputJson or self.outputColumnar):
                     def collector(k, v):
                         task.collect(k, v)
                 # secondary sort:
@@ -458,11 +502,14 @@ class PipeJob(happy.HappyJob):
 
     def reduce(self, key, values, task):
         if self.reducer is None:
-            for value in values: task.collect(key, value)
+            if self.outputColumnar:
+                for value in values: task.collect(key, happy.json.decode(value))
+            else:
+                for value in values: task.collect(key, value)
         else:
             if self.reduceFunctionChain is None:
-                # emitting raw text:
-                if not self.outputJson:
+                # emitting raw text or columnar values:
+                if not self.outputJson or self.outputColumnar:
                     def collector(k, v):
                         task.collect(k, v)
                 # json output:
@@ -489,6 +536,16 @@ class PipeJob(happy.HappyJob):
         else: currentErrors += 1
         happy.results["happy.cloud.dataerrors"] = currentErrors
 
+    def _isDecodedInput(self, task):
+        """
+        Returns True if the current input file was written in columnar format by a parent job.
+        """
+        if len(self.decodedInputs) == 0: return False
+        inputpath = task.getInputPath()
+        for decodedInput in self.decodedInputs:
+            if inputpath.find(decodedInput.rstrip("/") + "/") >= 0: return True
+        return False
+
     def _jsonReduceIterator(self, records):
         for encodedRecord in records: yield happy.json.decode(encodedRecord)
 
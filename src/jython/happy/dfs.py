@@ -42,13 +42,14 @@ def getFileSystem(fs="dfs"):
     elif fs == "local": return FileSystem.getLocal(happy.getJobConf())
     else: raise Exception("Unknown filesystem " + fs)
 
-def read(path):
+def read(path, ordered=True):
     """
     Returns a Python file-like object for a specified DFS file or directory.
-    Merges files in a specified directory.
+    Merges files in a specified directory.  If ordered is False, whole files
+    are returned in whichever order they finish prefetching.
     """
     # this is a hack because PyFile doesn't support Readers:
-    return ReaderFile(DatasetPath(happy.getJobConf(), path).getReader())
+    return ReaderFile(DatasetPath(happy.getJobConf(), path).getReader(ordered))
 
 def write(path, compressiontype=None):
     """
@@ -56,12 +57,13 @@ def write(path, compressiontype=None):
     """
     return WriterFile(DatasetPath(happy.getJobConf(), path).getWriter(_getCodec(compressiontype)))
 
-def grep(path, regex):
+def grep(path, regex, ordered=True):
     """
     Returns an iterator over lines in a path that contain a given regular expression.
-    Uses the Java regex syntax.
+    Uses the Java regex syntax.  Files are scanned in parallel; if ordered is False,
+    each file's lines are returned as soon as that file has been scanned.
     """
-    return StringIterator.getIterator(DatasetPath(happy.getJobConf(), path).grepLines(regex))
+    return StringIterator.getIterator(DatasetPath(happy.getJobConf(), path).grepLines(regex, ordered))
 
 def delete(path):
     """
@@ -119,13 +121,15 @@ def createCollector(path, fs="dfs", type="text", compressiontype="lzo", sequence
 def createPartitionedCollector(path, fs="dfs", type="text", compressiontype="lzo", sequencetype="BLOCK"):
     """
     Creates a partitioned collector of type "text" (default) or "sequence" at the specified path.
-    Collectors are automatically closed at the end of the job.
+    Collectors are automatically closed at the end of the job.  Calls for the same path within
+    a task, including from other map threads, return the same collector.
     """
     if happy.job is not None: partition = happy.job.getTaskPartition()
     else: raise Exception("Cannot create a partitioned collector outside of a task partition")
     filename = path + "/part-%05d"%(partition,)
-    collector = createCollector(filename, fs=fs, type=type, compressiontype=compressiontype, sequencetype=sequencetype)
-    return collector
+    def factory():
+        return createCollector(filename, fs=fs, type=type, compressiontype=compressiontype, sequencetype=sequencetype)
+    return happy.job.getPartitionedCollector(filename, factory)
 
 def readSequenceFile(path, fs="dfs"):
     """
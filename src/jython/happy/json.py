@@ -26,7 +26,7 @@
 # ========================================================================
 #
 
-from com.freebase.happy.json import JSON
+from com.freebase.happy.json import JSON, JSONStream
 
 def encode(s):
     return JSON.encode(s)
@@ -34,3 +34,16 @@ def encode(s):
 def decode(s):
     return JSON.decode(s)
 
+def decodeFields(s, fields):
+    return JSON.decodeFields(s, fields)
+
+def iterateArray(input):
+    return JSONStream.iterateArray(_getReader(input))
+
+def parse(input):
+    return JSONStream.parse(_getReader(input))
+
+def _getReader(input):
+    # unwrap file objects returned by happy.dfs.read():
+    if hasattr(input, "_input"): return input._input
+    return input
@@ -30,6 +30,16 @@ import unittest
 import happy
 import happy.dfs as dfs
 import happy.json as json
+from com.freebase.happy.bjson import BJSON
+from com.freebase.happy import TaskWrapper
+from com.freebase.happy.columnar import ColumnarInputFormat, ColumnarOutputFormat
+from com.freebase.happy.json import JSONInputFormat, JSONWritable
+from com.freebase.happy.util import DatasetGrep
+from org.apache.hadoop.fs import FileSystem, Path
+from org.apache.hadoop.io import DataInputBuffer, DataOutputBuffer, Text
+from org.apache.hadoop.mapred import FileSplit, JobConf, OutputCollector, Reporter
+import java
+import jarray
 
 class TestDfs(unittest.TestCase):    
     def testFilesystem(self):
@@ -86,11 +96,234 @@ class TestDfs(unittest.TestCase):
         # cleanup:
         dfs.delete("testcase")
 
+class TestGrep(unittest.TestCase):
+    def testRequiredLiteral(self):
+        cases = [("foo.*bar", "foo"), ("abc?d", "ab"), ("a|b", None), ("(?i)abc", None),
+                 ("x\\.yz+", "x.yz"), ("[ab[cd]ef]x", "x"),
+                 # escape arguments are not literal text:
+                 ("\\x41bc", "bc"), ("\\x{41}zz", "zz"), ("\\u00e9t", "t"), ("\\012ab", "ab"),
+                 ("\\0777", "7"), ("\\cAxy", "xy"), ("\\p{Lu}abc", "abc"), ("\\P{L}q", "q"),
+                 ("(?<n>a)\\k<n>", None), ("\\Qa.b\\Ecd", "cd")]
+        for regex, literal in cases:
+            self.assertEqual(DatasetGrep.requiredLiteral(regex), literal, "Wrong literal for " + regex)
+
+    def testEscapes(self):
+        filename = "testgrep.txt"
+        dfs.delete(filename)
+        file = dfs.write(filename)
+        file.write("Abc\n\nxyz\n\x01def\n")
+        file.close()
+        self.assertEqual(list(dfs.grep(filename, "\\x41bc")), ["Abc"], "grep \\x41 failed")
+        self.assertEqual(list(dfs.grep(filename, "\\u0078yz")), ["xyz"], "grep \\u failed")
+        self.assertEqual(list(dfs.grep(filename, "\\cAdef")), ["\x01def"], "grep \\c failed")
+        self.assertEqual(list(dfs.grep(filename, "\\0170yz", False)), ["xyz"], "grep octal failed")
+        dfs.delete(filename)
+
 class TestJSON(unittest.TestCase):
     def testEncodeDecode(self):
         t = [1, 2, 3.5, 4.6, {"abc":["foo"], "bar":"bar"}, None]
         self.assertEqual(json.decode(json.encode(t)), t, "Decode/encode failed")
         
+class TestBJSON(unittest.TestCase):
+    def _roundtrip(self, value):
+        out = DataOutputBuffer()
+        record = BJSON()
+        record.setObject(value)
+        record.write(out)
+        input = DataInputBuffer()
+        input.reset(out.getData(), out.getLength())
+        copy = BJSON()
+        copy.readFields(input)
+        return copy
+
+    def testV2Numbers(self):
+        values = [0, 1, -1, 2**31 - 1, -2**31, 2**31, -2**31 - 1, 2**63 - 1, -2**63,
+                  2**63, -2**63 - 1, 2**64, -2**100]
+        for value in values:
+            copy = self._roundtrip(value).getObject()
+            self.assertEqual(copy, value, "Integer " + str(value) + " read back as " + str(copy))
+        # float32 values, values that need 64 bits, whole numbers and -0.0 all come back exactly:
+        for value in [0.5, -1.25, 3.0, -7.0, 2.0**60, 0.1, 1e300, -1e-300, 1.0 / 3]:
+            copy = self._roundtrip(value).getObject()
+            self.assertEqual(copy, value, "Float " + repr(value) + " read back as " + repr(copy))
+            self.assert_(isinstance(copy, float), "Float " + repr(value) + " read back as " + repr(copy))
+        self.assertEqual(repr(self._roundtrip(-0.0).getObject()), "-0.0", "Negative zero lost")
+        self.assertEqual(self._roundtrip([1, 2.5, 2**40, "x", None, True, False]).getObject(),
+                         [1, 2.5, 2**40, "x", None, True, False], "Mixed list changed")
+
+    def testV2BlockDictionary(self):
+        records = [{"name": "a", "type": "/people/person", "id": i, "score": i * 0.5} for i in range(10)]
+        out = DataOutputBuffer()
+        writer = BJSON()
+        writer.setBlockDictionary(True)
+        lengths = []
+        for record in records:
+            start = out.getLength()
+            writer.setObject(record)
+            writer.write(out)
+            lengths.append(out.getLength() - start)
+        # later records refer to the strings the first record defined:
+        self.assert_(lengths[1] < lengths[0], "Strings not shared across records: " + str(lengths))
+        input = DataInputBuffer()
+        input.reset(out.getData(), out.getLength())
+        reader = BJSON()
+        views = []
+        for record in records:
+            reader.readFields(input)
+            views.append(reader.getView())
+            self.assertEqual(reader.getObject(), record, "Block dictionary record changed")
+        # views of earlier records still decode after later records are read:
+        self.assertEqual([view.materialize() for view in views], records, "Views of earlier records changed")
+
+    def _canonical(self, value):
+        record = BJSON()
+        record.setCanonical(True)
+        record.setObject(value)
+        out = DataOutputBuffer()
+        record.write(out)
+        return out
+
+    def _order(self, value):
+        # dict keys are compared as sorted (key, value) pairs:
+        if isinstance(value, dict): return [(k, self._order(v)) for k, v in sorted(value.items())]
+        if isinstance(value, list): return [self._order(v) for v in value]
+        return value
+
+    def testCanonicalOrder(self):
+        groups = [
+            [0, 1, -1, 2, -2, 255, 256, -256, 2**31, -2**31 - 1, 2**63 - 1, -2**63],
+            [0.0, 0.5, -0.5, 1.5, -1e300, 1e300, 1e-300, -1e-300],
+            ["", "a", "a\0", "a\0b", "a\x01", "ab", "b", u"\u00e9", u"\u4e2d"],
+            [[], [1], [1, 2], [1, 2, 3], [2], [1, 3], [-1], [[]], [[1], 2]],
+            [{}, {"a": 1}, {"a": 2}, {"b": 1}, {"a": 1, "b": 1}, {"a": 1, "c": 0}, {"a": -1}],
+        ]
+        comparator = BJSON.Comparator()
+        for group in groups:
+            encoded = [self._canonical(value) for value in group]
+            for i in range(len(group)):
+                copy = BJSON()
+                input = DataInputBuffer()
+                input.reset(encoded[i].getData(), encoded[i].getLength())
+                copy.readFields(input)
+                self.assertEqual(copy.getObject(), group[i], "Canonical " + repr(group[i]) + " read back as " + repr(copy.getObject()))
+                for j in range(len(group)):
+                    a, b = encoded[i], encoded[j]
+                    order = comparator.compare(a.getData(), 0, a.getLength(), b.getData(), 0, b.getLength())
+                    expected = cmp(self._order(group[i]), self._order(group[j]))
+                    self.assertEqual(cmp(order, 0), expected, "Canonical order of " + repr(group[i]) + " and " + repr(group[j]))
+
+    def testNestedViewChanges(self):
+        view = self._roundtrip({"a": {"b": 0}, "links": [1], "c": "d"}).getView()
+        view["a"]["b"] = 1
+        view["links"].append(2)
+        # later lookups see the changes:
+        self.assertEqual(view["a"]["b"], 1, "Nested dict change lost")
+        self.assertEqual(view["links"], [1, 2], "Nested list change lost")
+        self.assertEqual(view.get(("links", 1)), 2, "Nested path lookup failed")
+        # and so does the written record:
+        written = self._roundtrip(view).getObject()
+        self.assertEqual(written, {"a": {"b": 1}, "links": [1, 2], "c": "d"}, "Nested changes not written")
+
+class TestAsyncOutput(unittest.TestCase):
+    class ListCollector(OutputCollector):
+        def __init__(self):
+            self.records = []
+        def collect(self, key, value):
+            self.records.append((key.toString(), value.getObject()))
+
+    def testCollectedDictChanges(self):
+        jobConf = JobConf()
+        jobConf.setBoolean(TaskWrapper.ASYNC_KEY, True)
+        collector = self.ListCollector()
+        task = TaskWrapper(collector, Reporter.NULL, Text, BJSON, jobConf)
+        record = {"n": 0, "seen": []}
+        for i in range(100):
+            record["n"] = i
+            record["seen"].append(i)
+            task.collect("key", record)
+        task.close()
+        self.assertEqual([value["n"] for key, value in collector.records], range(100),
+                         "Changes after collect were written")
+        self.assertEqual([len(value["seen"]) for key, value in collector.records], range(1, 101),
+                         "Changes to nested lists after collect were written")
+
+    def testAbort(self):
+        jobConf = JobConf()
+        jobConf.setBoolean(TaskWrapper.ASYNC_KEY, True)
+        task = TaskWrapper(self.ListCollector(), Reporter.NULL, Text, BJSON, jobConf)
+        task.collect("key", {"n": 1})
+        task.abort()
+        task.abort()
+
+class TestAggregate(unittest.TestCase):
+    def _aggregate(self, op, values):
+        collector = TestAsyncOutput.ListCollector()
+        task = TaskWrapper(collector, Reporter.NULL, Text, BJSON, JobConf())
+        for value in values: task.aggregate("key", value, op)
+        task.close()
+        return collector.records[0][1]
+
+    def testLargeIntegers(self):
+        # sums that leave the range of a long are promoted, like Python ints:
+        self.assertEqual(self._aggregate("sum", [2**62, 2**62, 2**62]), 3 * 2**62, "Sum overflowed")
+        self.assertEqual(self._aggregate("sum", [-2**63, -1]), -2**63 - 1, "Sum underflowed")
+        self.assertEqual(self._aggregate("sum", [1, 2**80, -2**80]), 1, "Bigint sum failed")
+        self.assertEqual(self._aggregate("max", [1, 2**70, 5]), 2**70, "Bigint max failed")
+        self.assertEqual(self._aggregate("min", [1, -2**70, 5]), -2**70, "Bigint min failed")
+        self.assertEqual(self._aggregate("sum", [2**63, 0.5]), 2**63 + 0.5, "Bigint and float sum failed")
+
+class TestColumnar(unittest.TestCase):
+    def setUp(self):
+        self.jobConf = JobConf()
+        self.fs = FileSystem.getLocal(self.jobConf)
+        self.path = Path(java.io.File.createTempFile("happy-columnar", ".hcf").getAbsolutePath())
+        # small blocks, so splits start in the middle of blocks:
+        self.records = []
+        for i in range(50):
+            if i % 7 == 3: value = [i, "not a dict"]
+            elif i % 5 == 0: value = {"id": i, "name": None, "tags": ["t" + str(i)]}
+            else: value = {"id": i, "name": "n" + str(i), "score": i * 1.5, "flag": i % 2 == 0}
+            self.records.append(("key" + str(i), value))
+        writer = ColumnarOutputFormat.ColumnarRecordWriter(self.fs.create(self.path), None, 4, 1024)
+        for key, value in self.records:
+            jsonValue = JSONWritable()
+            jsonValue.set(value)
+            writer.write(Text(key), jsonValue)
+        writer.close(Reporter.NULL)
+        self.length = self.fs.getFileStatus(self.path).getLen()
+
+    def tearDown(self):
+        self.fs.delete(self.path, False)
+
+    def _read(self, start, length, jobConf=None):
+        if jobConf is None: jobConf = self.jobConf
+        split = FileSplit(self.path, start, length, jarray.array([], java.lang.String))
+        reader = ColumnarInputFormat.ColumnarRecordReader(jobConf, split)
+        key = reader.createKey()
+        value = reader.createValue()
+        records = []
+        while reader.next(key, value): records.append((key.toString(), value.get()))
+        reader.close()
+        return records
+
+    def testReadWrite(self):
+        self.assertEqual(self._read(0, self.length), self.records, "Columnar records changed")
+
+    def testProjection(self):
+        jobConf = JobConf(self.jobConf)
+        jobConf.set(JSONInputFormat.FIELDS_KEY, "id,name")
+        expected = []
+        for key, value in self.records:
+            if isinstance(value, dict): value = dict([(k, v) for k, v in value.items() if k in ("id", "name")])
+            expected.append((key, value))
+        self.assertEqual(self._read(0, self.length, jobConf), expected, "Projected records changed")
+
+    def testSplits(self):
+        # every record is read exactly once, whichever byte the second split starts at:
+        for middle in range(1, self.length, max(1, self.length / 40)):
+            records = self._read(0, middle) + self._read(middle, self.length - middle)
+            self.assertEqual(records, self.records, "Records lost or repeated splitting at " + str(middle))
+
 if __name__ == '__main__':
     unittest.main()
 